@@ -0,0 +1,80 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Canned orchestrator documents and TOSCA template used by the benchmarks.
+ * Documents come in three sizes: small (a single node), medium (20 extra
+ * outputs and resource links) and large (300 of each, ~80KB).
+ */
+final class BenchmarkResources {
+
+    static final String UUID = "eb41a091-b4ec-4259-aa6b-4fb18fdd54fb";
+    static final String NODE_IP = "90.147.170.152";
+
+    private BenchmarkResources() {
+    }
+
+    /**
+     * @param size small, medium or large
+     * @return The deployment document of the given size
+     */
+    static String deployment(String size) {
+        return load("/deployment-" + size + ".json").trim();
+    }
+
+    static String template() {
+        return load("/tosca-template.yaml");
+    }
+
+    private static String load(String name) {
+        InputStream in = BenchmarkResources.class.getResourceAsStream(name);
+        if (null == in) {
+            throw new IllegalStateException("Missing benchmark resource '" + name + "'");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read '" + name + "'", ex);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // ignored
+            }
+        }
+    }
+}
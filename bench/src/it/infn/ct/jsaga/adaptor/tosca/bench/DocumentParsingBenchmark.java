@@ -0,0 +1,100 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.bench;
+
+import it.infn.ct.jsaga.adaptor.tosca.ToscaAdaptorCommon;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of status and SSH credentials from orchestrator documents:
+ * one parse per key (getDocumentValue), one parse per document
+ * (getToscaResourceCredentials) and the parsed deployment alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentParsingBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private String doc;
+    private Parser parser;
+
+    /**
+     * Exposes the document helpers of ToscaAdaptorCommon
+     */
+    static class Parser extends ToscaAdaptorCommon {
+
+        String value(String json, String key) throws ParseException {
+            return getDocumentValue(json, key);
+        }
+
+        String[] credentials(String json) throws ParseException {
+            return getToscaResourceCredentials(json);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        doc = BenchmarkResources.deployment(size);
+        parser = new Parser();
+    }
+
+    @Benchmark
+    public String[] documentValuePerKey() throws ParseException {
+        return new String[]{parser.value(doc, "status"),
+                            parser.value(doc, "outputs.node_ip"),
+                            parser.value(doc, "outputs.node_creds.user"),
+                            parser.value(doc, "outputs.node_creds.token")};
+    }
+
+    @Benchmark
+    public String[] resourceCredentials() throws ParseException {
+        return parser.credentials(doc);
+    }
+
+    @Benchmark
+    public ToscaDeploymentInfo deploymentInfo() throws ParseException {
+        return ToscaDeploymentInfo.parse(doc);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.bench;
+
+import fr.in2p3.jsaga.adaptor.job.SubState;
+import fr.in2p3.jsaga.adaptor.job.monitor.JobStatus;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobControlAdaptor;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobMonitorAdaptor;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaSecurityCredential;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.ogf.saga.error.SagaException;
+import org.ogf.saga.task.State;
+import org.w3c.dom.Document;
+
+/**
+ * End-to-end load test of the job adaptors against a FakeOrchestrator.
+ * Jobs are submitted through ToscaJobControlAdaptor by a pool of threads
+ * and their status is then polled through ToscaJobMonitorAdaptor until
+ * they run. The report gives the submit throughput, the time to running,
+ * the cost of a status poll, and the load seen by the orchestrator.
+ * <p>
+ * Completed deployments point at fake.node.ip, where an SSH server must
+ * accept fake.node.user/fake.node.password on port 22; without it the
+ * jobs fail once their deployment is ready, which still measures the
+ * orchestrator side. Settings are system properties:
+ * <ul>
+ * <li>e2e.jobs (1000), e2e.threads (32), e2e.pollers (8),
+ * e2e.poll.ms (1000), e2e.timeout.s (600), e2e.async (true)</li>
+ * <li>fake.threads (16), fake.provision.ms (5000), fake.jitter.ms (1000),
+ * fake.create.failure (0), fake.error.rate (0), fake.slow.rate (0),
+ * fake.slow.ms (0), fake.node.ip (127.0.0.1), fake.node.user and
+ * fake.node.password (jobtest)</li>
+ * <li>e2e.attr.&lt;name&gt;: any adaptor attribute, e.g.
+ * e2e.attr.poll_initial_ms</li>
+ * </ul>
+ */
+public class EndToEndBenchmark {
+
+    static final String JSDL
+            = "<JobDefinition xmlns=\"http://schemas.ggf.org/jsdl/2005/11/jsdl\""
+            + " xmlns:posix=\"http://schemas.ggf.org/jsdl/2005/11/jsdl-posix\">"
+            + "<JobDescription><Application><posix:POSIXApplication>"
+            + "<posix:Executable>/bin/sleep</posix:Executable>"
+            + "<posix:Argument>1</posix:Argument>"
+            + "<posix:WorkingDirectory>/tmp</posix:WorkingDirectory>"
+            + "</posix:POSIXApplication></Application></JobDescription>"
+            + "</JobDefinition>";
+
+    private final int jobs = Integer.getInteger("e2e.jobs", 1000);
+    private final int threads = Integer.getInteger("e2e.threads", 32);
+    private final int pollers = Integer.getInteger("e2e.pollers", 8);
+    private final long pollMs = Long.getLong("e2e.poll.ms", 1000);
+    private final long timeoutMs = TimeUnit.SECONDS.toMillis(Long.getLong("e2e.timeout.s", 600));
+    private final boolean async = Boolean.parseBoolean(System.getProperty("e2e.async", "true"));
+
+    private final FakeOrchestrator orchestrator;
+    private final ToscaJobControlAdaptor control = new ToscaJobControlAdaptor();
+    private final ToscaJobMonitorAdaptor monitor = new ToscaJobMonitorAdaptor();
+    private final File workDir;
+
+    private final Samples submitMs = new Samples();
+    private final Samples runningMs = new Samples();
+    private final Samples pollUs = new Samples();
+    private final Samples pollCpuUs = new Samples();
+    private final AtomicInteger submitFailures = new AtomicInteger();
+    private final AtomicInteger jobFailures = new AtomicInteger();
+    private final Map<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Exact percentiles of the samples of one run
+     */
+    static class Samples {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        synchronized void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized String summary(String unit) {
+            if (size == 0) {
+                return "no samples";
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long v : sorted) {
+                total += v;
+            }
+            return String.format("n=%d mean=%.1f%s p50=%d%s p95=%d%s p99=%d%s max=%d%s",
+                    size, (double) total / size, unit,
+                    at(sorted, 50), unit, at(sorted, 95), unit, at(sorted, 99), unit,
+                    sorted[size - 1], unit);
+        }
+
+        private static long at(long[] sorted, double percentile) {
+            int rank = (int) Math.ceil(sorted.length * percentile / 100);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+    }
+
+    EndToEndBenchmark() throws IOException {
+        orchestrator = new FakeOrchestrator(Integer.getInteger("fake.port", 0),
+                                            Integer.getInteger("fake.threads", 16));
+        orchestrator.setProvisioning(Long.getLong("fake.provision.ms", 5000),
+                                     Long.getLong("fake.jitter.ms", 1000));
+        orchestrator.setCreateFailureRate(getDouble("fake.create.failure", 0));
+        orchestrator.setErrorRate(getDouble("fake.error.rate", 0));
+        orchestrator.setSlowResponses(getDouble("fake.slow.rate", 0),
+                                      Long.getLong("fake.slow.ms", 0));
+        orchestrator.setNode(System.getProperty("fake.node.ip", "127.0.0.1"),
+                             System.getProperty("fake.node.user", "jobtest"),
+                             System.getProperty("fake.node.password", "jobtest"));
+        workDir = File.createTempFile("tosca-e2e-", "");
+        if (!workDir.delete() || !workDir.mkdir()) {
+            throw new IOException("Unable to create '" + workDir + "'");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        EndToEndBenchmark bench = new EndToEndBenchmark();
+        try {
+            bench.connect();
+            bench.run();
+        } finally {
+            bench.close();
+        }
+        System.exit(0);
+    }
+
+    private void connect() throws Exception {
+        orchestrator.start();
+        File template = new File(workDir, "tosca-template.yaml");
+        Writer out = new FileWriter(template);
+        try {
+            out.write(BenchmarkResources.template());
+        } finally {
+            out.close();
+        }
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("tosca_template", template.getPath());
+        attributes.put("credential_store", new File(workDir, "credentials.properties").getPath());
+        attributes.put("release_file", new File(workDir, "release.txt").getPath());
+        attributes.put("async_submit", "" + async);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("e2e.attr.")) {
+                attributes.put(name.substring("e2e.attr.".length()), System.getProperty(name));
+            }
+        }
+        ToscaSecurityCredential credential = new ToscaSecurityCredential("e2e-benchmark");
+        control.setSecurityCredential(credential);
+        monitor.setSecurityCredential(credential);
+        control.connect(null, "127.0.0.1", orchestrator.getPort(),
+                        FakeOrchestrator.BASE_PATH, attributes);
+        monitor.connect(null, "127.0.0.1", orchestrator.getPort(),
+                        FakeOrchestrator.BASE_PATH, attributes);
+        System.out.println("Orchestrator " + orchestrator.getEndpoint()
+                + ", attributes " + attributes);
+    }
+
+    private void run() throws Exception {
+        Document jsdl = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(JSDL.getBytes("UTF-8")));
+        // Submission
+        final long start = System.currentTimeMillis();
+        final AtomicLong lastSubmit = new AtomicLong(start);
+        ExecutorService submitters = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < jobs; i++) {
+            final String uniqId = "e2e-" + start + "-" + i;
+            final String jobDesc = control.getJobDescriptionTranslator().translate(jsdl, uniqId);
+            submitters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long t0 = System.currentTimeMillis();
+                    try {
+                        String jobId = control.submit(jobDesc, false, uniqId);
+                        long t1 = System.currentTimeMillis();
+                        submitMs.add(t1 - t0);
+                        pending.put(jobId, start);
+                        long last = lastSubmit.get();
+                        while (t1 > last && !lastSubmit.compareAndSet(last, t1)) {
+                            last = lastSubmit.get();
+                        }
+                    } catch (SagaException ex) {
+                        submitFailures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        submitters.shutdown();
+
+        // Status polling, until every job runs, fails or the timeout
+        ExecutorService polling = Executors.newFixedThreadPool(pollers);
+        long deadline = start + timeoutMs;
+        while (System.currentTimeMillis() < deadline
+                && (!submitters.isTerminated() || !pending.isEmpty())) {
+            long round = System.currentTimeMillis();
+            List<String> ids = new ArrayList<String>(pending.keySet());
+            final AtomicInteger left = new AtomicInteger(ids.size());
+            for (final String jobId : ids) {
+                polling.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            poll(jobId);
+                        } finally {
+                            left.decrementAndGet();
+                        }
+                    }
+                });
+            }
+            while (left.get() > 0) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(Math.max(0, pollMs - (System.currentTimeMillis() - round)));
+        }
+        polling.shutdownNow();
+        submitters.shutdownNow();
+        report(start, lastSubmit.get());
+    }
+
+    private void poll(String jobId) {
+        ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        long cpu0 = cpu.getCurrentThreadCpuTime();
+        long t0 = System.nanoTime();
+        State state;
+        SubState subState = null;
+        try {
+            JobStatus status = monitor.getStatus(jobId);
+            state = (null != status) ? status.getSagaState() : null;
+            subState = (null != status) ? status.getSubState() : null;
+        } catch (SagaException ex) {
+            state = State.FAILED;
+        }
+        pollUs.add((System.nanoTime() - t0) / 1000);
+        pollCpuUs.add((cpu.getCurrentThreadCpuTime() - cpu0) / 1000);
+        // Pending asynchronous submissions are RUNNING_SUBMITTED
+        if (SubState.RUNNING_ACTIVE.equals(subState) || State.DONE.equals(state)) {
+            Long start = pending.remove(jobId);
+            if (null != start) {
+                runningMs.add(System.currentTimeMillis() - start);
+            }
+        } else if (State.FAILED.equals(state) || State.CANCELED.equals(state)) {
+            if (null != pending.remove(jobId)) {
+                jobFailures.incrementAndGet();
+            }
+        }
+    }
+
+    private void report(long start, long lastSubmit) {
+        long submitWindow = Math.max(1, lastSubmit - start);
+        int submitted = submitMs.size();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%nJobs: %d (%s), submitted %d, submit failures %d,"
+                + " running %d, failed %d, still pending %d%n",
+                jobs, async ? "async" : "sync", submitted, submitFailures.get(),
+                runningMs.size(), jobFailures.get(), pending.size()));
+        sb.append(String.format("Submit throughput: %.1f jobs/s over %dms%n",
+                submitted * 1000.0 / submitWindow, submitWindow));
+        sb.append("Submit latency:  ").append(submitMs.summary("ms")).append('\n');
+        sb.append("Time to running: ").append(runningMs.summary("ms")).append('\n');
+        sb.append("Status poll:     ").append(pollUs.summary("us")).append('\n');
+        sb.append("Status poll CPU: ").append(pollCpuUs.summary("us")).append('\n');
+        long deployments = Math.max(1, orchestrator.getPosts());
+        sb.append(String.format("Orchestrator: %d POST, %d GET (%.1f per deployment),"
+                + " %d DELETE, %d injected errors, %d notifications,"
+                + " %.0fus per request%n",
+                orchestrator.getPosts(), orchestrator.getGets(),
+                (double) orchestrator.getGets() / deployments,
+                orchestrator.getDeletes(), orchestrator.getInjectedErrors(),
+                orchestrator.getNotifications(), orchestrator.getAverageHandlingUs()));
+        sb.append("Adaptor metrics: ").append(ToscaMetrics.summary());
+        System.out.println(sb);
+    }
+
+    private void close() {
+        try {
+            control.disconnect();
+            monitor.disconnect();
+        } catch (SagaException ex) {
+            System.err.println("Error disconnecting: " + ex);
+        }
+        orchestrator.stop();
+        File[] files = workDir.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        workDir.delete();
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return (null != value) ? Double.parseDouble(value) : defaultValue;
+    }
+}
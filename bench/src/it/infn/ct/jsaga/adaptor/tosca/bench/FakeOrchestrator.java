@@ -0,0 +1,456 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * In-process stand-in of the orchestrator deployments API, as used by the
+ * adaptor: POST creates a deployment, GET /&lt;uuid&gt; returns its document
+ * and DELETE /&lt;uuid&gt; removes it; GET with page and size lists them. A deployment stays CREATE_IN_PROGRESS
+ * for the configured provisioning time, then becomes CREATE_COMPLETE with
+ * outputs.node_ip and outputs.node_creds pointing at the configured node,
+ * or CREATE_FAILED. Callback URLs given at creation are notified of the
+ * final state. Provisioning time, failure rates and slow responses are
+ * configurable, so that the adaptor can be load tested on a single host.
+ */
+public class FakeOrchestrator {
+
+    private static final Logger log = Logger.getLogger(FakeOrchestrator.class);
+
+    public static final String BASE_PATH = "/orchestrator/deployments";
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService notifier;
+    private final Map<String, Deployment> deployments
+            = new ConcurrentHashMap<String, Deployment>();
+
+    private volatile long provisionMs = 5000;
+    private volatile long provisionJitterMs = 1000;
+    private volatile double createFailureRate = 0;
+    private volatile double errorRate = 0;
+    private volatile double slowRate = 0;
+    private volatile long slowMs = 0;
+    private volatile String nodeIp = "127.0.0.1";
+    private volatile String nodeUser = "jobtest";
+    private volatile String nodePassword = "jobtest";
+
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong slowResponses = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong handlingNanos = new AtomicLong();
+
+    private static class Deployment {
+
+        final String uuid;
+        final String creationTime;
+        final long readyAt;
+        final boolean fails;
+        final String callback;
+        volatile boolean notified = false;
+
+        Deployment(String uuid, long readyAt, boolean fails, String callback) {
+            this.uuid = uuid;
+            this.creationTime = formatTime(System.currentTimeMillis());
+            this.readyAt = readyAt;
+            this.fails = fails;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * @param port Listening port, 0 for any free port
+     * @param threads Threads serving the requests
+     * @throws IOException If the port cannot be bound
+     */
+    public FakeOrchestrator(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext(BASE_PATH, new DeploymentsHandler());
+        handlers = Executors.newFixedThreadPool(threads, daemonThreads("fake-orchestrator"));
+        notifier = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("fake-orchestrator-notifier"));
+        server.setExecutor(handlers);
+    }
+
+    public void start() {
+        server.start();
+        log.info("Fake orchestrator listening at '" + getEndpoint() + "'");
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+        notifier.shutdownNow();
+    }
+
+    /**
+     * @return The deployments end-point, http://127.0.0.1:&lt;port&gt;/orchestrator/deployments
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + getPort() + BASE_PATH;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @param provisionMs Mean time a deployment stays in progress
+     * @param jitterMs Maximum deviation from the mean, uniformly spread
+     */
+    public void setProvisioning(long provisionMs, long jitterMs) {
+        this.provisionMs = provisionMs;
+        this.provisionJitterMs = jitterMs;
+    }
+
+    /**
+     * @param rate Fraction of the deployments ending CREATE_FAILED
+     */
+    public void setCreateFailureRate(double rate) {
+        this.createFailureRate = rate;
+    }
+
+    /**
+     * @param rate Fraction of the requests answered with 503
+     */
+    public void setErrorRate(double rate) {
+        this.errorRate = rate;
+    }
+
+    /**
+     * @param rate Fraction of the requests answered late
+     * @param delayMs Delay of the late answers
+     */
+    public void setSlowResponses(double rate, long delayMs) {
+        this.slowRate = rate;
+        this.slowMs = delayMs;
+    }
+
+    /**
+     * Node returned in the outputs of the completed deployments, usually a
+     * local SSH server
+     */
+    public void setNode(String ip, String user, String password) {
+        this.nodeIp = ip;
+        this.nodeUser = user;
+        this.nodePassword = password;
+    }
+
+    public long getPosts() {
+        return posts.get();
+    }
+
+    public long getGets() {
+        return gets.get();
+    }
+
+    public long getDeletes() {
+        return deletes.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getSlowResponses() {
+        return slowResponses.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    /**
+     * @return Average time spent serving a request, in microseconds
+     */
+    public double getAverageHandlingUs() {
+        long requests = posts.get() + gets.get() + deletes.get();
+        return (requests == 0) ? 0 : handlingNanos.get() / 1000.0 / requests;
+    }
+
+    public int getLive() {
+        return deployments.size();
+    }
+
+    private class DeploymentsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            int status = 500;
+            String body = null;
+            try {
+                String method = exchange.getRequestMethod();
+                String path = exchange.getRequestURI().getPath();
+                String uuid = path.length() > BASE_PATH.length() + 1
+                              ? path.substring(BASE_PATH.length() + 1)
+                              : null;
+                String request = readBody(exchange.getRequestBody());
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (slowRate > 0 && random.nextDouble() < slowRate) {
+                    slowResponses.incrementAndGet();
+                    Thread.sleep(slowMs);
+                }
+                if (errorRate > 0 && random.nextDouble() < errorRate) {
+                    injectedErrors.incrementAndGet();
+                    status = 503;
+                    body = "{\"code\":503,\"title\":\"Service Unavailable\"}";
+                } else if ("POST".equals(method) && null == uuid) {
+                    posts.incrementAndGet();
+                    Deployment d = create(request);
+                    status = 201;
+                    body = document(d);
+                } else if ("GET".equals(method) && null != uuid) {
+                    gets.incrementAndGet();
+                    Deployment d = deployments.get(uuid);
+                    status = (null != d) ? 200 : 404;
+                    body = (null != d) ? document(d) : notFound(uuid);
+                } else if ("GET".equals(method) && null == uuid) {
+                    gets.incrementAndGet();
+                    status = 200;
+                    body = list(exchange.getRequestURI().getQuery());
+                } else if ("DELETE".equals(method) && null != uuid) {
+                    deletes.incrementAndGet();
+                    status = (null != deployments.remove(uuid)) ? 204 : 404;
+                    body = (status == 404) ? notFound(uuid) : null;
+                } else {
+                    status = 405;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ParseException ex) {
+                status = 400;
+                body = "{\"code\":400,\"title\":\"Bad Request\"}";
+            } finally {
+                respond(exchange, status, body);
+                handlingNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private Deployment create(String request) throws ParseException {
+        JSONObject json = (JSONObject) new JSONParser().parse(request);
+        Object callback = json.get("callback");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = provisionMs;
+        if (provisionJitterMs > 0) {
+            delay += (long) ((random.nextDouble() * 2 - 1) * provisionJitterMs);
+        }
+        final Deployment d = new Deployment(UUID.randomUUID().toString(),
+                System.currentTimeMillis() + Math.max(0, delay),
+                createFailureRate > 0 && random.nextDouble() < createFailureRate,
+                (null != callback) ? callback.toString() : null);
+        deployments.put(d.uuid, d);
+        if (null != d.callback) {
+            notifier.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendNotification(d);
+                }
+            }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+        return d;
+    }
+
+    private void sendNotification(Deployment d) {
+        if (d.notified || !deployments.containsKey(d.uuid)) {
+            return;
+        }
+        d.notified = true;
+        try {
+            HttpURLConnection conn
+                    = (HttpURLConnection) new URL(d.callback).openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(document(d).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            conn.getResponseCode();
+            conn.disconnect();
+            notifications.incrementAndGet();
+        } catch (IOException ex) {
+            log.warn("Unable to notify '" + d.callback + "': " + ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String document(Deployment d) {
+        boolean done = System.currentTimeMillis() >= d.readyAt;
+        Map<String, Object> doc = new LinkedHashMap<String, Object>();
+        doc.put("uuid", d.uuid);
+        doc.put("creationTime", d.creationTime);
+        doc.put("updateTime", formatTime(done ? d.readyAt : System.currentTimeMillis()));
+        if (!done) {
+            doc.put("status", "CREATE_IN_PROGRESS");
+            doc.put("statusReason", null);
+        } else if (d.fails) {
+            doc.put("status", "CREATE_FAILED");
+            doc.put("statusReason", "Error creating the deployment: no resources available");
+        } else {
+            doc.put("status", "CREATE_COMPLETE");
+            doc.put("statusReason", null);
+            JSONObject creds = new JSONObject();
+            creds.put("user", nodeUser);
+            creds.put("token", nodePassword);
+            JSONObject outputs = new JSONObject();
+            outputs.put("node_ip", nodeIp);
+            outputs.put("node_creds", creds);
+            doc.put("outputs", outputs);
+        }
+        doc.put("task", done ? "NONE" : "DEPLOYER");
+        JSONObject self = new JSONObject();
+        self.put("rel", "self");
+        self.put("href", getEndpoint() + "/" + d.uuid);
+        List<Object> links = new ArrayList<Object>();
+        links.add(self);
+        doc.put("links", links);
+        return JSONValue.toJSONString(doc);
+    }
+
+    /**
+     * A page of the deployments, as {"content": [...], "page": {...}}
+     */
+    @SuppressWarnings("unchecked")
+    private String list(String query) throws ParseException {
+        int page = 0;
+        int size = 10;
+        if (null != query) {
+            for (String param : query.split("&")) {
+                String[] kv = param.split("=", 2);
+                if (kv.length == 2 && "page".equals(kv[0])) {
+                    page = Integer.parseInt(kv[1]);
+                } else if (kv.length == 2 && "size".equals(kv[0])) {
+                    size = Math.max(1, Integer.parseInt(kv[1]));
+                }
+            }
+        }
+        List<Deployment> all = new ArrayList<Deployment>(deployments.values());
+        JSONArray content = new JSONArray();
+        for (int i = page * size; i < Math.min(all.size(), (page + 1) * size); i++) {
+            content.add(new JSONParser().parse(document(all.get(i))));
+        }
+        JSONObject info = new JSONObject();
+        info.put("size", size);
+        info.put("totalElements", all.size());
+        info.put("totalPages", (all.size() + size - 1) / size);
+        info.put("number", page);
+        JSONObject doc = new JSONObject();
+        doc.put("content", content);
+        doc.put("page", info);
+        return doc.toJSONString();
+    }
+
+    private static String notFound(String uuid) {
+        return "{\"code\":404,\"title\":\"Not Found\","
+                + "\"message\":\"The deployment <" + uuid + "> doesn't exist\"}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        try {
+            if (null == body) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
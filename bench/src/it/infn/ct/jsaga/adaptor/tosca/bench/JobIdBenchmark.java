@@ -0,0 +1,152 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.bench;
+
+import it.infn.ct.jsaga.adaptor.tosca.ToscaAdaptorCommon;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobId;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentCache;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaCredentialStore;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.parser.ParseException;
+import org.ogf.saga.error.NoSuccessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Job id codec and resolution of a native job id into the node access
+ * data, with the node found in the credential store or only in the
+ * deployment cache (parsed document of the given size).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobIdBenchmark {
+
+    static final String V1_ID = "job-1460471100123#" + BenchmarkResources.UUID;
+    static final String V2_ID = ToscaJobId.V2 + "#job-1460471100123#"
+            + BenchmarkResources.UUID + "#" + BenchmarkResources.NODE_IP + ":22";
+
+    /**
+     * Adaptor whose node access data comes from the given source
+     */
+    @State(Scope.Benchmark)
+    public static class Resolution {
+
+        @Param({"store", "cache"})
+        public String source;
+
+        @Param({"small", "large"})
+        public String size;
+
+        Resolver resolver;
+        private File storeFile;
+
+        @Setup
+        public void setUp() throws IOException, ParseException, NoSuccessException {
+            resolver = new Resolver();
+            if ("store".equals(source)) {
+                storeFile = File.createTempFile("tosca-bench-", ".properties");
+                ToscaCredentialStore store = ToscaCredentialStore.getInstance(storeFile.getPath());
+                store.put(BenchmarkResources.UUID,
+                        new ToscaCredentialStore.Entry(BenchmarkResources.NODE_IP, 22,
+                                                       "jobtest", "Xvf56jZ751f"));
+                resolver.use(store);
+            } else {
+                ToscaDeploymentCache cache = ToscaDeploymentCache.getInstance(
+                        "bench://" + size, 1000, TimeUnit.HOURS.toMillis(1));
+                cache.put(BenchmarkResources.UUID,
+                        ToscaDeploymentInfo.parse(BenchmarkResources.deployment(size)));
+                resolver.use(cache);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            if (null != storeFile) {
+                storeFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Adaptor resolving job ids without an orchestrator
+     */
+    static class Resolver extends ToscaAdaptorCommon {
+
+        void use(ToscaCredentialStore store) {
+            credentialStore = store;
+        }
+
+        void use(ToscaDeploymentCache cache) {
+            deploymentCache = cache;
+        }
+
+        String[] info(String nativeJobId) {
+            return getInfoFromNativeJobId(nativeJobId);
+        }
+    }
+
+    @Benchmark
+    public ToscaJobId parseV1() {
+        return ToscaJobId.parse(V1_ID);
+    }
+
+    @Benchmark
+    public ToscaJobId parseV2() {
+        return ToscaJobId.parse(V2_ID);
+    }
+
+    @Benchmark
+    public String formatV2() {
+        return new ToscaJobId("job-1460471100123", BenchmarkResources.UUID,
+                              BenchmarkResources.NODE_IP, 22).toString();
+    }
+
+    @Benchmark
+    public String[] infoFromV1(Resolution state) {
+        return state.resolver.info(V1_ID);
+    }
+
+    @Benchmark
+    public String[] infoFromV2(Resolution state) {
+        return state.resolver.info(V2_ID);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.bench;
+
+import fr.in2p3.jsaga.adaptor.job.control.staging.StagingTransfer;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobControlAdaptor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-job work of the control adaptor not involving the network: the
+ * deployment request payload and the sftp to tosca rewrite of the staging
+ * transfers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubmitBenchmark {
+
+    static final String CALLBACK = "http://10.0.0.1:8765/tosca/notify";
+
+    private String template;
+    private Adaptor adaptor;
+
+    /**
+     * Exposes the helpers of ToscaJobControlAdaptor
+     */
+    static class Adaptor extends ToscaJobControlAdaptor {
+
+        static String payload(String template, String callbackUrl) {
+            return buildSubmitPayload(template, callbackUrl);
+        }
+
+        StagingTransfer[] rewrite(StagingTransfer[] transfers) {
+            return sftp2tosca(transfers, BenchmarkResources.UUID);
+        }
+    }
+
+    /**
+     * Staging transfers of a job, as returned by the SSH adaptor
+     */
+    @State(Scope.Benchmark)
+    public static class Staging {
+
+        @Param({"2", "20"})
+        public int transfers;
+
+        StagingTransfer[] staging;
+
+        @Setup
+        public void setUp() {
+            staging = new StagingTransfer[transfers];
+            for (int i = 0; i < transfers; i++) {
+                staging[i] = new StagingTransfer(
+                        "file:///home/user/inputs/input_" + i + ".dat",
+                        "sftp://" + BenchmarkResources.NODE_IP
+                        + ":22/tmp/job-1460471100123/input_" + i + ".dat",
+                        false);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        template = BenchmarkResources.template();
+        adaptor = new Adaptor();
+    }
+
+    @Benchmark
+    public String submitPayload() {
+        return Adaptor.payload(template, null);
+    }
+
+    @Benchmark
+    public String submitPayloadWithCallback() {
+        return Adaptor.payload(template, CALLBACK);
+    }
+
+    @Benchmark
+    public StagingTransfer[] sftp2tosca(Staging state) {
+        return adaptor.rewrite(state.staging);
+    }
+}
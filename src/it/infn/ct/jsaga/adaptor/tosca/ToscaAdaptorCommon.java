@@ -31,18 +31,31 @@ import fr.in2p3.jsaga.adaptor.base.usage.UAnd;
 import fr.in2p3.jsaga.adaptor.base.usage.Usage;
 import fr.in2p3.jsaga.adaptor.security.SecurityCredential;
 import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobControlAdaptor;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaExecutors;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobContext;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobId;
 import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobMonitorAdaptor;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobRegistry;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaSshSessionCache;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaCircuitBreaker;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentCache;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaNotificationListener;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorClient;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorGroup;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaReleaseQueue;
 
 import org.ogf.saga.error.*;
 
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaCredentialStore;
 import it.infn.ct.jsaga.adaptor.tosca.security.ToscaSecurityCredential;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONObject;
@@ -74,6 +87,54 @@ public class ToscaAdaptorCommon extends Object implements ClientAdaptor {
     protected static final String TOSCA_TEMPLATE = "tosca_template";
     protected static final String TOSCA_WAITMS = "wait_ms";
     protected static final String TOSCA_MAXWAITS = "max_waits";
+    protected static final String TOSCA_POLL_POLICY = "poll_policy";
+    protected static final String TOSCA_POLL_INITIAL = "poll_initial_ms";
+    protected static final String TOSCA_POLL_MAX = "poll_max_ms";
+    protected static final String TOSCA_POLL_FACTOR = "poll_factor";
+    protected static final String TOSCA_POLL_JITTER = "poll_jitter";
+    protected static final String TOSCA_POLL_DEADLINE = "poll_deadline_ms";
+    protected static final String TOSCA_NOTIFY_HOST = "notify_host";
+    protected static final String TOSCA_NOTIFY_PORT = "notify_port";
+    protected static final String TOSCA_NOTIFY_FALLBACK = "notify_fallback_ms";
+    protected static final String TOSCA_WATCH_THREADS = "watch_threads";
+    protected static final String TOSCA_WATCH_TICK = "watch_tick_ms";
+    protected static final String TOSCA_ASYNC_SUBMIT = "async_submit";
+    protected static final String TOSCA_ASYNC_THREADS = "async_threads";
+    protected static final String TOSCA_POOL_MIN = "pool_min";
+    protected static final String TOSCA_POOL_MAX = "pool_max";
+    protected static final String TOSCA_POOL_IDLE = "pool_idle_ms";
+    protected static final String TOSCA_SHARE_SLOTS = "share_slots";
+    protected static final String TOSCA_BATCH_POST_THREADS = "batch_post_threads";
+    protected static final String TOSCA_BATCH_WAIT_SLOTS = "batch_wait_slots";
+    protected static final String TOSCA_BATCH_SSH_THREADS = "batch_ssh_threads";
+    protected static final String TOSCA_RELEASE_FILE = "release_file";
+    protected static final String TOSCA_RELEASE_DRAIN = "release_drain_ms";
+    protected static final String TOSCA_SSH_IDLE = "ssh_idle_ms";
+    protected static final String TOSCA_SSH_MAX_SESSIONS = "ssh_max_sessions";
+    protected static final String TOSCA_CREDENTIAL_STORE = "credential_store";
+    protected static final String TOSCA_CREDENTIAL_KEY = "credential_key";
+    protected static final String TOSCA_DEPLOYMENT_UUID = "tosca_uuid";
+    protected static final String TOSCA_JOB_REGISTRY = "job_registry";
+    protected static final String TOSCA_EXECUTOR_MODE = "executor_mode";
+    protected static final String TOSCA_CACHE_SIZE = "cache_size";
+    protected static final String TOSCA_CACHE_TTL = "cache_ttl_ms";
+    protected static final String TOSCA_CONNECT_TIMEOUT = "connect_timeout_ms";
+    protected static final String TOSCA_READ_TIMEOUT = "read_timeout_ms";
+    protected static final String TOSCA_MAX_CONNECTIONS = "max_connections";
+    protected static final String TOSCA_BREAKER_FAILURES = "breaker_failures";
+    protected static final String TOSCA_BREAKER_OPEN = "breaker_open_ms";
+    protected static final String TOSCA_HEDGE_PERCENTILE = "hedge_percentile";
+    protected static final String TOSCA_HEDGE_MIN = "hedge_min_ms";
+    protected static final String TOSCA_ENDPOINTS = "endpoints";
+    protected static final String TOSCA_BALANCE = "balance";
+    protected static final String TOSCA_RATE_CREATE = "rate_create";
+    protected static final String TOSCA_RATE_READ = "rate_read";
+    protected static final String TOSCA_RATE_DELETE = "rate_delete";
+    protected static final String TOSCA_RATE_BURST = "rate_burst";
+    protected static final String TOSCA_RATE_RETRIES = "rate_retries";
+    protected static final String TOSCA_RECONCILE_PERIOD = "reconcile_period_ms";
+    protected static final String TOSCA_RECONCILE_GRACE = "reconcile_grace_ms";
+    protected static final String TOSCA_RECONCILE_RATE = "reconcile_rate";
 
     public static final String LS = System.getProperty("line.separator");
     private static final Logger log
@@ -84,10 +145,17 @@ public class ToscaAdaptorCommon extends Object implements ClientAdaptor {
     protected int toscaPort = 80; // Default port is HTTP
     protected String notfyEndpointHost = "unset";
     protected int notfyEndpointPort = 8888; // Default port is 8888 ApiServerDaemon dev. port
-    protected String tosca_UUID = null;
-    protected String ssh_username = "";
-    protected String ssh_password = "";
     protected URL endpoint = null;
+    protected ToscaDeploymentCache deploymentCache = null;
+    protected ToscaOrchestratorClient orchestrator = null;
+    protected ToscaOrchestratorGroup orchestrators = null;
+    protected ToscaNotificationListener notificationListener = null;
+    protected Map<String, ToscaReleaseQueue> releaseQueues
+            = new LinkedHashMap<String, ToscaReleaseQueue>();
+    protected ToscaSshSessionCache sshSessions = null;
+    protected ToscaCredentialStore credentialStore = null;
+    protected ToscaJobRegistry jobRegistry = null;
+    private long releaseDrainMs = ToscaReleaseQueue.DEFAULT_DRAIN_MS;
 
     @Override
     public Class[] getSupportedSecurityCredentialClasses() {
@@ -99,14 +167,10 @@ public class ToscaAdaptorCommon extends Object implements ClientAdaptor {
     @Override
     public void setSecurityCredential(SecurityCredential sc) {
         credential = (ToscaSecurityCredential) sc;
-        credential.setUsername(ssh_username);
-        credential.setPassword(ssh_password);
 
         try {
             log.debug("No security is necessary yet" + LS
                     + "User: '" + credential.getUserID() + "'" + LS
-                    + "ssh_username: '" + ssh_username + "'" + LS
-                    + "ssh_password: '" + ssh_password + "'" + LS
             );
             log.debug("TOKEN:" + sc.getAttribute("token"));
         } catch (NotImplementedException e) {
@@ -150,10 +214,223 @@ public class ToscaAdaptorCommon extends Object implements ClientAdaptor {
             log.error("Error in the service end-point creation" + ex);
             throw new BadParameterException(ex);
         }
+        initExecutors(attributes);
+        initOrchestrator(attributes);
+        initSshSessions(attributes);
+        initCredentialStore(attributes);
+        initJobRegistry(attributes);
+    }
+
+    /**
+     * Select platform or virtual threads for the blocking work; must run
+     * before the shared executors are created
+     *
+     * @param attributes Service URL attributes
+     */
+    protected void initExecutors(Map<?, ?> attributes) {
+        ToscaExecutors.setMode((String) attributes.get(TOSCA_EXECUTOR_MODE));
+    }
+
+    /**
+     * Setup the orchestrator client and the deployment cache shared
+     * by all adaptors using the same orchestrator end-point. Further
+     * end-points serving the same deployments may be listed, comma
+     * separated, in the endpoints attribute.
+     *
+     * @param attributes Service URL attributes
+     */
+    protected void initOrchestrator(Map<?, ?> attributes) {
+        int connect_timeout = getIntAttribute(attributes
+                , TOSCA_CONNECT_TIMEOUT
+                , ToscaOrchestratorClient.DEFAULT_CONNECT_TIMEOUT_MS);
+        int read_timeout = getIntAttribute(attributes
+                , TOSCA_READ_TIMEOUT
+                , ToscaOrchestratorClient.DEFAULT_READ_TIMEOUT_MS);
+        int max_connections = getIntAttribute(attributes
+                , TOSCA_MAX_CONNECTIONS
+                , ToscaOrchestratorClient.DEFAULT_MAX_CONNECTIONS);
+        List<String> urls = new ArrayList<String>();
+        urls.add(endpoint.toString());
+        String endpoints = (String) attributes.get(TOSCA_ENDPOINTS);
+        if (null != endpoints) {
+            for (String url : endpoints.split("[,\\s]+")) {
+                if (url.length() > 0 && !urls.contains(url))
+                    urls.add(url);
+            }
+        }
+        List<ToscaOrchestratorClient> clients = new ArrayList<ToscaOrchestratorClient>();
+        for (String url : urls) {
+            ToscaOrchestratorClient client = ToscaOrchestratorClient.getInstance(url
+                                                                                , connect_timeout
+                                                                                , read_timeout
+                                                                                , max_connections);
+            client.configureResilience(getIntAttribute(attributes
+                                                      , TOSCA_BREAKER_FAILURES
+                                                      , ToscaCircuitBreaker.DEFAULT_FAILURES)
+                                      , getIntAttribute(attributes
+                                                      , TOSCA_BREAKER_OPEN
+                                                      , (int) ToscaCircuitBreaker.DEFAULT_OPEN_MS)
+                                      , getDoubleAttribute(attributes
+                                                         , TOSCA_HEDGE_PERCENTILE
+                                                         , 0)
+                                      , getIntAttribute(attributes
+                                                      , TOSCA_HEDGE_MIN
+                                                      , (int) ToscaOrchestratorClient.DEFAULT_HEDGE_MIN_MS));
+            client.configureRateLimits(getDoubleAttribute(attributes, TOSCA_RATE_CREATE, 0)
+                                      , getDoubleAttribute(attributes, TOSCA_RATE_READ, 0)
+                                      , getDoubleAttribute(attributes, TOSCA_RATE_DELETE, 0)
+                                      , getIntAttribute(attributes
+                                                      , TOSCA_RATE_BURST
+                                                      , ToscaOrchestratorClient.DEFAULT_RATE_BURST)
+                                      , getIntAttribute(attributes
+                                                      , TOSCA_RATE_RETRIES
+                                                      , ToscaOrchestratorClient.DEFAULT_MAX_RETRIES));
+            clients.add(client);
+        }
+        String balance = (String) attributes.get(TOSCA_BALANCE);
+        orchestrators = ToscaOrchestratorGroup.getInstance(clients
+                                                          , (null != balance && balance.length() > 0)
+                                                            ? balance
+                                                            : ToscaOrchestratorGroup.BALANCE_ROUND_ROBIN);
+        orchestrator = orchestrators.getPrimary();
+        int cache_size = getIntAttribute(attributes
+                                        , TOSCA_CACHE_SIZE
+                                        , ToscaDeploymentCache.DEFAULT_SIZE);
+        int cache_ttl = getIntAttribute(attributes
+                                       , TOSCA_CACHE_TTL
+                                       , (int) ToscaDeploymentCache.DEFAULT_TTL_MS);
+        deploymentCache = ToscaDeploymentCache.getInstance(endpoint.toString()
+                                                          , cache_size
+                                                          , cache_ttl);
+        // Deletes go to the end-point owning the deployment; a given
+        // release_file is suffixed with the index of the other end-points
+        String release_file = (String) attributes.get(TOSCA_RELEASE_FILE);
+        releaseQueues.clear();
+        for (int i = 0; i < clients.size(); i++) {
+            String store = (null != release_file && release_file.length() > 0 && i > 0)
+                           ? release_file + "." + i
+                           : release_file;
+            releaseQueues.put(clients.get(i).getEndpoint()
+                             , ToscaReleaseQueue.getInstance(clients.get(i), store));
+        }
+        releaseDrainMs = getIntAttribute(attributes
+                                        , TOSCA_RELEASE_DRAIN
+                                        , (int) ToscaReleaseQueue.DEFAULT_DRAIN_MS);
+    }
+
+    /**
+     * Setup the cache of the SSH sessions to the deployment nodes
+     *
+     * @param attributes Service URL attributes
+     */
+    protected void initSshSessions(Map<?, ?> attributes) {
+        sshSessions = ToscaSshSessionCache.getInstance(
+                getIntAttribute(attributes
+                               , TOSCA_SSH_IDLE
+                               , (int) ToscaSshSessionCache.DEFAULT_IDLE_MS)
+              , getIntAttribute(attributes
+                               , TOSCA_SSH_MAX_SESSIONS
+                               , ToscaSshSessionCache.DEFAULT_MAX_SESSIONS));
+    }
+
+    /**
+     * Open the local store of the deployments access data
+     *
+     * @param attributes Service URL attributes
+     * @throws NoSuccessException If the store key cannot be read or created
+     */
+    protected void initCredentialStore(Map<?, ?> attributes) throws NoSuccessException {
+        credentialStore = ToscaCredentialStore.getInstance(
+                (String) attributes.get(TOSCA_CREDENTIAL_STORE),
+                (String) attributes.get(TOSCA_CREDENTIAL_KEY));
+    }
+
+    /**
+     * Open the persistent registry of the submitted jobs
+     *
+     * @param attributes Service URL attributes
+     */
+    protected void initJobRegistry(Map<?, ?> attributes) {
+        jobRegistry = ToscaJobRegistry.getInstance(
+                (String) attributes.get(TOSCA_JOB_REGISTRY));
+    }
+
+    /**
+     * Start the deployment notification listener when a notification
+     * host has been given; otherwise readiness is only polled
+     *
+     * @param attributes Service URL attributes
+     */
+    protected void initNotificationListener(Map<?, ?> attributes) {
+        String notify_host = (String) attributes.get(TOSCA_NOTIFY_HOST);
+        if (null != notify_host && notify_host.length() > 0) {
+            notfyEndpointHost = notify_host;
+        }
+        notfyEndpointPort = getIntAttribute(attributes, TOSCA_NOTIFY_PORT, notfyEndpointPort);
+        if ("unset".equals(notfyEndpointHost)) {
+            return;
+        }
+        try {
+            notificationListener = ToscaNotificationListener.getInstance(notfyEndpointHost
+                                                                        , notfyEndpointPort);
+        } catch (IOException ex) {
+            log.warn("Unable to start the notification listener on port "
+                    + notfyEndpointPort + "; using polling only", ex);
+            notificationListener = null;
+        }
+    }
+
+    /**
+     * Read an integer value from the service URL attributes
+     *
+     * @param attributes Service URL attributes
+     * @param name Attribute name
+     * @param defaultValue Value returned when missing or not valid
+     * @return The attribute value
+     */
+    protected int getIntAttribute(Map<?, ?> attributes, String name, int defaultValue) {
+        String value = (null != attributes) ? (String) attributes.get(name) : null;
+        if (null != value && value.length() > 0) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException nfe) {
+                log.warn("Invalid " + name + " value: '" + value + "'");
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Read a decimal value from the service URL attributes
+     *
+     * @param attributes Service URL attributes
+     * @param name Attribute name
+     * @param defaultValue Value returned when missing or not valid
+     * @return The attribute value
+     */
+    protected double getDoubleAttribute(Map<?, ?> attributes, String name, double defaultValue) {
+        String value = (null != attributes) ? (String) attributes.get(name) : null;
+        if (null != value && value.length() > 0) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException nfe) {
+                log.warn("Invalid " + name + " value: '" + value + "'");
+            }
+        }
+        return defaultValue;
     }
 
     @Override
-    public void disconnect() throws NoSuccessException {        
+    public void disconnect() throws NoSuccessException {
+        for (ToscaReleaseQueue releaseQueue : releaseQueues.values()) {
+            releaseQueue.drain(releaseDrainMs);
+            log.debug(releaseQueue.toString());
+        }
+        if (null != orchestrators) {
+            for (ToscaOrchestratorClient client : orchestrators.getClients())
+                log.debug(client.toString());
+            log.debug(orchestrators.toString());
+        }
     }
 
     @Override
@@ -172,93 +449,276 @@ public class ToscaAdaptorCommon extends Object implements ClientAdaptor {
     /**
      * Retrieve information included in the Tosca JobId
      *
-     * @param nativeJobId <ssh_jobId>#<toscaUUID>
-     * @return [0] Native JobId, [1] ssh_publicIP [2] ssh_port [3] SSH jobId
+     * @param nativeJobId Job id, see ToscaJobId for the accepted formats
+     * @return [0] Native JobId, [1] SSH jobId, [2] toscaUUID, [3] ssh_publicIP,
+     * [4] ssh_port, [5] ssh_username, [6] ssh_password
      */
     protected String[] getInfoFromNativeJobId(String nativeJobId) {
-        
-        log.debug("nativeJobId: " + nativeJobId);
-        String sshJobId = nativeJobId.substring(0, nativeJobId.indexOf("#"));
-        String tosca_UUID = nativeJobId.substring(nativeJobId.indexOf("#") + 1);        
-        log.debug("ssh_JobId: '"+sshJobId+"'");
-        log.debug("tosca_UUID: '"+tosca_UUID+"'");
-        
-        // Extract info from tosca_UUID
-        String doc = getToscaDeployment(tosca_UUID);        
-        String[] sshCredentials={"","","",""};
-        try {
-            sshCredentials = getToscaResourceCredentials(doc);
-            for(int i=0; i<sshCredentials.length; i++)
-                log.debug(sshCredentials[i]);
-        } catch (ParseException ex) {
-            log.error("Unable to get credentials from '"+doc+"'");
-        }
-        String ssh_publicIP = sshCredentials[0];
-        String ssh_port     = sshCredentials[1];
-        ssh_username        = sshCredentials[2];
-        ssh_password        = sshCredentials[3];
-        
-        log.debug("_publicIP: " + ssh_publicIP);
-        log.debug("_sshPort: " + ssh_port);
-        log.debug("ssh_username: " + ssh_username);
-        log.debug("ssh_password: " + ssh_password);
-
-        String[] info = { nativeJobId
-                        , sshJobId
-                        , tosca_UUID
-                        , ssh_publicIP
-                        , ssh_port
-                        , ssh_username
-                        , ssh_password };
+        ToscaJobContext job = resolveJobContext(nativeJobId);
+        String[] info = { job.getNativeJobId()
+                        , job.getSshJobId()
+                        , job.getToscaUUID()
+                        , job.isResolved() ? job.getHost() : ""
+                        , job.isResolved() ? "" + job.getPort() : ""
+                        , job.getUsername()
+                        , job.getPassword() };
         return info;
     }
 
-    protected String getToscaDeployment(String toscaUUID) {
-        StringBuilder deployment = new StringBuilder();
-        HttpURLConnection conn;
+    /**
+     * Build the context of a job from its native job id
+     *
+     * @param nativeJobId Job id, see ToscaJobId for the accepted formats
+     * @return The job context
+     * @throws NoSuccessException If the job node cannot be determined
+     */
+    protected ToscaJobContext getJobContext(String nativeJobId)
+            throws NoSuccessException {
+        ToscaJobContext job;
         try {
-            log.debug("endpoint: '" + endpoint + "'");
-            URL deploymentEndpoint = new URL(endpoint.toString() + "/" + toscaUUID);
-            log.debug("deploymentEndpoint: '" + deploymentEndpoint + "'");
-            conn = (HttpURLConnection) deploymentEndpoint.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("charset", "utf-8");
-            log.debug("Orchestrator status code: " + conn.getResponseCode());
-            log.debug("Orchestrator status message: " + conn.getResponseMessage());
-            if (conn.getResponseCode() == 200) {
-                BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                String ln;
-                while ((ln = br.readLine()) != null) {
-                    deployment.append(ln);
+            job = resolveJobContext(nativeJobId);
+        } catch (IllegalArgumentException ex) {
+            throw new NoSuccessException(ex.getMessage(), new BadParameterException(ex));
+        }
+        if (!job.isResolved()) {
+            throw new NoSuccessException("Unable to get credentials for '"
+                    + job.getToscaUUID() + "'");
+        }
+        return job;
+    }
+
+    private ToscaJobContext resolveJobContext(String nativeJobId) {
+        log.debug("nativeJobId: " + nativeJobId);
+        ToscaJobContext job = getRegisteredJobContext(nativeJobId);
+        if (null != job) {
+            log.debug(job.toString());
+            return job;
+        }
+        ToscaJobId jobId = ToscaJobId.parse(nativeJobId);
+        String[] sshCredentials = getNodeAccess(jobId);
+        if (null == sshCredentials) {
+            log.error("Unable to get credentials for '" + jobId.getToscaUUID() + "'");
+            return new ToscaJobContext(nativeJobId
+                                      , jobId.getSshJobId()
+                                      , jobId.getToscaUUID()
+                                      , "", -1, "", "");
+        }
+        job = new ToscaJobContext(nativeJobId
+                                 , jobId.getSshJobId()
+                                 , jobId.getToscaUUID()
+                                 , sshCredentials[0]
+                                 , Integer.parseInt(sshCredentials[1])
+                                 , sshCredentials[2]
+                                 , sshCredentials[3]);
+        if (null != jobRegistry) {
+            // Next resolutions, even after a restart, are served by the registry
+            jobRegistry.deploymentReady(job.getToscaUUID(), job.getHost(),
+                    job.getPort(), job.getUsername());
+            jobRegistry.jobSubmitted(nativeJobId, job.getSshJobId(), job.getToscaUUID());
+        }
+        log.debug(job.toString());
+        return job;
+    }
+
+    /**
+     * Build the context of a job from the job registry; the password comes
+     * from the credential store. The orchestrator end-point owning the
+     * deployment is restored as well.
+     *
+     * @param nativeJobId Native job id
+     * @return The job context or null if the job is not fully registered
+     */
+    private ToscaJobContext getRegisteredJobContext(String nativeJobId) {
+        if (null == jobRegistry || null == credentialStore) {
+            return null;
+        }
+        ToscaJobRegistry.Job registered = jobRegistry.getJob(nativeJobId);
+        if (null == registered) {
+            return null;
+        }
+        String toscaUUID = registered.getToscaUUID();
+        ToscaJobRegistry.Deployment deployment = jobRegistry.getDeployment(toscaUUID);
+        ToscaCredentialStore.Entry node = credentialStore.get(toscaUUID);
+        if (null == deployment || null == deployment.getHost() || null == node) {
+            return null;
+        }
+        if (null != deployment.getEndpoint()) {
+            for (ToscaOrchestratorClient client : orchestrators.getClients()) {
+                if (client.getEndpoint().equals(deployment.getEndpoint())) {
+                    orchestrators.setOwner(toscaUUID, client);
                 }
-                log.debug("Orchestrator result: " + deployment);
             }
+        }
+        return new ToscaJobContext(nativeJobId
+                                  , registered.getSshJobId()
+                                  , toscaUUID
+                                  , deployment.getHost()
+                                  , deployment.getPort()
+                                  , deployment.getUsername()
+                                  , node.getPassword());
+    }
+
+    /**
+     * Access data of the node running a job. The local credential store is
+     * used first; the orchestrator is only asked for deployments not in the
+     * store, which are then stored.
+     *
+     * @param jobId Decoded job id
+     * @return [0] ssh_publicIP, [1] ssh_port, [2] ssh_username,
+     * [3] ssh_password or null if not available
+     */
+    protected String[] getNodeAccess(ToscaJobId jobId) {
+        String toscaUUID = jobId.getToscaUUID();
+        ToscaCredentialStore.Entry node = (null != credentialStore)
+                ? credentialStore.get(toscaUUID)
+                : null;
+        if (null != node) {
+            // The address in the job id wins over the stored one
+            return new String[]{ jobId.hasAddress() ? jobId.getHost() : node.getHost()
+                               , "" + (jobId.hasAddress() ? jobId.getPort() : node.getPort())
+                               , node.getUsername()
+                               , node.getPassword() };
+        }
+        ToscaDeploymentInfo deployment = getDeploymentInfo(toscaUUID);
+        if (null == deployment || null == deployment.getNodeIp()) {
+            return null;
+        }
+        String[] sshCredentials = getToscaResourceCredentials(deployment);
+        storeNodeAccess(toscaUUID, sshCredentials);
+        return sshCredentials;
+    }
+
+    /**
+     * Keep the access data of a deployment node in the credential store;
+     * the job registry records the node without the password
+     *
+     * @param toscaUUID Deployment UUID
+     * @param sshCredentials [0] ip, [1] port, [2] username, [3] password
+     */
+    protected void storeNodeAccess(String toscaUUID, String[] sshCredentials) {
+        if (null != jobRegistry) {
+            jobRegistry.deploymentReady(toscaUUID, sshCredentials[0],
+                    Integer.parseInt(sshCredentials[1]), sshCredentials[2]);
+        }
+        if (null == credentialStore || null == sshCredentials[2] || null == sshCredentials[3]) {
+            return;
+        }
+        credentialStore.put(toscaUUID,
+                new ToscaCredentialStore.Entry(sshCredentials[0],
+                                               Integer.parseInt(sshCredentials[1]),
+                                               sshCredentials[2],
+                                               sshCredentials[3]));
+    }
+
+    /**
+     * Retrieve the deployment from the cache, falling back to the
+     * orchestrator on a miss. When the orchestrator cannot be reached, or
+     * its circuit is open, an expired cache entry is served if any.
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The deployment information or null if not available
+     */
+    protected ToscaDeploymentInfo getDeploymentInfo(String toscaUUID) {
+        ToscaDeploymentInfo deployment = null;
+        if (null != deploymentCache) {
+            deployment = deploymentCache.get(toscaUUID);
+            if (null != deployment) {
+                log.debug("Deployment '" + toscaUUID + "' served from cache");
+                return deployment;
+            }
+        }
+        String doc;
+        try {
+            doc = getToscaDeployment(toscaUUID);
         } catch (IOException ex) {
-            log.error("Connection error with the service at " + endpoint.toString());
-            log.error(ex);
+            deployment = (null != deploymentCache)
+                         ? deploymentCache.getStale(toscaUUID)
+                         : null;
+            log.warn("Unable to read deployment '" + toscaUUID + "': "
+                    + ex.getMessage()
+                    + ((null != deployment) ? "; using cached data" : ""));
+            return deployment;
+        }
+        if (null == doc) {
+            if (null != deploymentCache)
+                deploymentCache.invalidate(toscaUUID);
+            return null;
         }
-        return deployment.toString();
+        try {
+            deployment = ToscaDeploymentInfo.parse(doc);
+        } catch (ParseException ex) {
+            log.error("Impossible to parse the tosca deployment json: '" + doc + "'");
+            return null;
+        }
+        if (null != deploymentCache) {
+            deploymentCache.put(toscaUUID, deployment);
+            log.debug(deploymentCache.toString());
+        }
+        return deployment;
     }
 
-    protected void deleteToscaDeployment(String toscaUUID) {
-        StringBuilder deployment = new StringBuilder();
-        HttpURLConnection conn;
+    /**
+     * Read a deployment document from the orchestrator
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The document or null if the orchestrator refused the request
+     * @throws IOException If the orchestrator is unavailable or its
+     * circuit is open
+     */
+    protected String getToscaDeployment(String toscaUUID) throws IOException {
+        String deployment = null;
+        ToscaOrchestratorClient.Response res;
         try {
-            URL deploymentEndpoint = new URL(endpoint.toString() + "/" + toscaUUID);
-            conn = (HttpURLConnection) deploymentEndpoint.openConnection();
-            conn.setRequestMethod("DELETE");
-            log.debug("Orchestrator status code: " + conn.getResponseCode());
-            log.debug("Orchestrator status message: " + conn.getResponseMessage());
-            if (conn.getResponseCode() == 204) {
-                log.debug("Successfully removed resource: '" + toscaUUID + "'");
-            } else {
-                log.error("Unable to remove resource: '" + toscaUUID + "'");
-            }
+            res = orchestrators.get(toscaUUID);
         } catch (IOException ex) {
             log.error("Connection error with the service at " + endpoint.toString());
             log.error(ex);
+            throw ex;
+        }
+        log.debug("Orchestrator status code: " + res.getStatus());
+        log.debug("Orchestrator status message: " + res.getMessage());
+        if (res.getStatus() == 200) {
+            deployment = res.getBody();
+            log.debug("Orchestrator result: " + deployment);
+        } else if (res.getStatus() >= 500 || res.getStatus() == 429) {
+            throw new IOException("Orchestrator error " + res.getStatus()
+                                 + " reading '" + toscaUUID + "'");
+        } else {
+            log.error("Unable to get deployment '" + toscaUUID + "': "
+                    + res.getBody());
+        }
+        return deployment;
+    }
+
+    /**
+     * Delete a deployment; the request is queued and performed in
+     * background, so the caller does not wait for the orchestrator
+     *
+     * @param toscaUUID Deployment UUID
+     */
+    protected void deleteToscaDeployment(String toscaUUID) {
+        if (null != deploymentCache) {
+            deploymentCache.invalidate(toscaUUID);
+        }
+        log.debug("Queued removal of resource: '" + toscaUUID + "'");
+        ToscaOrchestratorClient owner = orchestrators.getOwner(toscaUUID);
+        orchestrators.forget(toscaUUID);
+        if (null != jobRegistry) {
+            jobRegistry.deploymentReleased(toscaUUID);
+        }
+        // The node address may be given to another deployment
+        if (null != credentialStore) {
+            credentialStore.remove(toscaUUID);
+        }
+        ToscaReleaseQueue releaseQueue = releaseQueues.get(owner.getEndpoint());
+        if (null == releaseQueue) {
+            // Owned by an end-point of another adaptor, e.g. released by the
+            // reconciler or the pool; use the queue shared for it
+            log.warn("No release queue of '" + owner.getEndpoint()
+                    + "' in this adaptor for '" + toscaUUID + "'; using the shared one");
+            releaseQueue = ToscaReleaseQueue.getInstance(owner, null);
         }
+        releaseQueue.release(toscaUUID);
     }
 
     /**
@@ -282,17 +742,21 @@ public class ToscaAdaptorCommon extends Object implements ClientAdaptor {
     }
 
     protected String[] getToscaResourceCredentials(String doc) throws ParseException {
-
         log.debug("Extracting credentials from doc: '" + doc + "'");
-        String ssh_publicIP = getDocumentValue(doc, "outputs.node_ip");
+        return getToscaResourceCredentials(ToscaDeploymentInfo.parse(doc));
+    }
+
+    protected String[] getToscaResourceCredentials(ToscaDeploymentInfo deployment) {
+
+        String ssh_publicIP = deployment.getNodeIp();
         log.debug("IP: '" + ssh_publicIP + "'");
         int ssh_port = 22; // Not yet available, maybe in next versions
-        String ssh_username = getDocumentValue(doc, "outputs.node_creds.user");
-        String ssh_password = getDocumentValue(doc, "outputs.node_creds.token");
+        String ssh_username = deployment.getUsername();
+        String ssh_password = deployment.getPassword();
         log.debug("ssh_username: '"+ssh_username+"'");
         log.debug("ssh_password: '"+ssh_password+"'");
         
         String[] credentials = {ssh_publicIP, "" + ssh_port, ssh_username, ssh_password};        
         return credentials;
     }
-}
+}
\ No newline at end of file
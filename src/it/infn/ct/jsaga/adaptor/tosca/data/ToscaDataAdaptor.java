@@ -25,18 +25,32 @@
  */
 package it.infn.ct.jsaga.adaptor.tosca.data;
 
+import fr.in2p3.jsaga.adaptor.data.ParentDoesNotExist;
 import fr.in2p3.jsaga.adaptor.ssh3.data.SFTPDataAdaptor;
+import ch.ethz.ssh2.SFTPException;
+import ch.ethz.ssh2.SFTPv3Client;
+import ch.ethz.ssh2.SFTPv3FileHandle;
+import ch.ethz.ssh2.sftp.ErrorCodes;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetric;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaCredentialStore;
+import org.ogf.saga.error.AlreadyExistsException;
 import it.infn.ct.jsaga.adaptor.tosca.security.ToscaSecurityCredential;
 import org.ogf.saga.error.AuthenticationFailedException;
 import org.ogf.saga.error.AuthorizationFailedException;
 import org.ogf.saga.error.BadParameterException;
+import org.ogf.saga.error.DoesNotExistException;
 import org.ogf.saga.error.NoSuccessException;
 import org.ogf.saga.error.NotImplementedException;
+import org.ogf.saga.error.PermissionDeniedException;
 import org.ogf.saga.error.TimeoutException;
-import ch.ethz.ssh2.Connection;
 import fr.in2p3.jsaga.adaptor.security.impl.UserPassSecurityCredential;
 import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobControlAdaptor;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import org.ogf.saga.context.Context;
@@ -54,6 +68,10 @@ public class ToscaDataAdaptor extends SFTPDataAdaptor {
     private static final Logger log
             = Logger.getLogger(ToscaDataAdaptor.class);
 
+    private static final int BUFFER_SIZE = 32768;
+
+    private ToscaSftpConnectionPool pool = null;
+
     @Override
     public String getType() {
         return "tosca";
@@ -77,21 +95,281 @@ public class ToscaDataAdaptor extends SFTPDataAdaptor {
         log.debug("basePath: "+basePath);
         log.debug("attributes: "+attributes);
                 
-        String ssh_username = ((ToscaSecurityCredential) credential).getUsername();                       
+        String[] access = getNodeAccess(host, port, attributes);
+        String ssh_username = access[0];
+        String ssh_password = access[1];
         log.debug("sshUserId: "+ssh_username);
-                
-        String ssh_password = ((ToscaSecurityCredential) credential).getPassword();                        
-        log.debug("sshPassword: "+ssh_password);
         
         //setSecurityCredential(new UserPassSecurityCredential(ssh_username, ssh_password));
         //setSecurityCredential(new UserPassSecurityCredential("jobtest", "Xvf56jZ751f"));
         //super.connect(userInfo,host,port,basePath,attributes);                        
-        m_conn = new Connection(host,port);
+        // Files of the same node share one authenticated connection
+        pool = ToscaSftpConnectionPool.getInstance(
+                getLongAttribute(attributes, "ssh_idle_ms", ToscaSftpConnectionPool.DEFAULT_IDLE_MS),
+                (int) getLongAttribute(attributes, "ssh_max_sessions", ToscaSftpConnectionPool.DEFAULT_MAX_CONNECTIONS));
         try {
-            m_conn.connect(null);        
-            m_conn.authenticateWithPassword(ssh_username, ssh_password);
+            m_conn = pool.acquire(host, port, ssh_username, ssh_password);
         } catch(IOException ex) { 
             throw new NoSuccessException(ex);
         }        
     }
+
+    /**
+     * Access data of the node. They are kept per deployment by the job
+     * adaptor, whose staging URLs carry the deployment UUID; the security
+     * context only holds values set by the user.
+     *
+     * @return [0] ssh_username, [1] ssh_password
+     * @throws AuthenticationFailedException If the node access data are unknown
+     */
+    protected String[] getNodeAccess(String host, int port, Map<?, ?> attributes)
+            throws AuthenticationFailedException, NoSuccessException {
+        String ssh_username = ((ToscaSecurityCredential) credential).getUsername();
+        String ssh_password = ((ToscaSecurityCredential) credential).getPassword();
+        String toscaUUID = (String) attributes.get("tosca_uuid");
+        if (null != toscaUUID) {
+            ToscaCredentialStore.Entry node = ToscaCredentialStore.lookup(
+                    toscaUUID,
+                    (String) attributes.get("credential_store"),
+                    (String) attributes.get("credential_key"));
+            if (null != node) {
+                ssh_username = node.getUsername();
+                ssh_password = node.getPassword();
+            }
+        }
+        if (null == ssh_username || null == ssh_password) {
+            throw new AuthenticationFailedException("No access data for the node "
+                    + host + ":" + port
+                    + ((null != toscaUUID) ? " of deployment '" + toscaUUID + "'" : ""));
+        }
+        return new String[]{ ssh_username, ssh_password };
+    }
+
+    /**
+     * The connection is given back to the pool, not closed
+     */
+    @Override
+    public void disconnect() throws NoSuccessException {
+        if (null != m_conn && null != pool) {
+            pool.release(m_conn);
+            m_conn = null;
+        }
+        super.disconnect();
+    }
+
+    private static long getLongAttribute(Map<?, ?> attributes, String name, long defaultValue) {
+        Object value = attributes.get(name);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            log.warn("Invalid value '" + value + "' for '" + name + "'; using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Staging out; duration and transferred bytes are recorded. The
+     * transfer uses a pooled SFTP channel.
+     */
+    @Override
+    public void getToStream(String absolutePath, String additionalArgs, OutputStream stream)
+            throws PermissionDeniedException, BadParameterException,
+            DoesNotExistException, TimeoutException, NoSuccessException {
+        ToscaMetric metric = ToscaMetrics.timer(ToscaMetrics.STAGING_GET);
+        CountingOutputStream out = new CountingOutputStream(stream);
+        long start = System.currentTimeMillis();
+        boolean done = false;
+        try {
+            read(absolutePath, out);
+            done = true;
+        } finally {
+            recordTransfer(metric, ToscaMetrics.STAGING_GET_BYTES, start, out.count, done);
+        }
+    }
+
+    /**
+     * Staging in; duration and transferred bytes are recorded. The
+     * transfer uses a pooled SFTP channel.
+     */
+    @Override
+    public void putFromStream(String absolutePath, boolean append,
+            String additionalArgs, InputStream stream)
+            throws PermissionDeniedException, BadParameterException,
+            AlreadyExistsException, ParentDoesNotExist, TimeoutException,
+            NoSuccessException {
+        ToscaMetric metric = ToscaMetrics.timer(ToscaMetrics.STAGING_PUT);
+        CountingInputStream in = new CountingInputStream(stream);
+        long start = System.currentTimeMillis();
+        boolean done = false;
+        try {
+            write(absolutePath, append, in);
+            done = true;
+        } finally {
+            recordTransfer(metric, ToscaMetrics.STAGING_PUT_BYTES, start, in.count, done);
+        }
+    }
+
+    /**
+     * Copy a remote file to a stream, as SFTPDataAdaptor.getToStream
+     */
+    private void read(String absolutePath, OutputStream stream)
+            throws PermissionDeniedException, DoesNotExistException, NoSuccessException {
+        SFTPv3Client sftp = acquireChannel();
+        SFTPv3FileHandle handle = null;
+        boolean reusable = false;
+        try {
+            handle = sftp.openFileRO(absolutePath);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long offset = 0;
+            int len;
+            while ((len = sftp.read(handle, offset, buffer, 0, BUFFER_SIZE)) > 0) {
+                stream.write(buffer, 0, len);
+                offset += len;
+            }
+            stream.flush();
+            sftp.closeFile(handle);
+            reusable = true;
+        } catch (SFTPException ex) {
+            // Server errors leave the channel usable once no file is open
+            reusable = (null == handle);
+            switch (ex.getServerErrorCode()) {
+                case ErrorCodes.SSH_FX_NO_SUCH_FILE:
+                    throw new DoesNotExistException(ex);
+                case ErrorCodes.SSH_FX_PERMISSION_DENIED:
+                    throw new PermissionDeniedException(ex);
+                default:
+                    throw new NoSuccessException(ex);
+            }
+        } catch (IOException ex) {
+            throw new NoSuccessException(ex);
+        } finally {
+            pool.releaseChannel(m_conn, sftp, reusable);
+        }
+    }
+
+    /**
+     * Copy a stream to a remote file, as SFTPDataAdaptor.putFromStream
+     */
+    private void write(String absolutePath, boolean append, InputStream stream)
+            throws PermissionDeniedException, NoSuccessException {
+        SFTPv3Client sftp = acquireChannel();
+        SFTPv3FileHandle handle = null;
+        boolean reusable = false;
+        try {
+            long offset = 0;
+            try {
+                handle = sftp.openFileRW(absolutePath);
+                if (append) {
+                    offset = sftp.fstat(handle).size;
+                } else {
+                    sftp.closeFile(handle);
+                    handle = null;
+                    handle = sftp.createFileTruncate(absolutePath);
+                }
+            } catch (SFTPException ex) {
+                switch (ex.getServerErrorCode()) {
+                    case ErrorCodes.SSH_FX_NO_SUCH_FILE:
+                        handle = sftp.createFile(absolutePath);
+                        break;
+                    case ErrorCodes.SSH_FX_PERMISSION_DENIED:
+                        reusable = (null == handle);
+                        throw new PermissionDeniedException(ex);
+                    default:
+                        reusable = (null == handle);
+                        throw new NoSuccessException(ex);
+                }
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = stream.read(buffer, 0, BUFFER_SIZE)) >= 0) {
+                sftp.write(handle, offset, buffer, 0, len);
+                offset += len;
+            }
+            sftp.closeFile(handle);
+            reusable = true;
+        } catch (IOException ex) {
+            throw new NoSuccessException(ex);
+        } finally {
+            pool.releaseChannel(m_conn, sftp, reusable);
+        }
+    }
+
+    private SFTPv3Client acquireChannel() throws NoSuccessException {
+        try {
+            return pool.acquireChannel(m_conn);
+        } catch (IOException ex) {
+            throw new NoSuccessException(ex);
+        }
+    }
+
+    private static void recordTransfer(ToscaMetric metric, String sizeMetric,
+            long start, long bytes, boolean done) {
+        long elapsed = System.currentTimeMillis() - start;
+        if (done) {
+            metric.record(elapsed);
+            ToscaMetrics.size(sizeMetric).record(bytes);
+        } else {
+            metric.recordError();
+        }
+        log.debug("Transferred " + bytes + " bytes in " + elapsed + "ms"
+                + (done ? "" : " (failed)"));
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
 }
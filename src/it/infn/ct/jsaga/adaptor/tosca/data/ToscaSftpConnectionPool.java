@@ -0,0 +1,487 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.data;
+
+import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.ConnectionMonitor;
+import ch.ethz.ssh2.SFTPv3Client;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetric;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.ogf.saga.error.AuthenticationFailedException;
+
+/**
+ * Pool of the authenticated SSH connections used by the data adaptors,
+ * keyed by (host, port, username). A connection is shared by the adaptors
+ * staging files on the same node and it is reference counted:
+ * disconnecting an adaptor only gives the connection back. The SFTP
+ * channels opened on a connection are kept as well and handed out to the
+ * next transfers. Adaptors and idle channels of a connection stay below
+ * the default sshd limit of 10 sessions per connection. Connections lost
+ * are dropped, idle ones are checked before being handed out again and
+ * closed after the idle timeout.
+ */
+public class ToscaSftpConnectionPool {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaSftpConnectionPool.class);
+
+    public static final long DEFAULT_IDLE_MS = 60000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int MAX_SHARES = 6;
+    public static final int MAX_IDLE_CHANNELS = 4;
+    private static final long CHECK_AFTER_MS = 30000;
+    private static final long REAP_PERIOD_MS = 10000;
+
+    private static ToscaSftpConnectionPool instance = null;
+
+    private long idleMs;
+    private int maxConnections;
+    private final Map<String, List<Pooled>> pools
+            = new LinkedHashMap<String, List<Pooled>>();
+    // Connection keeps the identity equality, in opening order
+    private final Map<Connection, Pooled> leased
+            = new LinkedHashMap<Connection, Pooled>();
+    private final ScheduledExecutorService reaper;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong channelHits = new AtomicLong();
+    private final AtomicLong channelMisses = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    private static class Pooled implements ConnectionMonitor {
+
+        final String key;
+        final String password;
+        final CountDownLatch opened = new CountDownLatch(1);
+        volatile Connection conn = null;
+        final Deque<SFTPv3Client> channels = new ArrayDeque<SFTPv3Client>();
+        volatile Exception failure = null;
+        int refs = 0;
+        long lastUsed = System.currentTimeMillis();
+        volatile boolean lost = false;
+
+        Pooled(String key, String password) {
+            this.key = key;
+            this.password = password;
+        }
+
+        /**
+         * Wait for the connection being opened by another caller
+         */
+        Connection await() throws IOException, AuthenticationFailedException {
+            try {
+                opened.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while connecting to '" + key + "'");
+            }
+            if (failure instanceof AuthenticationFailedException) {
+                throw new AuthenticationFailedException(failure.getMessage(), failure);
+            }
+            if (null != failure) {
+                throw new IOException("Unable to connect to '" + key + "'", failure);
+            }
+            return conn;
+        }
+
+        @Override
+        public void connectionLost(Throwable reason) {
+            lost = true;
+        }
+    }
+
+    ToscaSftpConnectionPool(long idleMs, int maxConnections) {
+        this.idleMs = idleMs;
+        this.maxConnections = maxConnections;
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tosca-sftp-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdle();
+            }
+        }, REAP_PERIOD_MS, REAP_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the connection pool, creating it on first use; idle timeout
+     * and size are updated with the given values.
+     *
+     * @param idleMs Idle time in milliseconds before closing a connection
+     * @param maxConnections Number of connections above which idle ones are
+     * closed at once
+     * @return The shared pool instance
+     */
+    public static synchronized ToscaSftpConnectionPool getInstance(long idleMs,
+            int maxConnections) {
+        if (null == instance) {
+            instance = new ToscaSftpConnectionPool(idleMs, maxConnections);
+            log.debug("Created SFTP connection pool (idle: " + idleMs + "ms"
+                    + ", max: " + maxConnections + ")");
+        } else {
+            instance.configure(idleMs, maxConnections);
+        }
+        return instance;
+    }
+
+    public synchronized void configure(long idleMs, int maxConnections) {
+        this.idleMs = idleMs;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Take an authenticated connection to the given node; it must be given
+     * back with release
+     *
+     * @param host Node address
+     * @param port SSH port
+     * @param username SSH username
+     * @param password SSH password
+     * @return The connection
+     * @throws IOException If the node cannot be reached
+     * @throws AuthenticationFailedException If the node refused the
+     * credentials
+     */
+    public Connection acquire(String host, int port, String username, String password)
+            throws IOException, AuthenticationFailedException {
+        String key = username + "@" + host + ":" + port;
+        while (true) {
+            Pooled pooled = null;
+            boolean opener = false;
+            boolean check = false;
+            synchronized (this) {
+                List<Pooled> list = pools.get(key);
+                if (null == list) {
+                    list = new ArrayList<Pooled>(1);
+                    pools.put(key, list);
+                }
+                for (Pooled p : list) {
+                    // A new deployment may reuse the address with new credentials
+                    if (!p.lost && p.refs < MAX_SHARES && equals(p.password, password)) {
+                        pooled = p;
+                        break;
+                    }
+                }
+                if (null == pooled) {
+                    // Callers arriving while it is opened share the new connection
+                    pooled = new Pooled(key, password);
+                    list.add(pooled);
+                    opener = true;
+                } else {
+                    check = pooled.refs == 0 && null != pooled.conn
+                            && System.currentTimeMillis() - pooled.lastUsed > CHECK_AFTER_MS;
+                }
+                pooled.refs++;
+                pooled.lastUsed = System.currentTimeMillis();
+            }
+            if (opener) {
+                misses.incrementAndGet();
+                return open(pooled, host, port, username, password);
+            }
+            Connection conn;
+            try {
+                conn = pooled.await();
+            } catch (IOException ex) {
+                unref(pooled);
+                throw ex;
+            } catch (AuthenticationFailedException ex) {
+                unref(pooled);
+                throw ex;
+            }
+            if (!check || isAlive(conn)) {
+                hits.incrementAndGet();
+                return conn;
+            }
+            log.debug("SFTP connection '" + key + "' is dead");
+            reconnects.incrementAndGet();
+            pooled.lost = true;
+            release(conn);
+        }
+    }
+
+    /**
+     * Give back a connection taken with acquire
+     *
+     * @param conn The connection
+     */
+    public void release(Connection conn) {
+        Pooled pooled;
+        synchronized (this) {
+            pooled = leased.get(conn);
+        }
+        if (null != pooled) {
+            unref(pooled);
+        }
+    }
+
+    /**
+     * Take an SFTP channel on a connection given by acquire, opening a new
+     * one if none is idle; it must be given back with releaseChannel
+     *
+     * @param conn The connection
+     * @return The channel
+     * @throws IOException If the channel cannot be opened
+     */
+    public SFTPv3Client acquireChannel(Connection conn) throws IOException {
+        SFTPv3Client sftp = null;
+        synchronized (this) {
+            Pooled pooled = leased.get(conn);
+            if (null != pooled) {
+                sftp = pooled.channels.pollFirst();
+            }
+        }
+        if (null != sftp) {
+            channelHits.incrementAndGet();
+            return sftp;
+        }
+        channelMisses.incrementAndGet();
+        return new SFTPv3Client(conn);
+    }
+
+    /**
+     * Give back a channel taken with acquireChannel
+     *
+     * @param conn The connection of the channel
+     * @param sftp The channel
+     * @param reusable false to close the channel, when it may hold open
+     * file handles or it failed
+     */
+    public void releaseChannel(Connection conn, SFTPv3Client sftp, boolean reusable) {
+        synchronized (this) {
+            Pooled pooled = leased.get(conn);
+            if (reusable && null != pooled && !pooled.lost
+                    && pooled.channels.size() < MAX_IDLE_CHANNELS) {
+                pooled.channels.addFirst(sftp);
+                return;
+            }
+        }
+        sftp.close();
+    }
+
+    private void unref(Pooled pooled) {
+        synchronized (this) {
+            pooled.refs--;
+            pooled.lastUsed = System.currentTimeMillis();
+            if (pooled.refs > 0 || !(pooled.lost || null != pooled.failure)) {
+                return;
+            }
+            remove(pooled);
+        }
+        if (null != pooled.conn) {
+            close(pooled);
+        }
+    }
+
+    /**
+     * Open the connection of a new pool entry, waking up the callers
+     * waiting for it
+     */
+    private Connection open(Pooled pooled, String host, int port,
+            String username, String password)
+            throws IOException, AuthenticationFailedException {
+        // Includes the TCP connection, key exchange and authentication
+        ToscaMetric metric = ToscaMetrics.timer(ToscaMetrics.SSH_CONNECT);
+        long start = System.currentTimeMillis();
+        Connection conn = new Connection(host, port);
+        try {
+            // SFTP is request/response: do not let Nagle delay the requests
+            conn.setTCPNoDelay(true);
+            conn.connect(null);
+            if (!conn.authenticateWithPassword(username, password)) {
+                throw new AuthenticationFailedException("Authentication failed for '"
+                        + pooled.key + "'");
+            }
+        } catch (IOException ex) {
+            failed(pooled, conn, metric, ex);
+            throw ex;
+        } catch (AuthenticationFailedException ex) {
+            failed(pooled, conn, metric, ex);
+            throw ex;
+        }
+        metric.recordSince(start);
+        conn.addConnectionMonitor(pooled);
+        List<Pooled> idle;
+        synchronized (this) {
+            pooled.conn = conn;
+            leased.put(conn, pooled);
+            idle = trim();
+        }
+        pooled.opened.countDown();
+        close(idle);
+        return conn;
+    }
+
+    private void failed(Pooled pooled, Connection conn, ToscaMetric metric, Exception ex) {
+        metric.recordError();
+        conn.close();
+        pooled.failure = ex;
+        pooled.lost = true;
+        pooled.opened.countDown();
+        unref(pooled);
+    }
+
+    private static boolean isAlive(Connection conn) {
+        try {
+            conn.sendIgnorePacket();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } catch (IllegalStateException ex) {
+            return false;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return (null == a) ? null == b : a.equals(b);
+    }
+
+    private void remove(Pooled pooled) {
+        leased.remove(pooled.conn);
+        List<Pooled> list = pools.get(pooled.key);
+        if (null != list) {
+            list.remove(pooled);
+            if (list.isEmpty()) {
+                pools.remove(pooled.key);
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest unused connections above the maximum
+     */
+    private List<Pooled> trim() {
+        List<Pooled> idle = new ArrayList<Pooled>();
+        int excess = leased.size() - Math.max(1, maxConnections);
+        Iterator<Pooled> it = leased.values().iterator();
+        while (excess > 0 && it.hasNext()) {
+            Pooled p = it.next();
+            if (p.refs == 0) {
+                idle.add(p);
+                excess--;
+            }
+        }
+        for (Pooled p : idle) {
+            remove(p);
+        }
+        return idle;
+    }
+
+    /**
+     * Close the connections unused since more than the idle timeout, and
+     * the lost ones
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        List<Pooled> idle = new ArrayList<Pooled>();
+        synchronized (this) {
+            for (Pooled p : leased.values()) {
+                if (p.refs == 0 && (p.lost || now - p.lastUsed > idleMs)) {
+                    idle.add(p);
+                }
+            }
+            for (Pooled p : idle) {
+                remove(p);
+            }
+        }
+        close(idle);
+    }
+
+    private void close(List<Pooled> connections) {
+        for (Pooled p : connections) {
+            close(p);
+        }
+    }
+
+    private void close(Pooled pooled) {
+        log.debug("Closing SFTP connection '" + pooled.key + "'");
+        pooled.conn.close();
+        closed.incrementAndGet();
+    }
+
+    public synchronized int size() {
+        return leased.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getClosed() {
+        return closed.get();
+    }
+
+    public long getChannelHits() {
+        return channelHits.get();
+    }
+
+    public long getChannelMisses() {
+        return channelMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaSftpConnectionPool[size=" + size() + "/" + maxConnections
+                + ", idle=" + idleMs + "ms"
+                + ", hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", channel hits=" + getChannelHits()
+                + ", channel misses=" + getChannelMisses()
+                + ", reconnects=" + getReconnects()
+                + ", closed=" + getClosed() + "]";
+    }
+}
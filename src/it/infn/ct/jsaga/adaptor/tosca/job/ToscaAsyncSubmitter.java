@@ -0,0 +1,304 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import org.apache.log4j.Logger;
+import org.ogf.saga.error.NoSuccessException;
+import org.ogf.saga.error.SagaException;
+
+/**
+ * Keeps track of the jobs submitted in asynchronous mode: the job id is
+ * returned as soon as the deployment is requested, then the SSH submission
+ * runs on a background thread once the deployment is ready.
+ * Submissions are indexed by job id, since jobs sharing a deployment have
+ * the same TOSCA UUID, and removed once the SSH job exists; failed or
+ * canceled ones stay until the job is cleaned.
+ */
+public class ToscaAsyncSubmitter {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaAsyncSubmitter.class);
+
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final Map<String, Submission> submissions
+            = new ConcurrentHashMap<String, Submission>();
+
+    // Number of submissions of each deployment
+    private static final Map<String, Integer> byUuid
+            = new HashMap<String, Integer>();
+
+    private static ExecutorService executor = null;
+
+    /**
+     * SSH submission performed once the deployment is ready
+     */
+    public interface Task {
+
+        void submit(ToscaDeploymentInfo deployment) throws SagaException;
+
+        void failed(SagaException cause);
+    }
+
+    /**
+     * State of a single asynchronous submission
+     */
+    public static class Submission {
+
+        private final String nativeJobId;
+        private final String toscaUUID;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String state = ToscaJobStatus.PROVISIONING;
+        private volatile SagaException cause = null;
+
+        Submission(String nativeJobId, String toscaUUID) {
+            this.nativeJobId = nativeJobId;
+            this.toscaUUID = toscaUUID;
+        }
+
+        public String getNativeJobId() {
+            return nativeJobId;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public SagaException getCause() {
+            return cause;
+        }
+
+        public ToscaJobStatus getStatus() {
+            return (null != cause)
+                    ? new ToscaJobStatus(nativeJobId, state, cause.getMessage())
+                    : new ToscaJobStatus(nativeJobId, state);
+        }
+
+        /**
+         * Wait until the SSH job exists
+         *
+         * @throws NoSuccessException If provisioning or submission failed
+         */
+        public void await() throws NoSuccessException {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new NoSuccessException("Interrupted while waiting for job submission");
+            }
+            if (null != cause) {
+                throw new NoSuccessException("Job '" + nativeJobId + "' not submitted", cause);
+            }
+            if (ToscaJobStatus.CANCELED.equals(state)) {
+                throw new NoSuccessException("Job '" + nativeJobId + "' canceled");
+            }
+        }
+
+        /**
+         * Cancel the submission while the deployment is being provisioned
+         *
+         * @return true if canceled, false if the SSH submission already
+         * started or the submission is over
+         */
+        public synchronized boolean cancel() {
+            if (!ToscaJobStatus.PROVISIONING.equals(state)) {
+                return false;
+            }
+            finish(ToscaJobStatus.CANCELED, null);
+            return true;
+        }
+
+        synchronized boolean begin() {
+            if (!ToscaJobStatus.PROVISIONING.equals(state)) {
+                return false;
+            }
+            state = ToscaJobStatus.SUBMITTING;
+            return true;
+        }
+
+        synchronized void finish(String state, SagaException cause) {
+            if (done.getCount() == 0) {
+                return;
+            }
+            this.cause = cause;
+            this.state = state;
+            done.countDown();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor(int threads) {
+        if (null == executor) {
+            executor = ToscaExecutors.newBlockingPool("tosca-async-submit", threads);
+        }
+        return executor;
+    }
+
+    /**
+     * Register a job and run its SSH submission once the deployment is ready
+     *
+     * @param nativeJobId The job id already returned to the caller
+     * @param future The deployment watch
+     * @param task The SSH submission
+     * @param threads Size of the submission pool, used on first call only
+     * @return The submission state
+     */
+    public static Submission submit(String nativeJobId,
+            final ToscaDeploymentFuture future,
+            final Task task,
+            int threads) {
+        final Submission submission
+                = new Submission(nativeJobId, future.getToscaUUID());
+        add(submission);
+        final ExecutorService submitter = getExecutor(threads);
+        // No thread is held while the deployment is being provisioned
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                submitter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(submission, future, task);
+                    }
+                });
+            }
+        });
+        return submission;
+    }
+
+    private static void process(Submission submission,
+            ToscaDeploymentFuture future,
+            Task task) {
+        ToscaDeploymentInfo deployment;
+        try {
+            deployment = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(submission, task, new NoSuccessException(ex));
+            return;
+        } catch (ExecutionException ex) {
+            if (future.isCancelled()) {
+                submission.cancel();
+                return;
+            }
+            fail(submission, task, (ex.getCause() instanceof SagaException)
+                    ? (SagaException) ex.getCause()
+                    : new NoSuccessException(ex.getCause()));
+            return;
+        }
+        if (!submission.begin()) {
+            return;
+        }
+        try {
+            task.submit(deployment);
+            remove(submission.nativeJobId);
+            submission.finish(ToscaJobStatus.SUBMITTED, null);
+            log.debug("Asynchronous job '" + submission.nativeJobId + "' submitted");
+        } catch (SagaException ex) {
+            fail(submission, task, ex);
+        } catch (RuntimeException ex) {
+            fail(submission, task, new NoSuccessException(ex));
+        }
+    }
+
+    private static void fail(Submission submission, Task task, SagaException cause) {
+        log.error("Asynchronous job '" + submission.nativeJobId + "' failed: " + cause);
+        submission.finish(ToscaJobStatus.FAILED, cause);
+        task.failed(cause);
+    }
+
+    /**
+     * @return The id without node address, or null if the id cannot be
+     * decoded, in which case no submission can match it
+     */
+    private static String key(String nativeJobId) {
+        ToscaJobId jobId;
+        try {
+            jobId = ToscaJobId.parse(nativeJobId);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return new ToscaJobId(jobId.getSshJobId(), jobId.getToscaUUID()).toString();
+    }
+
+    private static void add(Submission submission) {
+        synchronized (byUuid) {
+            if (null != submissions.put(key(submission.nativeJobId), submission)) {
+                return;
+            }
+            Integer count = byUuid.get(submission.toscaUUID);
+            byUuid.put(submission.toscaUUID, (null != count) ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * @param nativeJobId Job id
+     * @return The pending submission or null once the SSH job exists
+     */
+    public static Submission get(String nativeJobId) {
+        String key = key(nativeJobId);
+        return (null != key) ? submissions.get(key) : null;
+    }
+
+    public static void remove(String nativeJobId) {
+        String key = key(nativeJobId);
+        if (null == key) {
+            return;
+        }
+        synchronized (byUuid) {
+            Submission submission = submissions.remove(key);
+            if (null == submission) {
+                return;
+            }
+            Integer count = byUuid.get(submission.toscaUUID);
+            if (null == count || count <= 1) {
+                byUuid.remove(submission.toscaUUID);
+            } else {
+                byUuid.put(submission.toscaUUID, count - 1);
+            }
+        }
+    }
+
+    /**
+     * @param toscaUUID Deployment UUID
+     * @return true if a job of the deployment has a submission state
+     */
+    public static boolean hasPending(String toscaUUID) {
+        synchronized (byUuid) {
+            return byUuid.containsKey(toscaUUID);
+        }
+    }
+
+    public static int getPending() {
+        return submissions.size();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import java.util.Random;
+
+/**
+ * Backoff policy bounded by an overall deadline. The first check happens
+ * after a short initial interval, so that fast failures are noticed early,
+ * then the interval grows geometrically with the elapsed time up to a cap.
+ * When the expected provisioning time of the template is known, a check
+ * is placed shortly before it and the backoff restarts from there, so the
+ * checks are dense around the expected completion.
+ */
+public class ToscaBackoffPollingPolicy implements ToscaPollingPolicy {
+
+    public static final long DEFAULT_INITIAL_MS = 2000;
+    public static final long DEFAULT_MAX_MS = 30000;
+    public static final double DEFAULT_FACTOR = 1.5;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    // Checks tighten from this fraction of the expected provisioning time
+    private static final double EXPECTED_LEAD = 0.8;
+
+    private static final Random random = new Random();
+
+    private final long initialMs;
+    private final long maxMs;
+    private final double factor;
+    private final double jitter;
+    private final long deadlineMs;
+    private final long expectedMs;
+
+    /**
+     * @param initialMs First and minimum interval between checks
+     * @param maxMs Maximum interval between checks
+     * @param factor Growth factor of the interval
+     * @param jitter Random fraction (0-1) subtracted to each interval
+     * @param deadlineMs Overall time limit for the deployment creation
+     * @param expectedMs Expected provisioning time or 0 when unknown
+     */
+    public ToscaBackoffPollingPolicy(long initialMs,
+            long maxMs,
+            double factor,
+            double jitter,
+            long deadlineMs,
+            long expectedMs) {
+        this.initialMs = Math.max(1, initialMs);
+        this.maxMs = Math.max(this.initialMs, maxMs);
+        this.factor = Math.max(1.0, factor);
+        this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+        this.deadlineMs = deadlineMs;
+        this.expectedMs = Math.max(0, expectedMs);
+    }
+
+    @Override
+    public long nextDelay(int attempt, long elapsedMs) {
+        long remaining = deadlineMs - elapsedMs;
+        if (remaining <= 0) {
+            return -1;
+        }
+        long delay = backoff(elapsedMs);
+        if (expectedMs > 0) {
+            long start = (long) (expectedMs * EXPECTED_LEAD);
+            delay = (elapsedMs < start)
+                    ? Math.min(delay, start - elapsedMs)
+                    : Math.min(delay, backoff(elapsedMs - start));
+        }
+        if (jitter > 0) {
+            delay -= (long) (delay * jitter * random.nextDouble());
+        }
+        return Math.max(1, Math.min(delay, remaining));
+    }
+
+    /**
+     * Interval after the given time since the backoff started
+     */
+    private long backoff(long sinceMs) {
+        long delay = (long) (sinceMs * (factor - 1.0));
+        return Math.min(maxMs, Math.max(initialMs, delay));
+    }
+
+    @Override
+    public String toString() {
+        return "backoff(initial=" + initialMs + "ms"
+                + ", max=" + maxMs + "ms"
+                + ", factor=" + factor
+                + ", jitter=" + jitter
+                + ", deadline=" + deadlineMs + "ms"
+                + ", expected=" + expectedMs + "ms)";
+    }
+}
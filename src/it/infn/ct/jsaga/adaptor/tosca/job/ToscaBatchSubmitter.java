@@ -0,0 +1,424 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+import org.ogf.saga.error.NoSuccessException;
+import org.ogf.saga.error.SagaException;
+
+/**
+ * Submits many jobs as a three stage pipeline: deployment creation, readiness
+ * wait and SSH submission. Each stage has its own concurrency limit: the
+ * number of threads sending deployment requests, the number of deployments
+ * being provisioned at the same time and the number of threads submitting
+ * to SSH. Readiness waits hold no thread, a ready deployment is handed over
+ * to the SSH stage by its watch. A failed job does not stop the others.
+ */
+public class ToscaBatchSubmitter {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaBatchSubmitter.class);
+
+    public static final int DEFAULT_POST_THREADS = 4;
+    public static final int DEFAULT_WAIT_SLOTS = 16;
+    public static final int DEFAULT_SSH_THREADS = 4;
+
+    public static final String STAGE_POST = "POST";
+    public static final String STAGE_WAIT = "WAIT";
+    public static final String STAGE_SSH = "SSH";
+
+    private final int postThreads;
+    private final int waitSlots;
+    private final int sshThreads;
+
+    /**
+     * Stage actions, provided by the job control adaptor
+     */
+    public interface Stages {
+
+        /**
+         * Obtain a deployment for the job, creating it if needed
+         *
+         * @param job The job
+         * @return The deployment watch, already completed when reused
+         */
+        ToscaDeploymentFuture deploy(Job job) throws SagaException;
+
+        /**
+         * Submit the job to the node of its ready deployment
+         *
+         * @param job The job
+         * @param deployment The ready deployment
+         * @return The native job id
+         */
+        String submit(Job job, ToscaDeploymentInfo deployment)
+                throws SagaException;
+
+        /**
+         * Release the deployment of a failed job
+         *
+         * @param job The job
+         * @param toscaUUID The deployment, or null if none was created
+         */
+        void failed(Job job, String toscaUUID);
+    }
+
+    /**
+     * A job of the batch with its result and stage timings
+     */
+    public static class Job {
+
+        private final int index;
+        private final String jobDesc;
+        private final boolean checkMatch;
+        private final String uniqId;
+        private volatile long provisionStart = -1;
+        private volatile String toscaUUID = null;
+        private volatile String nativeJobId = null;
+        private volatile SagaException failure = null;
+        private volatile String failedStage = null;
+        private volatile long postMs = 0;
+        private volatile long waitMs = 0;
+        private volatile long sshMs = 0;
+
+        Job(int index, String jobDesc, boolean checkMatch, String uniqId) {
+            this.index = index;
+            this.jobDesc = jobDesc;
+            this.checkMatch = checkMatch;
+            this.uniqId = uniqId;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getJobDesc() {
+            return jobDesc;
+        }
+
+        public boolean isCheckMatch() {
+            return checkMatch;
+        }
+
+        public String getUniqId() {
+            return uniqId;
+        }
+
+        /**
+         * @return When the deployment was requested, or -1 if it was reused
+         */
+        public long getProvisionStart() {
+            return provisionStart;
+        }
+
+        public void setProvisionStart(long provisionStart) {
+            this.provisionStart = provisionStart;
+        }
+
+        public String getToscaUUID() {
+            return toscaUUID;
+        }
+
+        /**
+         * @return The native job id, or null if the job failed
+         */
+        public String getNativeJobId() {
+            return nativeJobId;
+        }
+
+        public SagaException getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return The stage the job failed in, or null
+         */
+        public String getFailedStage() {
+            return failedStage;
+        }
+
+        public boolean isSubmitted() {
+            return null != nativeJobId;
+        }
+
+        public long getPostMs() {
+            return postMs;
+        }
+
+        public long getWaitMs() {
+            return waitMs;
+        }
+
+        public long getSshMs() {
+            return sshMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Job[" + index + ", " + (isSubmitted()
+                    ? nativeJobId
+                    : "failed in " + failedStage + ": " + failure)
+                    + ", post=" + postMs + "ms"
+                    + ", wait=" + waitMs + "ms"
+                    + ", ssh=" + sshMs + "ms]";
+        }
+    }
+
+    /**
+     * Outcome of a batch, jobs are in submission order
+     */
+    public static class Report {
+
+        private final List<Job> jobs;
+        private final long elapsedMs;
+
+        Report(List<Job> jobs, long elapsedMs) {
+            this.jobs = Collections.unmodifiableList(jobs);
+            this.elapsedMs = elapsedMs;
+        }
+
+        public List<Job> getJobs() {
+            return jobs;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        public int getSubmitted() {
+            int n = 0;
+            for (Job job : jobs) {
+                if (job.isSubmitted()) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        public int getFailed() {
+            return jobs.size() - getSubmitted();
+        }
+
+        /**
+         * @return Submitted jobs per second, end to end
+         */
+        public double getThroughput() {
+            return (elapsedMs > 0) ? getSubmitted() * 1000.0 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Batch[" + jobs.size() + " jobs"
+                    + ", submitted=" + getSubmitted()
+                    + ", failed=" + getFailed()
+                    + ", elapsed=" + elapsedMs + "ms"
+                    + ", throughput=" + String.format("%.2f", getThroughput())
+                    + " jobs/s]";
+        }
+    }
+
+    /**
+     * @param postThreads Threads sending deployment requests
+     * @param waitSlots Deployments being provisioned at the same time
+     * @param sshThreads Threads submitting jobs to SSH
+     */
+    public ToscaBatchSubmitter(int postThreads, int waitSlots, int sshThreads) {
+        this.postThreads = Math.max(1, postThreads);
+        this.waitSlots = Math.max(1, waitSlots);
+        this.sshThreads = Math.max(1, sshThreads);
+    }
+
+    /**
+     * Submit the jobs and wait for all of them to be submitted or failed
+     *
+     * @param jobDescs Job descriptions
+     * @param checkMatch Passed to each SSH submission
+     * @param uniqIds Unique id of each job
+     * @param stages Stage actions
+     * @return The batch report
+     * @throws NoSuccessException If interrupted; jobs already in the
+     * pipeline keep going in background
+     */
+    public Report submit(String[] jobDescs,
+            boolean checkMatch,
+            String[] uniqIds,
+            final Stages stages) throws NoSuccessException {
+        if (jobDescs.length != uniqIds.length) {
+            throw new IllegalArgumentException("Got " + jobDescs.length
+                    + " job descriptions and " + uniqIds.length + " ids");
+        }
+        long start = System.currentTimeMillis();
+        final List<Job> jobs = new ArrayList<Job>(jobDescs.length);
+        for (int i = 0; i < jobDescs.length; i++) {
+            jobs.add(new Job(i, jobDescs[i], checkMatch, uniqIds[i]));
+        }
+        final CountDownLatch done = new CountDownLatch(jobs.size());
+        final Semaphore provisioning = new Semaphore(waitSlots);
+        final ExecutorService posters
+                = ToscaExecutors.newBoundedPool("tosca-batch-post", postThreads);
+        final ExecutorService submitters
+                = ToscaExecutors.newBoundedPool("tosca-batch-ssh", sshThreads);
+        log.debug("Batch of " + jobs.size() + " jobs (post: " + postThreads
+                + ", wait: " + waitSlots + ", ssh: " + sshThreads + ")");
+        try {
+            for (final Job job : jobs) {
+                posters.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deploy(job, stages, provisioning, submitters, done);
+                    }
+                });
+            }
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            // Deployments being provisioned still need the SSH pool; queued
+            // after every deployment request, this shuts the pools down
+            // once the last job is over
+            posters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        done.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    submitters.shutdown();
+                }
+            });
+            posters.shutdown();
+            throw new NoSuccessException("Interrupted while submitting the batch");
+        }
+        posters.shutdown();
+        submitters.shutdown();
+        Report report = new Report(jobs, System.currentTimeMillis() - start);
+        log.info(report.toString());
+        return report;
+    }
+
+    private void deploy(final Job job,
+            final Stages stages,
+            final Semaphore provisioning,
+            final ExecutorService submitters,
+            final CountDownLatch done) {
+        try {
+            provisioning.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(job, STAGE_POST, new NoSuccessException(ex), stages, done);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        final ToscaDeploymentFuture future;
+        try {
+            future = stages.deploy(job);
+        } catch (SagaException ex) {
+            provisioning.release();
+            fail(job, STAGE_POST, ex, stages, done);
+            return;
+        } catch (RuntimeException ex) {
+            provisioning.release();
+            fail(job, STAGE_POST, new NoSuccessException(ex), stages, done);
+            return;
+        }
+        final long posted = System.currentTimeMillis();
+        job.postMs = posted - start;
+        job.toscaUUID = future.getToscaUUID();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                provisioning.release();
+                job.waitMs = System.currentTimeMillis() - posted;
+                try {
+                    submitters.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            submit(job, future, stages, done);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    fail(job, STAGE_WAIT, new NoSuccessException(ex), stages, done);
+                }
+            }
+        });
+    }
+
+    private void submit(Job job,
+            ToscaDeploymentFuture future,
+            Stages stages,
+            CountDownLatch done) {
+        ToscaDeploymentInfo deployment;
+        try {
+            deployment = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(job, STAGE_WAIT, new NoSuccessException(ex), stages, done);
+            return;
+        } catch (ExecutionException ex) {
+            fail(job, STAGE_WAIT, (ex.getCause() instanceof SagaException)
+                    ? (SagaException) ex.getCause()
+                    : new NoSuccessException(ex.getCause()), stages, done);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            job.nativeJobId = stages.submit(job, deployment);
+            job.sshMs = System.currentTimeMillis() - start;
+            log.debug("Batch job " + job.index + " submitted: '" + job.nativeJobId + "'");
+            done.countDown();
+        } catch (SagaException ex) {
+            job.sshMs = System.currentTimeMillis() - start;
+            fail(job, STAGE_SSH, ex, stages, done);
+        } catch (RuntimeException ex) {
+            job.sshMs = System.currentTimeMillis() - start;
+            fail(job, STAGE_SSH, new NoSuccessException(ex), stages, done);
+        }
+    }
+
+    private static void fail(Job job,
+            String stage,
+            SagaException cause,
+            Stages stages,
+            CountDownLatch done) {
+        log.error("Batch job " + job.index + " failed in " + stage + ": " + cause);
+        job.failure = cause;
+        job.failedStage = stage;
+        try {
+            stages.failed(job, job.toscaUUID);
+        } finally {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.ogf.saga.error.SagaException;
+
+/**
+ * Result of a deployment watch; completed by the ToscaDeploymentWatcher when
+ * the deployment reaches CREATE_COMPLETE, or failed with the SAGA exception
+ * describing why it did not.
+ */
+public class ToscaDeploymentFuture implements Future<ToscaDeploymentInfo> {
+
+    private final String toscaUUID;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile ToscaDeploymentInfo deployment = null;
+    private volatile SagaException failure = null;
+    private volatile boolean cancelled = false;
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+    public ToscaDeploymentFuture(String toscaUUID) {
+        this.toscaUUID = toscaUUID;
+    }
+
+    public String getToscaUUID() {
+        return toscaUUID;
+    }
+
+    /**
+     * Register an action to run once the watch is done; it runs on the
+     * thread completing the future, or immediately if already done, so it
+     * must only hand the work over to another executor.
+     *
+     * @param listener The completion action
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    boolean complete(ToscaDeploymentInfo deployment) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.deployment = deployment;
+            done.countDown();
+        }
+        fireListeners();
+        return true;
+    }
+
+    boolean fail(SagaException failure) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.failure = failure;
+            done.countDown();
+        }
+        fireListeners();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+        }
+        fireListeners();
+        return true;
+    }
+
+    private void fireListeners() {
+        List<Runnable> fired;
+        synchronized (this) {
+            fired = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : fired) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public ToscaDeploymentInfo get()
+            throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public ToscaDeploymentInfo get(long timeout, TimeUnit unit)
+            throws InterruptedException,
+            ExecutionException,
+            java.util.concurrent.TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new java.util.concurrent.TimeoutException(
+                    "Deployment '" + toscaUUID + "' not yet ready");
+        }
+        return result();
+    }
+
+    private ToscaDeploymentInfo result() throws ExecutionException {
+        if (cancelled) {
+            throw new ExecutionException(
+                    new IllegalStateException("Watch cancelled"));
+        }
+        if (null != failure) {
+            throw new ExecutionException(failure);
+        }
+        return deployment;
+    }
+}
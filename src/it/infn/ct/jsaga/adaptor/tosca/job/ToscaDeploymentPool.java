@@ -0,0 +1,372 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.ogf.saga.error.SagaException;
+
+/**
+ * Warm pool of ready deployments created from the same TOSCA template.
+ * The pool keeps at least 'min' ready deployments and grows on misses up
+ * to 'max' deployments, ready or being created; deployments idle for more
+ * than the idle timeout are retired down to 'min'. Refills are
+ * asynchronous, so taking a deployment from the pool never blocks.
+ */
+public class ToscaDeploymentPool {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaDeploymentPool.class);
+
+    public static final long DEFAULT_IDLE_MS = 600000;
+    private static final long RETIRE_PERIOD_MS = 10000;
+
+    private static final Map<String, ToscaDeploymentPool> pools
+            = new HashMap<String, ToscaDeploymentPool>();
+
+    private static final ScheduledExecutorService scheduler
+            = Executors.newSingleThreadScheduledExecutor(
+                    ToscaDeploymentWatcher.daemonThreads("tosca-pool"));
+
+    /**
+     * Creates and releases the pool deployments
+     */
+    public interface Provisioner {
+
+        /**
+         * Request a new deployment to the orchestrator
+         *
+         * @return The watch completed when the deployment is ready
+         * @throws SagaException If the orchestrator refused the request
+         */
+        ToscaDeploymentFuture provision() throws SagaException;
+
+        void release(String toscaUUID);
+    }
+
+    private static class Entry {
+
+        final ToscaDeploymentInfo deployment;
+        final long readySince;
+
+        Entry(ToscaDeploymentInfo deployment, long readySince) {
+            this.deployment = deployment;
+            this.readySince = readySince;
+        }
+    }
+
+    private final String name;
+    private volatile Provisioner provisioner;
+    private int min;
+    private int max;
+    private long idleMs;
+    private int target;
+    private int provisioning = 0;
+    private final Deque<Entry> ready = new ArrayDeque<Entry>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillFailures = new AtomicLong();
+    private final AtomicLong refillTotalMs = new AtomicLong();
+    private final AtomicLong idleTotalMs = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+
+    ToscaDeploymentPool(String name, int min, int max, long idleMs) {
+        this.name = name;
+        configure(min, max, idleMs);
+        this.target = this.min;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                retire();
+            }
+        }, RETIRE_PERIOD_MS, RETIRE_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the pool of the given end-point and template, creating it on
+     * first use; the last connected adaptor configuration wins.
+     *
+     * @param endpoint Orchestrator deployments end-point
+     * @param template TOSCA template path
+     * @param min Ready deployments to keep
+     * @param max Maximum deployments owned by the pool
+     * @param idleMs Idle time before retiring a deployment above min
+     * @param provisioner Deployment factory
+     * @return The shared pool instance
+     */
+    public static ToscaDeploymentPool getInstance(String endpoint,
+            String template,
+            int min,
+            int max,
+            long idleMs,
+            Provisioner provisioner) {
+        String key = endpoint + "|" + template;
+        ToscaDeploymentPool pool;
+        synchronized (pools) {
+            pool = pools.get(key);
+            if (null == pool) {
+                pool = new ToscaDeploymentPool(key, min, max, idleMs);
+                pools.put(key, pool);
+                log.debug("Created deployment pool for '" + key + "'"
+                        + " (min: " + min + ", max: " + max
+                        + ", idle: " + idleMs + "ms)");
+            } else {
+                pool.configure(min, max, idleMs);
+            }
+        }
+        pool.provisioner = provisioner;
+        pool.refill();
+        return pool;
+    }
+
+    public final synchronized void configure(int min, int max, long idleMs) {
+        this.min = Math.max(0, min);
+        this.max = Math.max(this.min, max);
+        this.idleMs = idleMs;
+        target = Math.min(Math.max(target, this.min), this.max);
+    }
+
+    /**
+     * Take a ready deployment; the pool is refilled in background
+     *
+     * @return A ready deployment or null if none is available
+     */
+    public ToscaDeploymentInfo take() {
+        Entry entry;
+        synchronized (this) {
+            entry = ready.pollFirst();
+            if (null == entry && target < max) {
+                target++;
+            }
+        }
+        refill();
+        if (null == entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        idleTotalMs.addAndGet(System.currentTimeMillis() - entry.readySince);
+        log.debug("Deployment '" + entry.deployment.getUuid() + "' taken from pool '" + name + "'");
+        return entry.deployment;
+    }
+
+    /**
+     * Start the creation of the missing deployments
+     */
+    private void refill() {
+        int missing;
+        synchronized (this) {
+            missing = target - ready.size() - provisioning;
+            if (missing <= 0) {
+                return;
+            }
+            provisioning += missing;
+        }
+        for (int i = 0; i < missing; i++) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    provision();
+                }
+            });
+        }
+    }
+
+    private void provision() {
+        final long start = System.currentTimeMillis();
+        final ToscaDeploymentFuture future;
+        try {
+            future = provisioner.provision();
+        } catch (SagaException ex) {
+            log.warn("Pool '" + name + "' refill failed: " + ex.getMessage());
+            refillFailures.incrementAndGet();
+            synchronized (this) {
+                provisioning--;
+            }
+            return;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                provisioned(future, start);
+            }
+        });
+    }
+
+    private void provisioned(ToscaDeploymentFuture future, long start) {
+        ToscaDeploymentInfo deployment = null;
+        try {
+            deployment = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            log.warn("Pool '" + name + "' deployment '" + future.getToscaUUID()
+                    + "' failed: " + ex.getCause());
+        }
+        synchronized (this) {
+            provisioning--;
+            if (null != deployment) {
+                long now = System.currentTimeMillis();
+                refills.incrementAndGet();
+                refillTotalMs.addAndGet(now - start);
+                ready.addLast(new Entry(deployment, now));
+                return;
+            }
+        }
+        refillFailures.incrementAndGet();
+        provisioner.release(future.getToscaUUID());
+    }
+
+    /**
+     * Release the deployments idle since too long, keeping at least min
+     */
+    private void retire() {
+        long now = System.currentTimeMillis();
+        Deque<Entry> expired = new ArrayDeque<Entry>();
+        synchronized (this) {
+            Iterator<Entry> it = ready.iterator();
+            while (ready.size() > min && it.hasNext()) {
+                Entry entry = it.next();
+                if (now - entry.readySince > idleMs) {
+                    it.remove();
+                    expired.add(entry);
+                    if (target > min) {
+                        target--;
+                    }
+                }
+            }
+        }
+        for (Entry entry : expired) {
+            log.debug("Retiring idle deployment '" + entry.deployment.getUuid()
+                    + "' from pool '" + name + "'");
+            retired.incrementAndGet();
+            provisioner.release(entry.deployment.getUuid());
+        }
+    }
+
+    /**
+     * @param toscaUUID Deployment UUID
+     * @return true if the deployment is ready in one of the pools
+     */
+    public static boolean isPooled(String toscaUUID) {
+        synchronized (pools) {
+            for (ToscaDeploymentPool pool : pools.values()) {
+                if (pool.contains(toscaUUID)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean contains(String toscaUUID) {
+        for (Entry entry : ready) {
+            if (entry.deployment.getUuid().equals(toscaUUID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release all the ready deployments and stop refilling
+     */
+    public void clear() {
+        Deque<Entry> released;
+        synchronized (this) {
+            released = new ArrayDeque<Entry>(ready);
+            ready.clear();
+            min = 0;
+            target = 0;
+        }
+        for (Entry entry : released) {
+            provisioner.release(entry.deployment.getUuid());
+        }
+    }
+
+    public synchronized int getReady() {
+        return ready.size();
+    }
+
+    public synchronized int getProvisioning() {
+        return provisioning;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long n = hits.get() + misses.get();
+        return (n > 0) ? (double) hits.get() / n : 0;
+    }
+
+    public double getAverageRefillMs() {
+        long n = refills.get();
+        return (n > 0) ? (double) refillTotalMs.get() / n : 0;
+    }
+
+    public double getAverageIdleMs() {
+        long n = hits.get();
+        return (n > 0) ? (double) idleTotalMs.get() / n : 0;
+    }
+
+    public long getRefillFailures() {
+        return refillFailures.get();
+    }
+
+    public long getRetired() {
+        return retired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaDeploymentPool[" + name
+                + ", ready=" + getReady()
+                + ", provisioning=" + getProvisioning()
+                + ", hitRate=" + String.format("%.2f", getHitRate())
+                + ", refill=" + String.format("%.0f", getAverageRefillMs()) + "ms"
+                + ", idle=" + String.format("%.0f", getAverageIdleMs()) + "ms"
+                + ", failures=" + getRefillFailures()
+                + ", retired=" + getRetired() + "]";
+    }
+}
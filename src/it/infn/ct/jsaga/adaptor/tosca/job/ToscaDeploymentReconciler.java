@@ -0,0 +1,338 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorClient;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorGroup;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaRateLimiter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Background service deleting the deployments leaked by this adaptor:
+ * deployments left behind by failed submissions or by a process that
+ * stopped while waiting for them, failed deployments and deletes the
+ * orchestrator did not perform. It periodically pages through the
+ * deployments listed by each end-point and releases, through the release
+ * queue, those recorded in the job registry that no job, pool or pending
+ * submission uses any more, once older than the grace period.
+ * Deployments unknown to the registry are never touched.
+ * <p>
+ * The orchestrator calls of a scan go through a slow rate limiter of
+ * their own and wait while adaptor reads are queued, so that a scan does
+ * not compete with the jobs.
+ */
+public class ToscaDeploymentReconciler {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaDeploymentReconciler.class);
+
+    public static final long DEFAULT_PERIOD_MS = 900000;
+    public static final long DEFAULT_GRACE_MS = 3600000;
+    public static final double DEFAULT_RATE = 0.2;
+    public static final int PAGE_SIZE = 50;
+
+    private static final String DELETE_IN_PROGRESS = "DELETE_IN_PROGRESS";
+
+    private static final Map<String, ToscaDeploymentReconciler> reconcilers
+            = new HashMap<String, ToscaDeploymentReconciler>();
+
+    /**
+     * Deletes the deployments found leaked
+     */
+    public interface Releaser {
+
+        void release(String toscaUUID);
+    }
+
+    private final ToscaOrchestratorGroup orchestrators;
+    private final ToscaJobRegistry registry;
+    private final ToscaDeploymentWatcher watcher;
+    private final ToscaRateLimiter limiter;
+    private final ScheduledExecutorService scheduler;
+    private volatile Releaser releaser;
+    private volatile long graceMs;
+
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong vanished = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    ToscaDeploymentReconciler(ToscaOrchestratorGroup orchestrators,
+            ToscaJobRegistry registry,
+            ToscaDeploymentWatcher watcher,
+            long periodMs,
+            long graceMs,
+            double rate) {
+        this.orchestrators = orchestrators;
+        this.registry = registry;
+        this.watcher = watcher;
+        this.graceMs = graceMs;
+        limiter = new ToscaRateLimiter("reconcile " + orchestrators.getEndpoint(), rate, 1);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                ToscaDeploymentWatcher.daemonThreads("tosca-reconciler"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } catch (RuntimeException ex) {
+                    log.error("Unexpected error reconciling the deployments of '"
+                            + ToscaDeploymentReconciler.this.orchestrators.getEndpoint() + "'", ex);
+                }
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the reconciler of the given orchestrators, starting it on
+     * first use; the last connected adaptor grace period and releaser win.
+     *
+     * @param orchestrators Orchestrator end-points
+     * @param registry Registry of the deployments created by the adaptor
+     * @param watcher Watcher of the deployments being created
+     * @param periodMs Time between two scans in milliseconds
+     * @param graceMs Minimum age of a deployment before it is released
+     * @param rate Orchestrator calls per second of a scan
+     * @param releaser Deployment deletion
+     * @return The shared reconciler
+     */
+    public static ToscaDeploymentReconciler getInstance(
+            ToscaOrchestratorGroup orchestrators,
+            ToscaJobRegistry registry,
+            ToscaDeploymentWatcher watcher,
+            long periodMs,
+            long graceMs,
+            double rate,
+            Releaser releaser) {
+        ToscaDeploymentReconciler reconciler;
+        synchronized (reconcilers) {
+            reconciler = reconcilers.get(orchestrators.getEndpoint());
+            if (null == reconciler) {
+                reconciler = new ToscaDeploymentReconciler(orchestrators,
+                        registry, watcher, periodMs, graceMs, rate);
+                reconcilers.put(orchestrators.getEndpoint(), reconciler);
+                log.debug("Started deployment reconciler for '"
+                        + orchestrators.getEndpoint() + "' (period: " + periodMs
+                        + "ms, grace: " + graceMs + "ms, rate: " + rate + "/s)");
+            }
+        }
+        reconciler.graceMs = graceMs;
+        reconciler.releaser = releaser;
+        return reconciler;
+    }
+
+    /**
+     * Scan the deployments of every end-point and release the leaked ones
+     *
+     * @return The number of deployments released
+     */
+    public int reconcile() {
+        scans.incrementAndGet();
+        int released = 0;
+        for (ToscaOrchestratorClient client : orchestrators.getClients()) {
+            released += reconcile(client);
+        }
+        log.debug(toString());
+        return released;
+    }
+
+    private int reconcile(ToscaOrchestratorClient client) {
+        Set<String> seen = new HashSet<String>();
+        Set<String> inUse = registry.getDeploymentsInUse();
+        // Released after the scan, deleting while paging would shift the pages
+        Map<String, String> leaked = new LinkedHashMap<String, String>();
+        int page = 0;
+        int pages = 1;
+        while (page < pages) {
+            JSONObject doc;
+            try {
+                acquire(client);
+                ToscaOrchestratorClient.Response res = client.list(page, PAGE_SIZE);
+                if (res.getStatus() != 200) {
+                    log.warn("Unable to list the deployments of '" + client.getEndpoint()
+                            + "': " + res.getStatus() + " " + res.getBody());
+                    failures.incrementAndGet();
+                    return 0;
+                }
+                doc = (JSONObject) new JSONParser().parse(res.getBody());
+            } catch (IOException ex) {
+                log.warn("Unable to list the deployments of '" + client.getEndpoint()
+                        + "': " + ex);
+                failures.incrementAndGet();
+                return 0;
+            } catch (ParseException ex) {
+                log.warn("Unable to parse the deployments of '" + client.getEndpoint()
+                        + "': " + ex);
+                failures.incrementAndGet();
+                return 0;
+            } catch (ClassCastException ex) {
+                log.warn("Unexpected deployments list from '" + client.getEndpoint() + "'");
+                failures.incrementAndGet();
+                return 0;
+            }
+            JSONArray content = (JSONArray) doc.get("content");
+            if (null == content || content.isEmpty()) {
+                break;
+            }
+            for (Object item : content) {
+                JSONObject deployment = (JSONObject) item;
+                String uuid = (String) deployment.get("uuid");
+                if (null == uuid) {
+                    continue;
+                }
+                listed.incrementAndGet();
+                seen.add(uuid);
+                if (isLeaked(uuid, (String) deployment.get("status"), inUse)) {
+                    leaked.put(uuid, (String) deployment.get("status"));
+                }
+            }
+            JSONObject pageInfo = (JSONObject) doc.get("page");
+            pages = (null != pageInfo && null != pageInfo.get("totalPages"))
+                    ? ((Number) pageInfo.get("totalPages")).intValue()
+                    : page + 1;
+            page++;
+        }
+        forgetVanished(client, seen);
+        for (Map.Entry<String, String> e : leaked.entrySet()) {
+            release(client, e.getKey(), e.getValue());
+        }
+        return leaked.size();
+    }
+
+    /**
+     * @return true if the deployment has been created by this adaptor and
+     * is no longer used
+     */
+    private boolean isLeaked(String uuid, String status, Set<String> inUse) {
+        ToscaJobRegistry.Deployment d = registry.getDeployment(uuid);
+        if (null == d || DELETE_IN_PROGRESS.equals(status)) {
+            return false;
+        }
+        long since = (d.getReleased() > 0) ? d.getReleased() : d.getCreated();
+        if (System.currentTimeMillis() - since < graceMs) {
+            return false;
+        }
+        return d.getReleased() > 0
+                || !(inUse.contains(uuid)
+                     || ToscaSharedDeployments.getReferences(uuid) > 0
+                     || ToscaDeploymentPool.isPooled(uuid)
+                     || watcher.isWatching(uuid)
+                     || ToscaAsyncSubmitter.hasPending(uuid));
+    }
+
+    private void release(ToscaOrchestratorClient client, String uuid, String status) {
+        ToscaJobRegistry.Deployment d = registry.getDeployment(uuid);
+        log.info("Releasing leaked deployment '" + uuid + "' of '" + client.getEndpoint()
+                + "' (status: " + status
+                + ((d.getReleased() > 0) ? ", delete not performed" : "") + ")");
+        try {
+            limiter.acquire();
+        } catch (IOException ex) {
+            return;
+        }
+        reaped.incrementAndGet();
+        orchestrators.setOwner(uuid, client);
+        releaser.release(uuid);
+    }
+
+    /**
+     * Mark as released the registry deployments of the end-point the
+     * orchestrator no longer lists
+     */
+    private void forgetVanished(ToscaOrchestratorClient client, Set<String> seen) {
+        long now = System.currentTimeMillis();
+        for (ToscaJobRegistry.Deployment d : registry.getLiveDeployments()) {
+            if (!seen.contains(d.getToscaUUID())
+                    && client.getEndpoint().equals(d.getEndpoint())
+                    && now - d.getCreated() >= graceMs) {
+                vanished.incrementAndGet();
+                registry.deploymentReleased(d.getToscaUUID());
+            }
+        }
+    }
+
+    /**
+     * Wait for a slot of the reconciler, and then for the adaptor reads
+     * queued on the end-point
+     */
+    private void acquire(ToscaOrchestratorClient client) throws IOException {
+        do {
+            limiter.acquire();
+        } while (client.getRateLimiter(ToscaOrchestratorClient.GET).getQueueDepth() > 0);
+    }
+
+    public long getScans() {
+        return scans.get();
+    }
+
+    public long getListed() {
+        return listed.get();
+    }
+
+    /**
+     * @return The number of leaked deployments released
+     */
+    public long getReaped() {
+        return reaped.get();
+    }
+
+    /**
+     * @return The number of registry deployments no longer listed
+     */
+    public long getVanished() {
+        return vanished.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaDeploymentReconciler[" + orchestrators.getEndpoint()
+                + ", scans=" + getScans()
+                + ", listed=" + getListed()
+                + ", reaped=" + getReaped()
+                + ", vanished=" + getVanished()
+                + ", failures=" + getFailures()
+                + ", limiter: " + limiter + "]";
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaNotificationListener;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorClient;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorGroup;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.json.simple.parser.ParseException;
+import org.ogf.saga.error.DoesNotExistException;
+import org.ogf.saga.error.NoSuccessException;
+import org.ogf.saga.error.TimeoutException;
+
+/**
+ * Shared service watching all the in-flight deployments of an orchestrator
+ * end-point. A single scheduler thread scans the pending deployments on
+ * each tick and hands the due status checks to a small fixed pool, so the
+ * number of threads does not grow with the number of deployments being
+ * created. Each watch completes a ToscaDeploymentFuture.
+ */
+public class ToscaDeploymentWatcher
+        implements ToscaNotificationListener.Subscriber {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaDeploymentWatcher.class);
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final long DEFAULT_TICK_MS = 500;
+
+    private static final Map<String, ToscaDeploymentWatcher> watchers
+            = new HashMap<String, ToscaDeploymentWatcher>();
+
+    private final ToscaOrchestratorGroup orchestrator;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService checkers;
+    private final ConcurrentMap<String, Watch> watches
+            = new ConcurrentHashMap<String, Watch>();
+
+    private class Watch {
+
+        final String toscaUUID;
+        final ToscaPollingPolicy policy;
+        final long submitTime;
+        final ToscaDeploymentFuture future;
+        int attempts = 0;
+        volatile long nextCheck;
+        volatile boolean checking = false;
+
+        Watch(String toscaUUID, ToscaPollingPolicy policy, long submitTime) {
+            this.toscaUUID = toscaUUID;
+            this.policy = policy;
+            this.submitTime = submitTime;
+            this.future = new ToscaDeploymentFuture(toscaUUID);
+        }
+    }
+
+    ToscaDeploymentWatcher(ToscaOrchestratorGroup orchestrator,
+            int threads,
+            long tickMs) {
+        this.orchestrator = orchestrator;
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("tosca-watcher-scheduler"));
+        checkers = ToscaExecutors.newBlockingPool("tosca-watcher-check", threads);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the watcher of the given orchestrators, starting it on first
+     * use; deployments are read from their owner end-point
+     *
+     * @param orchestrator Orchestrator end-points
+     * @param threads Number of threads performing status checks
+     * @param tickMs Scheduler period in milliseconds
+     * @return The shared watcher
+     */
+    public static ToscaDeploymentWatcher getInstance(
+            ToscaOrchestratorGroup orchestrator,
+            int threads,
+            long tickMs) {
+        synchronized (watchers) {
+            ToscaDeploymentWatcher watcher
+                    = watchers.get(orchestrator.getEndpoint());
+            if (null == watcher) {
+                watcher = new ToscaDeploymentWatcher(orchestrator, threads, tickMs);
+                watchers.put(orchestrator.getEndpoint(), watcher);
+                log.debug("Started deployment watcher for '"
+                        + orchestrator.getEndpoint() + "' (threads: " + threads
+                        + ", tick: " + tickMs + "ms)");
+            }
+            return watcher;
+        }
+    }
+
+    /**
+     * Start watching a deployment being created
+     *
+     * @param toscaUUID Deployment UUID
+     * @param policy Polling policy of this deployment
+     * @param submitTime Time the deployment has been requested
+     * @return The future completed once the deployment is ready
+     */
+    public ToscaDeploymentFuture watch(String toscaUUID,
+            ToscaPollingPolicy policy,
+            long submitTime) {
+        Watch w = watches.get(toscaUUID);
+        if (null != w) {
+            return w.future;
+        }
+        w = new Watch(toscaUUID, policy, submitTime);
+        long delay = policy.nextDelay(0, System.currentTimeMillis() - submitTime);
+        if (delay < 0) {
+            w.future.fail(new TimeoutException("Reached timeout while waiting for resource"));
+            return w.future;
+        }
+        w.nextCheck = System.currentTimeMillis() + delay;
+        // Concurrent watches of the same deployment share the first future
+        Watch existing = watches.putIfAbsent(toscaUUID, w);
+        if (null != existing) {
+            return existing.future;
+        }
+        log.debug("Watching deployment '" + toscaUUID + "' with policy " + policy);
+        return w.future;
+    }
+
+    /**
+     * Stop watching a deployment; its future is cancelled
+     *
+     * @param toscaUUID Deployment UUID
+     */
+    public void unwatch(String toscaUUID) {
+        Watch w = watches.remove(toscaUUID);
+        if (null != w) {
+            w.future.cancel(false);
+        }
+    }
+
+    public int getPending() {
+        return watches.size();
+    }
+
+    public boolean isWatching(String toscaUUID) {
+        return watches.containsKey(toscaUUID);
+    }
+
+    /**
+     * A notification anticipates the next check of the deployment
+     */
+    @Override
+    public void deploymentNotified(ToscaDeploymentInfo deployment) {
+        Watch w = watches.get(deployment.getUuid());
+        if (null != w) {
+            w.nextCheck = System.currentTimeMillis();
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (final Watch w : watches.values()) {
+            if (!w.checking && w.nextCheck <= now) {
+                w.checking = true;
+                checkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        check(w);
+                    }
+                });
+            }
+        }
+    }
+
+    private void check(Watch w) {
+        try {
+            w.attempts++;
+            ToscaDeploymentInfo deployment = null;
+            try {
+                ToscaOrchestratorClient.Response res = orchestrator.get(w.toscaUUID);
+                int code = res.getStatus();
+                if (code == 200) {
+                    deployment = ToscaDeploymentInfo.parse(res.getBody());
+                } else if (code >= 500 || code == 429) {
+                    log.warn("Unable to get deployment '" + w.toscaUUID + "': "
+                            + code + " " + res.getBody());
+                } else {
+                    // 404 and the other client errors will not change on retry
+                    watches.remove(w.toscaUUID, w);
+                    ToscaMetrics.counter(ToscaMetrics.DEPLOYMENT_POLLS).record(w.attempts);
+                    if (code == 404) {
+                        w.future.fail(new DoesNotExistException("Deployment '"
+                                + w.toscaUUID + "' no longer exists"));
+                    } else {
+                        w.future.fail(new NoSuccessException("Unable to get deployment '"
+                                + w.toscaUUID + "': " + code + " " + res.getBody()));
+                    }
+                    return;
+                }
+            } catch (IOException ex) {
+                log.warn("Connection error with the service at "
+                        + orchestrator.getEndpoint() + ": " + ex);
+            } catch (ParseException ex) {
+                log.warn("Impossible to parse the tosca deployment '" + w.toscaUUID + "'");
+            }
+            long elapsed = System.currentTimeMillis() - w.submitTime;
+            String status = (null != deployment) ? deployment.getStatus() : null;
+            log.debug("Deployment " + w.toscaUUID + " has status '" + status + "'"
+                    + "; attempt: " + w.attempts + ", elapsed: " + elapsed + "ms");
+            if (null != deployment && deployment.isComplete()) {
+                watches.remove(w.toscaUUID, w);
+                ToscaMetrics.counter(ToscaMetrics.DEPLOYMENT_POLLS).record(w.attempts);
+                w.future.complete(deployment);
+                return;
+            }
+            if (null != deployment && !deployment.isInProgress()) {
+                watches.remove(w.toscaUUID, w);
+                ToscaMetrics.counter(ToscaMetrics.DEPLOYMENT_POLLS).record(w.attempts);
+                w.future.fail(new NoSuccessException("Deployment error; status '"
+                        + status + "': " + deployment.getStatusReason()));
+                return;
+            }
+            long delay = w.policy.nextDelay(w.attempts, elapsed);
+            if (delay < 0) {
+                watches.remove(w.toscaUUID, w);
+                ToscaMetrics.counter(ToscaMetrics.DEPLOYMENT_POLLS).record(w.attempts);
+                w.future.fail(new TimeoutException("Reached timeout while waiting for resource"));
+                return;
+            }
+            w.nextCheck = System.currentTimeMillis() + delay;
+        } catch (RuntimeException ex) {
+            log.error("Unexpected error checking deployment '" + w.toscaUUID + "'", ex);
+            w.nextCheck = System.currentTimeMillis() + DEFAULT_TICK_MS;
+        } finally {
+            w.checking = false;
+        }
+    }
+
+    static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
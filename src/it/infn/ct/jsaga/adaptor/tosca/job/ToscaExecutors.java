@@ -0,0 +1,183 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Executors of the adaptor blocking work: deployment checks, asynchronous
+ * and batch SSH submissions and bulk status queries. In the default platform
+ * mode they are pools of daemon threads. In virtual mode, available on Java
+ * 21 and later, tasks run on virtual threads so that blocking I/O does not
+ * hold platform threads; on older runtimes the platform pools are kept.
+ * Virtual threads are looked up by reflection as the adaptor is built for
+ * Java 7. The mode applies to executors created after it has been set.
+ */
+public class ToscaExecutors {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaExecutors.class);
+
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private static final Method ofVirtual = lookup(Thread.class, "ofVirtual");
+    private static final Method builderName
+            = lookup("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method builderFactory
+            = lookup("java.lang.Thread$Builder", "factory");
+    private static final Method threadPerTask
+            = lookup(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private static volatile boolean virtual = false;
+
+    private ToscaExecutors() {
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return null != ofVirtual && null != builderName
+                && null != builderFactory && null != threadPerTask;
+    }
+
+    /**
+     * Select the execution mode of the executors created from now on
+     *
+     * @param mode MODE_VIRTUAL or MODE_PLATFORM; null keeps the current one
+     */
+    public static synchronized void setMode(String mode) {
+        if (null == mode || mode.length() == 0) {
+            return;
+        }
+        boolean wanted = MODE_VIRTUAL.equalsIgnoreCase(mode);
+        if (!wanted && !MODE_PLATFORM.equalsIgnoreCase(mode)) {
+            log.warn("Unknown executor mode '" + mode + "'; using " + MODE_PLATFORM);
+        }
+        if (wanted && !isVirtualSupported()) {
+            log.warn("Virtual threads not supported by Java "
+                    + System.getProperty("java.version")
+                    + "; using bounded platform pools");
+            wanted = false;
+        }
+        if (wanted != virtual) {
+            log.info("Executor mode: " + (wanted ? MODE_VIRTUAL : MODE_PLATFORM));
+        }
+        virtual = wanted;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Executor for blocking tasks whose number only needs a limit to save
+     * threads; in virtual mode every task gets its own virtual thread
+     *
+     * @param name Thread name prefix
+     * @param threads Pool size in platform mode
+     * @return The executor
+     */
+    public static ExecutorService newBlockingPool(String name, int threads) {
+        if (virtual) {
+            ExecutorService executor = newVirtualPerTask(name);
+            if (null != executor) {
+                return executor;
+            }
+        }
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    /**
+     * Executor running at most the given number of tasks at once, e.g. to
+     * honour a configured concurrency; in virtual mode its threads are
+     * virtual
+     *
+     * @param name Thread name prefix
+     * @param threads Maximum number of running tasks
+     * @return The executor
+     */
+    public static ExecutorService newBoundedPool(String name, int threads) {
+        ThreadFactory factory = virtual ? virtualThreads(name) : null;
+        return Executors.newFixedThreadPool(threads,
+                (null != factory) ? factory : daemonThreads(name));
+    }
+
+    /**
+     * Factory of daemon platform threads named after the given prefix
+     *
+     * @param name Thread name prefix
+     * @return The thread factory
+     */
+    public static ThreadFactory daemonThreads(String name) {
+        return ToscaDeploymentWatcher.daemonThreads(name);
+    }
+
+    private static ExecutorService newVirtualPerTask(String name) {
+        ThreadFactory factory = virtualThreads(name);
+        if (null == factory) {
+            return null;
+        }
+        try {
+            return (ExecutorService) threadPerTask.invoke(null, factory);
+        } catch (Exception ex) {
+            log.warn("Unable to create a virtual thread executor: " + ex);
+            return null;
+        }
+    }
+
+    private static ThreadFactory virtualThreads(String name) {
+        try {
+            Object builder = ofVirtual.invoke(null);
+            builder = builderName.invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderFactory.invoke(builder);
+        } catch (Exception ex) {
+            log.warn("Unable to create virtual threads: " + ex);
+            return null;
+        }
+    }
+
+    private static Method lookup(String className, String name, Class<?>... types) {
+        try {
+            return lookup(Class.forName(className), name, types);
+        } catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+
+    private static Method lookup(Class<?> type, String name, Class<?>... types) {
+        try {
+            return type.getMethod(name, types);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
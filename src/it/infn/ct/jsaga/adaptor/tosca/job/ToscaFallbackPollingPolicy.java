@@ -0,0 +1,52 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+/**
+ * Stretches the intervals of another policy to a minimum period; used when
+ * deployment notifications are received and polling is only a fallback.
+ */
+public class ToscaFallbackPollingPolicy implements ToscaPollingPolicy {
+
+    private final ToscaPollingPolicy policy;
+    private final long minDelayMs;
+
+    public ToscaFallbackPollingPolicy(ToscaPollingPolicy policy, long minDelayMs) {
+        this.policy = policy;
+        this.minDelayMs = minDelayMs;
+    }
+
+    @Override
+    public long nextDelay(int attempt, long elapsedMs) {
+        long delay = policy.nextDelay(attempt, elapsedMs);
+        return (delay < 0) ? delay : Math.max(delay, minDelayMs);
+    }
+
+    @Override
+    public String toString() {
+        return policy + " (min " + minDelayMs + "ms)";
+    }
+}
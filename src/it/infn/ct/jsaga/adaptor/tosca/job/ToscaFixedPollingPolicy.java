@@ -0,0 +1,50 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+/**
+ * Legacy policy: a fixed wait_ms sleep before each one of max_waits checks
+ */
+public class ToscaFixedPollingPolicy implements ToscaPollingPolicy {
+
+    private final long waitMs;
+    private final int maxWaits;
+
+    public ToscaFixedPollingPolicy(long waitMs, int maxWaits) {
+        this.waitMs = waitMs;
+        this.maxWaits = maxWaits;
+    }
+
+    @Override
+    public long nextDelay(int attempt, long elapsedMs) {
+        return (attempt < maxWaits) ? waitMs : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "fixed(wait_ms=" + waitMs + ", max_waits=" + maxWaits + ")";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+/**
+ * Per-call view of a job: decoded job id and access data of its node.
+ * Adaptor methods build one of these for each call instead of storing the
+ * job data into adaptor fields, so the same adaptor instance can serve
+ * many threads at once.
+ */
+public class ToscaJobContext {
+
+    private final String nativeJobId;
+    private final String sshJobId;
+    private final String toscaUUID;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+
+    public ToscaJobContext(String nativeJobId,
+            String sshJobId,
+            String toscaUUID,
+            String host,
+            int port,
+            String username,
+            String password) {
+        this.nativeJobId = nativeJobId;
+        this.sshJobId = sshJobId;
+        this.toscaUUID = toscaUUID;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+    }
+
+    public String getNativeJobId() {
+        return nativeJobId;
+    }
+
+    public String getSshJobId() {
+        return sshJobId;
+    }
+
+    public String getToscaUUID() {
+        return toscaUUID;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return true if the node access data are known
+     */
+    public boolean isResolved() {
+        return null != host && host.length() > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaJobContext[" + nativeJobId
+                + ", node=" + username + "@" + host + ":" + port + "]";
+    }
+}
@@ -36,7 +36,6 @@ import fr.in2p3.jsaga.adaptor.job.control.JobControlAdaptor;
 import fr.in2p3.jsaga.adaptor.job.monitor.JobMonitorAdaptor;
 import fr.in2p3.jsaga.adaptor.job.BadResource;
 import fr.in2p3.jsaga.adaptor.job.control.description.JobDescriptionTranslator;
-import fr.in2p3.jsaga.adaptor.security.impl.UserPassSecurityCredential;
 import fr.in2p3.jsaga.adaptor.ssh3.job.SSHJobControlAdaptor;
 import org.ogf.saga.error.NoSuccessException;
 import org.ogf.saga.error.NotImplementedException;
@@ -46,17 +45,19 @@ import org.ogf.saga.error.BadParameterException;
 import org.ogf.saga.error.IncorrectURLException;
 import org.ogf.saga.error.TimeoutException;
 import org.ogf.saga.error.PermissionDeniedException;
+import org.ogf.saga.error.SagaException;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetric;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaOrchestratorClient;
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaCredentialStore;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import org.apache.log4j.Logger;
 import org.json.simple.parser.ParseException;
 
@@ -89,13 +90,30 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
     private SSHJobControlAdaptor sshControlAdaptor
             = new SSHJobControlAdaptor();
 
-    protected String tosca_id = null;
+    private static final String POLICY_FIXED = "fixed";
+    private static final String POLICY_BACKOFF = "backoff";
+
     private String action = "";
     private String tosca_template = "";  
     private String wait_ms = "";
     private String max_waits = "";
     int wait_ms_val = 30000;         // wait_ms value
     int max_waits_val = 20;       // max_waits value
+    private String poll_policy = "";
+    private int poll_initial_val = (int) ToscaBackoffPollingPolicy.DEFAULT_INITIAL_MS;
+    private int poll_max_val = (int) ToscaBackoffPollingPolicy.DEFAULT_MAX_MS;
+    private double poll_factor_val = ToscaBackoffPollingPolicy.DEFAULT_FACTOR;
+    private double poll_jitter_val = ToscaBackoffPollingPolicy.DEFAULT_JITTER;
+    private int poll_deadline_val = 0;
+    private int notify_fallback_val = 60000; // polling period with notifications
+    private ToscaDeploymentWatcher deploymentWatcher = null;
+    private boolean async_submit_val = false; // return job id before deployment is ready
+    private int async_threads_val = ToscaAsyncSubmitter.DEFAULT_THREADS;
+    private ToscaDeploymentPool deploymentPool = null; // warm pool, if any
+    private int share_slots_val = 1;   // jobs sharing the same deployment
+    private int batch_post_threads_val = ToscaBatchSubmitter.DEFAULT_POST_THREADS;
+    private int batch_wait_slots_val = ToscaBatchSubmitter.DEFAULT_WAIT_SLOTS;
+    private int batch_ssh_threads_val = ToscaBatchSubmitter.DEFAULT_SSH_THREADS;
     
     @Override
     public void connect(String userInfo, String host, int port, String basePath, Map attributes)
@@ -128,6 +146,23 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             } catch(NumberFormatException nfe) {
                 log.warn("Invalid wait_ms value: '"+max_waits+"'");
             }
+        // Polling policy; the legacy fixed policy is kept whenever
+        // wait_ms or max_waits are explicitly given
+        poll_policy = (String) attributes.get(TOSCA_POLL_POLICY);
+        if(null == poll_policy || poll_policy.length() == 0)
+            poll_policy = (null != wait_ms && wait_ms.length() > 0)
+                       || (null != max_waits && max_waits.length() > 0)
+                        ? POLICY_FIXED : POLICY_BACKOFF;
+        poll_initial_val = getIntAttribute(attributes, TOSCA_POLL_INITIAL, poll_initial_val);
+        poll_max_val = getIntAttribute(attributes, TOSCA_POLL_MAX, poll_max_val);
+        poll_factor_val = getDoubleAttribute(attributes, TOSCA_POLL_FACTOR, poll_factor_val);
+        poll_jitter_val = getDoubleAttribute(attributes, TOSCA_POLL_JITTER, poll_jitter_val);
+        poll_deadline_val = getIntAttribute(attributes
+                                           , TOSCA_POLL_DEADLINE
+                                           , wait_ms_val * max_waits_val);
+        notify_fallback_val = getIntAttribute(attributes, TOSCA_NOTIFY_FALLBACK, notify_fallback_val);
+        async_submit_val = "true".equalsIgnoreCase((String) attributes.get(TOSCA_ASYNC_SUBMIT));
+        async_threads_val = getIntAttribute(attributes, TOSCA_ASYNC_THREADS, async_threads_val);
 
         // View parameters
         log.debug("userInfo      : '" + userInfo + "'" + LS
@@ -138,7 +173,9 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
                 + "action        : '" + action + "'" + LS
                 + "tosca_template: '" + tosca_template + "'" +LS
                 + "wait_ms       : '" + wait_ms + "'" +LS
-                + "max_waits     : '" + max_waits + "'" 
+                + "max_waits     : '" + max_waits + "'" +LS
+                + "poll_policy   : '" + poll_policy + "'" +LS
+                + "async_submit  : '" + async_submit_val + "'"
         );
 
         try {
@@ -147,6 +184,24 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             log.error("Error in the service end-point creation" + ex);
             throw new BadParameterException(ex);
         }
+        initExecutors(attributes);
+        initOrchestrator(attributes);
+        initSshSessions(attributes);
+        initCredentialStore(attributes);
+        initJobRegistry(attributes);
+        initNotificationListener(attributes);
+        deploymentWatcher = ToscaDeploymentWatcher.getInstance(
+                orchestrators,
+                getIntAttribute(attributes, TOSCA_WATCH_THREADS, ToscaDeploymentWatcher.DEFAULT_THREADS),
+                getIntAttribute(attributes, TOSCA_WATCH_TICK, (int) ToscaDeploymentWatcher.DEFAULT_TICK_MS));
+        if (null != notificationListener)
+            notificationListener.subscribe(deploymentWatcher);
+        initDeploymentPool(attributes);
+        initReconciler(attributes);
+        share_slots_val = getIntAttribute(attributes, TOSCA_SHARE_SLOTS, share_slots_val);
+        batch_post_threads_val = getIntAttribute(attributes, TOSCA_BATCH_POST_THREADS, batch_post_threads_val);
+        batch_wait_slots_val = getIntAttribute(attributes, TOSCA_BATCH_WAIT_SLOTS, batch_wait_slots_val);
+        batch_ssh_threads_val = getIntAttribute(attributes, TOSCA_BATCH_SSH_THREADS, batch_ssh_threads_val);
         log.debug("action:" + action);
         log.debug("tosca_template: " + tosca_template);
     }
@@ -158,21 +213,16 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
 
         log.debug("start (begin)");
         
+        // Asynchronous jobs may be still waiting their deployment
+        awaitSubmission(nativeJobId);
+
         // Get and retrieve info from JobId
-        String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-        String sshJobId    = jobIdInfo[1];
-        tosca_UUID         = jobIdInfo[2];
-        String sshPublicIP = jobIdInfo[3];
-        int sshPort        = Integer.parseInt(jobIdInfo[4]);
-        ssh_username       = jobIdInfo[5];
-        ssh_password       = jobIdInfo[6]; 
+        ToscaJobContext job = getJobContext(nativeJobId);
         
+        SSHJobControlAdaptor sshAdaptor = null;
         try {
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-            sshControlAdaptor.start(sshJobId);
+            sshAdaptor = sshSessions.getControl(job);
+            sshAdaptor.start(job.getSshJobId());
         } catch (NotImplementedException ex) {
             throw new NoSuccessException(ex);
         } catch (AuthenticationFailedException ex) {
@@ -181,6 +231,8 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             throw new PermissionDeniedException(ex);
         } catch (BadParameterException ex) {
             throw new NoSuccessException(ex);
+        } finally {
+            sshSessions.release(sshAdaptor);
         }
         log.debug("start (end)");
     }
@@ -190,22 +242,18 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             TimeoutException,
             NoSuccessException {
         log.debug("cancel (begin)");
+        if (cancelSubmission(nativeJobId, false)) {
+            log.debug("cancel (end)");
+            return;
+        }
         
         // Get and retrieve info from JobId
-        String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-        String sshJobId    = jobIdInfo[1];
-        tosca_UUID         = jobIdInfo[2];
-        String sshPublicIP = jobIdInfo[3];
-        int sshPort        = Integer.parseInt(jobIdInfo[4]);
-        ssh_username       = jobIdInfo[5];
-        ssh_password       = jobIdInfo[6];                                               
+        ToscaJobContext job = getJobContext(nativeJobId);
         
+        SSHJobControlAdaptor sshAdaptor = null;
         try {
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-            sshControlAdaptor.cancel(sshJobId);
+            sshAdaptor = sshSessions.getControl(job);
+            sshAdaptor.cancel(job.getSshJobId());
         } catch (NotImplementedException ex) {
             throw new NoSuccessException(ex);
         } catch (AuthenticationFailedException ex) {
@@ -215,7 +263,8 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
         } catch (BadParameterException ex) {
             throw new NoSuccessException(ex);
         } finally {
-            this.releaseToscaResources();
+            sshSessions.release(sshAdaptor);
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
         }
         log.debug("cancel (end)");
     }        
@@ -225,25 +274,26 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             TimeoutException,
             NoSuccessException {                
         log.debug("clean (begin)");
+        ToscaJobMonitorAdaptor.jobCleaned(nativeJobId);
+        if (null != jobRegistry)
+            jobRegistry.jobFinished(nativeJobId);
+        if (cancelSubmission(nativeJobId, true)) {
+            log.debug("clean (end)");
+            return;
+        }
         
         // Get and retrieve info from JobId
-        String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-        String sshJobId    = jobIdInfo[1];
-        tosca_UUID         = jobIdInfo[2];
-        String sshPublicIP = jobIdInfo[3];
-        int sshPort        = Integer.parseInt(jobIdInfo[4]);
-        ssh_username       = jobIdInfo[5];
-        ssh_password       = jobIdInfo[6];                        
+        ToscaJobContext job = getJobContext(nativeJobId);
         
+        SSHJobControlAdaptor sshAdaptor = null;
         try {
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-            sshControlAdaptor.clean(sshJobId);
+            sshAdaptor = sshSessions.getControl(job);
+            sshAdaptor.clean(job.getSshJobId());
+            sshSessions.release(sshAdaptor);
+            sshAdaptor = null;
 
             // Releasing TOSCA resources
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
         } catch (NotImplementedException ex) {
             throw new NoSuccessException(ex);
         } catch (AuthenticationFailedException ex) {
@@ -252,60 +302,62 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             throw new PermissionDeniedException(ex);
         } catch (BadParameterException ex) {
             throw new NoSuccessException(ex);
+        } finally {
+            sshSessions.release(sshAdaptor);
         }
         log.debug("clean (end)");
     }                            
     
-    private String submitTosca() 
+    private ToscaDeploymentInfo submitTosca() 
         throws IOException,
                ParseException,
                BadResource,
                NoSuccessException {   
         StringBuilder orchestrator_result=new StringBuilder("");
-        StringBuilder postData = new StringBuilder();
-        postData.append("{ \"template\": \"");
         String tosca_template_content="";
         try {
-            tosca_template_content = new String(Files.readAllBytes(Paths.get(tosca_template))).replace("\n", "\\n"); 
-            postData.append(tosca_template_content);
+            tosca_template_content = new String(Files.readAllBytes(Paths.get(tosca_template))); 
         } catch (IOException ex) {
             log.error("Template '"+tosca_template+"'is not readable");
             throw new BadResource("Template '"+tosca_template+"'is not readable; template:" +LS
                                  +"'"+tosca_template_content+"'"
             );
         }
-        postData.append("\"  }");
+        String postData = buildSubmitPayload(tosca_template_content,
+                (null != notificationListener)
+                ? notificationListener.getCallbackUrl()
+                : null);
 
         log.debug("JSON Data sent to the orchestrator: \n" + postData);
-        HttpURLConnection conn;
+        ToscaMetric postMetric = ToscaMetrics.timer(ToscaMetrics.SUBMIT_POST);
+        long postStart = System.currentTimeMillis();
         try {
-            conn = (HttpURLConnection) endpoint.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("charset", "utf-8");
-            conn.setDoOutput(true);
-            OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-            wr.write(postData.toString());
-            wr.flush();
-            wr.close();
-            log.debug("Orchestrator status code: " + conn.getResponseCode());
-            log.debug("Orchestrator status message: " + conn.getResponseMessage());
-            if (conn.getResponseCode() == 201) {
-                BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                orchestrator_result = new StringBuilder();
-                String ln;
-                while ((ln = br.readLine()) != null) {
-                    orchestrator_result.append(ln);
-                }
-                
+            ToscaOrchestratorClient.Response res = orchestrators.post(postData);
+            postMetric.recordSince(postStart);
+            if (res.getStatus() != 201)
+                postMetric.recordError();
+            log.debug("Orchestrator status code: " + res.getStatus());
+            log.debug("Orchestrator status message: " + res.getMessage());
+            orchestrator_result = new StringBuilder(res.getBody());
+            if (res.getStatus() == 201) {
                 log.debug("Orchestrator result: " + orchestrator_result);
-                String orchestratorDoc = orchestrator_result.toString();
-                tosca_UUID = getDocumentValue(orchestratorDoc,"uuid");
-                log.debug("Created resource has UUID: '"+tosca_UUID+"'");
-                return orchestratorDoc;
-                
+                ToscaDeploymentInfo deployment
+                        = ToscaDeploymentInfo.parse(orchestrator_result.toString());
+                log.debug("Created resource has UUID: '"+deployment.getUuid()+"'");
+                if (null != jobRegistry)
+                    jobRegistry.deploymentCreated(deployment.getUuid(),
+                            orchestrators.getOwner(deployment.getUuid()).getEndpoint(),
+                            tosca_template);
+                return deployment;
+
+            } else {
+                log.error("Orchestrator refused the deployment: " + orchestrator_result);
+                throw new NoSuccessException("Orchestrator refused the deployment ("
+                                            + res.getStatus() + " " + res.getMessage() + "): "
+                                            + orchestrator_result);
             }
         } catch (IOException ex) {
+            postMetric.recordError();
             log.error("Connection error with the service at " + endpoint.toString());
             log.error(ex);
             throw new NoSuccessException("Connection error with the service at " + endpoint.toString());
@@ -314,63 +366,263 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             throw new NoSuccessException("Orchestrator response not parsable:"+LS
                                         +"'"+orchestrator_result.toString()+"'");
         }
-        return tosca_UUID;
     }
     
-    private String waitToscaResource() 
+    /**
+     * JSON document requesting a new deployment to the orchestrator
+     *
+     * @param template Content of the TOSCA template
+     * @param callbackUrl Notification end-point, or null
+     * @return The POST payload
+     */
+    protected static String buildSubmitPayload(String template, String callbackUrl) {
+        StringBuilder postData = new StringBuilder(template.length() + 64);
+        postData.append("{ \"template\": \"");
+        postData.append(template.replace("\n", "\\n"));
+        postData.append("\"");
+        if (null != callbackUrl) {
+            postData.append(", \"callback\": \"")
+                    .append(callbackUrl)
+                    .append("\"");
+        }
+        postData.append("  }");
+        return postData.toString();
+    }
+
+    /**
+     * Build the polling policy for a new deployment wait
+     *
+     * @return The configured polling policy
+     */
+    protected ToscaPollingPolicy createPollingPolicy() {
+        ToscaPollingPolicy policy;
+        if (POLICY_FIXED.equals(poll_policy)) {
+            policy = new ToscaFixedPollingPolicy(wait_ms_val, max_waits_val);
+        } else {
+            if (!POLICY_BACKOFF.equals(poll_policy)) {
+                log.warn("Unknown poll_policy '" + poll_policy + "'; using backoff");
+            }
+            policy = new ToscaBackoffPollingPolicy(
+                    poll_initial_val,
+                    poll_max_val,
+                    poll_factor_val,
+                    poll_jitter_val,
+                    poll_deadline_val,
+                    ToscaProvisioningStats.getInstance(tosca_template).getExpectedMs());
+        }
+        // Notifications wake up the watch, polling is a slow fallback
+        if (null != notificationListener) {
+            policy = new ToscaFallbackPollingPolicy(policy, notify_fallback_val);
+        }
+        return policy;
+    }
+
+    private ToscaDeploymentInfo waitToscaResource(String tosca_UUID, long submitTime) 
             throws NoSuccessException,
                    BadResource,
                    TimeoutException {
-         int attempts = 0;
-         int max_attempts = max_waits_val;
-         int wait_step= wait_ms_val;
-         String toscaStatus = "CREATE_IN_PROGRESS";
-         String toscaDeployment="";
-         
-         for(attempts=0;
-             tosca_UUID != null 
-          && attempts < max_attempts 
-          && toscaStatus.equals("CREATE_IN_PROGRESS");
-             attempts++) {
-             try {
-                 log.debug("Waiting ("+wait_step+"ms) for resource creation; attempt: "+(attempts+1)+"/"+max_attempts+" ...");
-                 Thread.sleep(wait_step);
-             } catch (InterruptedException e1) {
-                 // TODO Auto-generated catch block
-                 e1.printStackTrace();
-             }
-             toscaDeployment = getToscaDeployment(tosca_UUID);
-             try {
-                 log.debug("Deployment: " + toscaDeployment);
-                 toscaStatus = getDocumentValue(toscaDeployment, "status");
-                 log.debug("Deployment " + tosca_UUID + " has status '" + toscaStatus + "'");
-             } catch (ParseException ex) {
-                 log.warn("Impossible to parse the tosca deployment json: '"+toscaDeployment+"'");
-             }
-         }
-         if(!toscaStatus.equals("CREATE_COMPLETE")) {
-             log.debug("Deployments error for "+ tosca_UUID+" with status '"+toscaStatus+"'. Attempts "+attempts+"/" + max_attempts);
-             if(attempts >= max_attempts)
-                 throw new TimeoutException("Reached timeout while waiting for resource");
-             else
-                throw new NoSuccessException("Deployment error.");
+         if(null == tosca_UUID)
+             throw new NoSuccessException("Deployment error; missing resource UUID.");
+         ToscaDeploymentFuture future
+                 = deploymentWatcher.watch(tosca_UUID, createPollingPolicy(), submitTime);
+         ToscaDeploymentInfo toscaDeployment;
+         try {
+             toscaDeployment = future.get();
+         } catch (InterruptedException ex) {
+             deploymentWatcher.unwatch(tosca_UUID);
+             Thread.currentThread().interrupt();
+             throw new NoSuccessException("Interrupted while waiting for resource");
+         } catch (ExecutionException ex) {
+             ToscaMetrics.timer(ToscaMetrics.DEPLOYMENT_READY).recordError();
+             long elapsed = System.currentTimeMillis() - submitTime;
+             log.debug("Deployments error for "+ tosca_UUID+" after " + elapsed + "ms: " + ex.getCause());
+             if (ex.getCause() instanceof TimeoutException)
+                 throw (TimeoutException) ex.getCause();
+             throw new NoSuccessException("Deployment error.", ex.getCause());
          }
+         deploymentReady(toscaDeployment, submitTime);
          
          return toscaDeployment;
     }
+
+    private static String getUuid(ToscaDeploymentInfo deployment) {
+        return (null != deployment) ? deployment.getUuid() : null;
+    }
+
+    /**
+     * Start the reaping of leaked deployments; it needs the job registry
+     * to tell the deployments of this adaptor, reconcile_period_ms 0
+     * disables it
+     */
+    private void initReconciler(Map<?, ?> attributes) {
+        int period = getIntAttribute(attributes, TOSCA_RECONCILE_PERIOD,
+                (int) ToscaDeploymentReconciler.DEFAULT_PERIOD_MS);
+        if (null == jobRegistry || period <= 0)
+            return;
+        ToscaDeploymentReconciler.getInstance(
+                orchestrators,
+                jobRegistry,
+                deploymentWatcher,
+                period,
+                getIntAttribute(attributes, TOSCA_RECONCILE_GRACE, (int) ToscaDeploymentReconciler.DEFAULT_GRACE_MS),
+                getDoubleAttribute(attributes, TOSCA_RECONCILE_RATE, ToscaDeploymentReconciler.DEFAULT_RATE),
+                new ToscaDeploymentReconciler.Releaser() {
+                    @Override
+                    public void release(String toscaUUID) {
+                        deleteToscaDeployment(toscaUUID);
+                    }
+                });
+    }
+
+    /**
+     * Set up the warm pool of the template when pool_min or pool_max are set
+     */
+    private void initDeploymentPool(Map<?, ?> attributes) {
+        int pool_min = getIntAttribute(attributes, TOSCA_POOL_MIN, 0);
+        int pool_max = getIntAttribute(attributes, TOSCA_POOL_MAX, pool_min);
+        if (pool_max <= 0 || null == tosca_template || tosca_template.length() == 0) {
+            deploymentPool = null;
+            return;
+        }
+        deploymentPool = ToscaDeploymentPool.getInstance(
+                endpoint.toString(),
+                tosca_template,
+                pool_min,
+                pool_max,
+                getIntAttribute(attributes, TOSCA_POOL_IDLE, (int) ToscaDeploymentPool.DEFAULT_IDLE_MS),
+                new ToscaDeploymentPool.Provisioner() {
+                    @Override
+                    public ToscaDeploymentFuture provision() throws SagaException {
+                        long submitTime = System.currentTimeMillis();
+                        ToscaDeploymentInfo deployment;
+                        try {
+                            deployment = submitTosca();
+                        } catch (IOException ex) {
+                            throw new NoSuccessException(ex);
+                        } catch (ParseException ex) {
+                            throw new NoSuccessException(ex);
+                        }
+                        if (null == deployment)
+                            throw new NoSuccessException("Deployment refused by the orchestrator");
+                        return deploymentWatcher.watch(deployment.getUuid(),
+                                                       createPollingPolicy(),
+                                                       submitTime);
+                    }
+
+                    @Override
+                    public void release(String toscaUUID) {
+                        deleteToscaDeployment(toscaUUID);
+                    }
+                });
+    }
+
+    /**
+     * Take a ready deployment from the warm pool
+     *
+     * @return The deployment or null if the pool is disabled or empty
+     */
+    private ToscaDeploymentInfo takePooledDeployment() {
+        if (null == deploymentPool)
+            return null;
+        ToscaDeploymentInfo deployment = deploymentPool.take();
+        log.debug(deploymentPool.toString());
+        if (null != deployment && null != deploymentCache)
+            deploymentCache.put(deployment.getUuid(), deployment);
+        return deployment;
+    }
+
+    /**
+     * Record provisioning time and cache a ready deployment
+     */
+    private void deploymentReady(ToscaDeploymentInfo deployment, long submitTime) {
+         long elapsed = System.currentTimeMillis() - submitTime;
+         ToscaMetrics.timer(ToscaMetrics.DEPLOYMENT_READY).record(elapsed);
+         ToscaProvisioningStats stats = ToscaProvisioningStats.getInstance(tosca_template);
+         stats.record(elapsed);
+         log.debug("Provisioning time for '" + tosca_template + "': " + elapsed + "ms (" + stats + ")");
+         if (null != deploymentCache)
+             deploymentCache.put(deployment.getUuid(), deployment);
+    }
+
+    /**
+     * Connected SSH adaptor to the node of a ready deployment, leased from
+     * the session cache
+     */
+    private SSHJobControlAdaptor connectToDeployment(ToscaDeploymentInfo deployment)
+            throws NotImplementedException,
+                   AuthenticationFailedException,
+                   AuthorizationFailedException,
+                   IncorrectURLException,
+                   BadParameterException,
+                   TimeoutException,
+                   NoSuccessException {
+        String[] sshCredentials = getToscaResourceCredentials(deployment);
+        storeNodeAccess(deployment.getUuid(), sshCredentials);
+        String ssh_publicIP = sshCredentials[0];
+        int ssh_port        = Integer.parseInt(sshCredentials[1]);
+        String username     = sshCredentials[2];
+        String password     = sshCredentials[3];
+
+        log.debug(LS+"IP      : '"+ssh_publicIP+"'"+
+                  LS+"Port    : '"+ssh_port    +"'"+
+                  LS+"username: '"+username+"'"+
+                  LS+"password: '"+password+"'"
+                 );
+
+        return sshSessions.getControl(ssh_publicIP,
+                                      ssh_port,
+                                      username,
+                                      password,
+                                      deployment.getUuid());
+    }
         
     /**
      * Free all allocated resources
+     *
+     * @param toscaUUID The deployment to release
+     * @param sshJobId The job releasing the resources
      */
-    protected void releaseToscaResources() {
-        if(tosca_UUID != null) {
-            log.debug("Releasing Tosca resource '"+tosca_UUID+"'");
-            // Release of Tosca resource not yet implemented            
-            if(null!=tosca_UUID && tosca_UUID.length()>0)
-                deleteToscaDeployment(tosca_UUID);
+    protected void releaseToscaResources(String toscaUUID, String sshJobId) {
+        if(toscaUUID != null) {
+            log.debug("Releasing Tosca resource '"+toscaUUID+"'");
+            if(toscaUUID.length()>0)
+                releaseDeployment(toscaUUID, sshJobId);
             else log.warn("Called delete on NULL or empty UUID");
         }        
     }
+
+    /**
+     * Delete a deployment unless other jobs still share it
+     */
+    private void releaseDeployment(String toscaUUID, String sshJobId) {
+        if (ToscaSharedDeployments.release(toscaUUID, sshJobId)) {
+            sshSessions.invalidate(toscaUUID);
+            deleteToscaDeployment(toscaUUID);
+        }
+    }
+
+    /**
+     * Take a slot on a shared deployment of the template
+     *
+     * @return The deployment or null if sharing is disabled or no slot is free
+     */
+    private ToscaDeploymentInfo acquireSharedDeployment(String sshJobId) {
+        if (share_slots_val <= 1)
+            return null;
+        return ToscaSharedDeployments.acquire(endpoint.toString(), tosca_template, sshJobId);
+    }
+
+    /**
+     * Make a ready deployment available to the next jobs of the template
+     */
+    private void shareDeployment(ToscaDeploymentInfo deployment, String sshJobId) {
+        if (share_slots_val > 1)
+            ToscaSharedDeployments.register(endpoint.toString(),
+                                            tosca_template,
+                                            deployment,
+                                            share_slots_val,
+                                            sshJobId);
+    }
         
     @Override
     public String submit(String jobDesc, boolean checkMatch, String uniqId)
@@ -385,8 +637,11 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
         log.debug("checkMatch:" + checkMatch);
         log.debug("uniqId:" + uniqId);
         String result = "";
-        String ssh_publicIP = "";
-        int ssh_port = 22;
+        SSHJobControlAdaptor sshAdaptor = null;
+        String tosca_UUID = null;
+        if (async_submit_val) {
+            return submitAsync(jobDesc, checkMatch, uniqId);
+        }
               
         // SUbmit works in two stages; first create the Tosca resource
         // from the given toca_template, then submit the job to an 
@@ -398,62 +653,313 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             // Create Tosca resource form tosca_template, then wait
             // for its creation and determine an access point with SSH:
             // IP/Port and credentials (username, PublicKey and PrivateKey)
-            String doc = submitTosca();
+            // A shared deployment or a ready one from the warm pool
+            // skips the creation
+            ToscaDeploymentInfo deployment = acquireSharedDeployment(uniqId);
+            if (null == deployment)
+                deployment = takePooledDeployment();
+            if (null != deployment) {
+                tosca_UUID = deployment.getUuid();
+            } else {
+                long submitTime = System.currentTimeMillis();
+                tosca_UUID = getUuid(submitTosca());
 
-            // Now waits until the resource is available
-            // A maximum number of attempts will be done
-            // until the resource will be made available
-            doc = waitToscaResource();
+                // Now waits until the resource is available
+                // the polling policy decides when to check it
+                // and when to give up
+                deployment = waitToscaResource(tosca_UUID, submitTime);
+            }
+            shareDeployment(deployment, uniqId);
 
             // Once tosca resource is ready, submit to SSH
-            // String ssh_publicIP = ToscaResults[0];
-            // String ssh_port = toscaResults[1];
-            String[] sshCredentials = getToscaResourceCredentials(doc);
-            ssh_publicIP = sshCredentials[0];
-            ssh_port     = Integer.parseInt(sshCredentials[1]);
-            ssh_username = sshCredentials[2];
-            ssh_password = sshCredentials[3];
-            
-            log.debug(LS+"IP      : '"+ssh_publicIP+"'"+
-                      LS+"Port    : '"+ssh_port    +"'"+
-                      LS+"username: '"+ssh_username+"'"+
-                      LS+"password: '"+ssh_password+"'"
-                     );           
-            
-          //ssh_username="root";
-          //ssh_password="IvYAGaRc";
-            
-            credential.setUsername(ssh_username);
-            credential.setPassword(ssh_password);            
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, ssh_publicIP, ssh_port, null, new HashMap());
+            sshAdaptor = connectToDeployment(deployment);
         } catch (NotImplementedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(tosca_UUID, uniqId);
             throw new NoSuccessException(ex);
         } catch (AuthenticationFailedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(tosca_UUID, uniqId);
             throw new PermissionDeniedException(ex);
         } catch (AuthorizationFailedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(tosca_UUID, uniqId);
             throw new PermissionDeniedException(ex);
         } catch (BadParameterException ex) {
-            releaseToscaResources();
+            releaseToscaResources(tosca_UUID, uniqId);
             throw new NoSuccessException(ex);
         } catch (Exception ex) {
-            releaseToscaResources();
+            releaseToscaResources(tosca_UUID, uniqId);
             throw new NoSuccessException(ex);
         }
         //result = sshControlAdaptor.submit(jobDesc, checkMatch, uniqId)
         //        + "@" + ssh_publicIP + ":" + ssh_port + "#" + tosca_UUID;
-        result = sshControlAdaptor.submit(jobDesc, checkMatch, uniqId) + "#" + tosca_UUID;                        
+        String sshJobId = null;
+        try {
+            sshJobId = submitSsh(sshAdaptor, jobDesc, checkMatch, uniqId);
+        } finally {
+            sshSessions.release(sshAdaptor);
+            // The job never reached the node, give back its deployment
+            if (null == sshJobId)
+                releaseToscaResources(tosca_UUID, uniqId);
+        }
+        result = buildJobId(sshJobId, tosca_UUID);
         
         log.debug("submit (end)");
         log.debug("JobId: '"+result+"'");
-        this.tosca_id = result;
+        registerJob(result, sshJobId, tosca_UUID);
         return result;
     }
+
+    /**
+     * Timed submission of a job to the SSH adaptor of its node
+     */
+    private static String submitSsh(SSHJobControlAdaptor sshAdaptor,
+                                    String jobDesc,
+                                    boolean checkMatch,
+                                    String uniqId)
+            throws PermissionDeniedException,
+                   TimeoutException,
+                   NoSuccessException,
+                   BadResource {
+        ToscaMetric metric = ToscaMetrics.timer(ToscaMetrics.SSH_SUBMIT);
+        long start = System.currentTimeMillis();
+        boolean done = false;
+        try {
+            String sshJobId = sshAdaptor.submit(jobDesc, checkMatch, uniqId);
+            done = true;
+            return sshJobId;
+        } finally {
+            if (done)
+                metric.recordSince(start);
+            else
+                metric.recordError();
+        }
+    }
+
+    /**
+     * Job id of a submitted job, carrying the node address when known
+     */
+    private String buildJobId(String sshJobId, String toscaUUID) {
+        ToscaCredentialStore.Entry node = (null != credentialStore)
+                ? credentialStore.get(toscaUUID)
+                : null;
+        return (null != node)
+               ? new ToscaJobId(sshJobId, toscaUUID, node.getHost(), node.getPort()).toString()
+               : new ToscaJobId(sshJobId, toscaUUID).toString();
+    }
+
+    /**
+     * Submit many jobs at once. Deployment requests, readiness waits and
+     * SSH submissions run as a pipeline whose stage concurrency is given by
+     * batch_post_threads, batch_wait_slots and batch_ssh_threads. Every job
+     * gets its own deployment unless shared or pooled ones are available.
+     *
+     * @param jobDescs Job descriptions
+     * @param checkMatch Passed to each SSH submission
+     * @param uniqIds Unique id of each job
+     * @return The id or the failure of each job and the batch throughput
+     * @throws NoSuccessException If interrupted while waiting the batch
+     */
+    public ToscaBatchSubmitter.Report submitBatch(String[] jobDescs,
+                                                  boolean checkMatch,
+                                                  String[] uniqIds)
+            throws NoSuccessException {
+        log.debug("submitBatch (begin) " + jobDescs.length + " jobs");
+        ToscaBatchSubmitter batch = new ToscaBatchSubmitter(batch_post_threads_val,
+                                                            batch_wait_slots_val,
+                                                            batch_ssh_threads_val);
+        ToscaBatchSubmitter.Report report = batch.submit(jobDescs, checkMatch, uniqIds,
+                new ToscaBatchSubmitter.Stages() {
+            @Override
+            public ToscaDeploymentFuture deploy(ToscaBatchSubmitter.Job job)
+                    throws SagaException {
+                ToscaDeploymentInfo pooled = acquireSharedDeployment(job.getUniqId());
+                if (null == pooled)
+                    pooled = takePooledDeployment();
+                if (null != pooled) {
+                    ToscaDeploymentFuture future = new ToscaDeploymentFuture(pooled.getUuid());
+                    future.complete(pooled);
+                    return future;
+                }
+                long submitTime = System.currentTimeMillis();
+                job.setProvisionStart(submitTime);
+                String toscaUUID;
+                try {
+                    toscaUUID = getUuid(submitTosca());
+                } catch (IOException ex) {
+                    throw new NoSuccessException(ex);
+                } catch (ParseException ex) {
+                    throw new NoSuccessException(ex);
+                }
+                if (null == toscaUUID)
+                    throw new NoSuccessException("Deployment error; missing resource UUID.");
+                return deploymentWatcher.watch(toscaUUID, createPollingPolicy(), submitTime);
+            }
+
+            @Override
+            public String submit(ToscaBatchSubmitter.Job job, ToscaDeploymentInfo deployment)
+                    throws SagaException {
+                if (job.getProvisionStart() > 0)
+                    deploymentReady(deployment, job.getProvisionStart());
+                shareDeployment(deployment, job.getUniqId());
+                SSHJobControlAdaptor sshAdaptor;
+                try {
+                    sshAdaptor = connectToDeployment(deployment);
+                } catch (NumberFormatException ex) {
+                    throw new NoSuccessException(ex);
+                }
+                String sshJobId;
+                try {
+                    sshJobId = submitSsh(sshAdaptor,
+                                         job.getJobDesc(),
+                                         job.isCheckMatch(),
+                                         job.getUniqId());
+                } finally {
+                    sshSessions.release(sshAdaptor);
+                }
+                String result = buildJobId(sshJobId, deployment.getUuid());
+                registerJob(result, sshJobId, deployment.getUuid());
+                return result;
+            }
+
+            @Override
+            public void failed(ToscaBatchSubmitter.Job job, String toscaUUID) {
+                releaseToscaResources(toscaUUID, job.getUniqId());
+            }
+        });
+        log.debug("submitBatch (end) " + report);
+        return report;
+    }
+
+    /**
+     * Asynchronous submission; the job id is returned as soon as the
+     * orchestrator accepted the deployment, the SSH submission takes
+     * place in background once it is ready. The SSH job id is the given
+     * uniqId, so the returned job id does not change after submission.
+     */
+    private String submitAsync(final String jobDesc,
+                               final boolean checkMatch,
+                               final String uniqId)
+            throws NoSuccessException,
+                   BadResource {
+        long submitTime = System.currentTimeMillis();
+        ToscaDeploymentFuture future;
+        ToscaDeploymentInfo pooled = acquireSharedDeployment(uniqId);
+        if (null == pooled)
+            pooled = takePooledDeployment();
+        String tosca_UUID = null;
+        if (null != pooled) {
+            tosca_UUID = pooled.getUuid();
+            future = new ToscaDeploymentFuture(tosca_UUID);
+            future.complete(pooled);
+        } else {
+            log.info("Creating a new tosca resource (asynchronous) ...");
+            try {
+                tosca_UUID = getUuid(submitTosca());
+            } catch (IOException ex) {
+                throw new NoSuccessException(ex);
+            } catch (ParseException ex) {
+                throw new NoSuccessException(ex);
+            }
+            if (null == tosca_UUID)
+                throw new NoSuccessException("Deployment error; missing resource UUID.");
+            future = deploymentWatcher.watch(tosca_UUID, createPollingPolicy(), submitTime);
+        }
+
+        final String toscaUUID = tosca_UUID;
+        final long startTime = (null != pooled) ? -1 : submitTime;
+        final String result = new ToscaJobId(uniqId, toscaUUID).toString();
+        ToscaAsyncSubmitter.submit(result, future, new ToscaAsyncSubmitter.Task() {
+            @Override
+            public void submit(ToscaDeploymentInfo deployment)
+                    throws SagaException {
+                if (startTime > 0)
+                    deploymentReady(deployment, startTime);
+                shareDeployment(deployment, uniqId);
+                SSHJobControlAdaptor sshAdaptor;
+                try {
+                    sshAdaptor = connectToDeployment(deployment);
+                } catch (NumberFormatException ex) {
+                    throw new NoSuccessException(ex);
+                }
+                String sshJobId;
+                try {
+                    sshJobId = submitSsh(sshAdaptor, jobDesc, checkMatch, uniqId);
+                } finally {
+                    sshSessions.release(sshAdaptor);
+                }
+                if (!uniqId.equals(sshJobId))
+                    log.warn("SSH job id '" + sshJobId + "' differs from '" + uniqId + "'");
+            }
+
+            @Override
+            public void failed(SagaException cause) {
+                releaseDeployment(toscaUUID, uniqId);
+            }
+        }, async_threads_val);
+
+        log.debug("submit (end)");
+        log.debug("JobId: '"+result+"' (asynchronous)");
+        registerJob(result, uniqId, toscaUUID);
+        return result;
+    }
+
+    /**
+     * Make a submitted job known to the monitor and to the job registry
+     */
+    private void registerJob(String jobId, String sshJobId, String toscaUUID) {
+        ToscaJobMonitorAdaptor.jobSubmitted(jobId);
+        if (null != jobRegistry)
+            jobRegistry.jobSubmitted(jobId, sshJobId, toscaUUID);
+    }
+
+    /**
+     * Pending asynchronous submission of the given job, if any
+     */
+    private ToscaAsyncSubmitter.Submission getSubmission(String nativeJobId) {
+        return ToscaAsyncSubmitter.get(nativeJobId);
+    }
+
+    /**
+     * Block until the SSH job of an asynchronous submission exists
+     */
+    private void awaitSubmission(String nativeJobId) throws NoSuccessException {
+        ToscaAsyncSubmitter.Submission submission = getSubmission(nativeJobId);
+        if (null != submission) {
+            log.debug("Waiting for asynchronous submission of '" + nativeJobId + "'");
+            submission.await();
+        }
+    }
+
+    /**
+     * Cancel an asynchronous submission whose deployment is not yet ready,
+     * or wait for it if the SSH submission already started
+     *
+     * @param nativeJobId Job id
+     * @param forget Drop the submission state
+     * @return true if no SSH job exists for this job
+     */
+    private boolean cancelSubmission(String nativeJobId, boolean forget) {
+        ToscaAsyncSubmitter.Submission submission = getSubmission(nativeJobId);
+        if (null == submission)
+            return false;
+        ToscaJobId jobId = ToscaJobId.parse(nativeJobId);
+        String toscaUUID = jobId.getToscaUUID();
+        if (submission.cancel()) {
+            log.debug("Canceled asynchronous submission of '" + nativeJobId + "'");
+            // A deployment still being watched belongs to this job only
+            if (ToscaSharedDeployments.getReferences(toscaUUID) == 0)
+                deploymentWatcher.unwatch(toscaUUID);
+            releaseDeployment(toscaUUID, jobId.getSshJobId());
+        }
+        if (forget)
+            ToscaAsyncSubmitter.remove(nativeJobId);
+        try {
+            submission.await();
+            return false;
+        } catch (NoSuccessException ex) {
+            log.debug("No job to act on: " + ex.getMessage());
+            return true;
+        }
+    }
    
     @Override
     public StagingTransfer[] getInputStagingTransfer(String nativeJobId)
@@ -463,42 +969,39 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
         StagingTransfer[] result = null;
         log.debug("getInputStagingTransfer (begin)");
         
+        // Asynchronous jobs may be still waiting their deployment
+        awaitSubmission(nativeJobId);
+
         // Get and retrieve info from JobId
-        String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-        String sshJobId    = jobIdInfo[1];
-        tosca_UUID         = jobIdInfo[2];
-        String sshPublicIP = jobIdInfo[3];
-        int sshPort        = Integer.parseInt(jobIdInfo[4]);
-        ssh_username       = jobIdInfo[5];
-        ssh_password       = jobIdInfo[6];                        
+        ToscaJobContext job = getJobContext(nativeJobId);
         
-        try {                        
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-            result = sshControlAdaptor.getInputStagingTransfer(sshJobId);
+        SSHJobControlAdaptor sshAdaptor = null;
+        try {
+            sshAdaptor = sshSessions.getControl(job);
+            result = sshAdaptor.getInputStagingTransfer(job.getSshJobId());
             for(int i=0; i<result.length; i++)
                 log.debug("result("+i+"): '" + result[i]+"'");
         } catch (NotImplementedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new NoSuccessException(ex);
         } catch (AuthenticationFailedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new PermissionDeniedException(ex);
         } catch (AuthorizationFailedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new PermissionDeniedException(ex);
         } catch (BadParameterException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new NoSuccessException(ex);
+        } finally {
+            sshSessions.release(sshAdaptor);
         }
         // View result
         for (StagingTransfer tr : result) {
             log.debug("From: '" + tr.getFrom() + "' to '" + tr.getTo() + "'");
         }
         log.debug("getInputStagingTransfer (end)");
-        return sftp2tosca(result);
+        return sftp2tosca(result, job.getToscaUUID());
     }
 
     @Override
@@ -509,47 +1012,46 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
         StagingTransfer[] result = null;
         log.debug("getOutputStagingTransfer (begin)");
 
+        // Asynchronous jobs may be still waiting their deployment
+        awaitSubmission(nativeJobId);
+
         // Get and retrieve info from JobId
-        String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-        String sshJobId    = jobIdInfo[1];
-        tosca_UUID         = jobIdInfo[2];
-        String sshPublicIP = jobIdInfo[3];
-        int sshPort        = Integer.parseInt(jobIdInfo[4]);
-        ssh_username       = jobIdInfo[5];
-        ssh_password       = jobIdInfo[6];                        
+        ToscaJobContext job = getJobContext(nativeJobId);
         
+        SSHJobControlAdaptor sshAdaptor = null;
         try {
-            log.debug("ssh_username: '"+ssh_username+"'");
-            log.debug("ssh_password: '"+ssh_password+"'");
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-            result = sshControlAdaptor.getOutputStagingTransfer(sshJobId);
+            sshAdaptor = sshSessions.getControl(job);
+            result = sshAdaptor.getOutputStagingTransfer(job.getSshJobId());
             for(int i=0; i<result.length; i++)
                 log.debug("result("+i+"): '" + result[i]+"'");
         } catch (NotImplementedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new NoSuccessException(ex);
         } catch (AuthenticationFailedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new PermissionDeniedException(ex);
         } catch (AuthorizationFailedException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new PermissionDeniedException(ex);
         } catch (BadParameterException ex) {
-            releaseToscaResources();
+            releaseToscaResources(job.getToscaUUID(), job.getSshJobId());
             throw new NoSuccessException(ex);
+        } finally {
+            sshSessions.release(sshAdaptor);
         }
         // View result
         for (StagingTransfer tr : result) {
             log.debug("From: '" + tr.getFrom() + "' to '" + tr.getTo() + "'");
         }
         log.debug("getOutputStagingTransfer (end)");
-        return sftp2tosca(result);
+        return sftp2tosca(result, job.getToscaUUID());
     }
 
-    private StagingTransfer[] sftp2tosca(StagingTransfer[] transfers) {
+    /**
+     * Give the node files to the TOSCA data adaptor; the URLs carry the
+     * deployment UUID the node access data are looked up with
+     */
+    protected StagingTransfer[] sftp2tosca(StagingTransfer[] transfers, String toscaUUID) {
         int index = 0;
         StagingTransfer[] newTransfers = new StagingTransfer[transfers.length];
 
@@ -558,8 +1060,8 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             log.debug("From: " + tr.getFrom() + " to " + tr.getTo());
             StagingTransfer newTr
                     = new StagingTransfer(
-                            tr.getFrom().replace("sftp://", "tosca://"),
-                            tr.getTo().replace("sftp://", "tosca://"),
+                            sftp2tosca(tr.getFrom(), toscaUUID),
+                            sftp2tosca(tr.getTo(), toscaUUID),
                             tr.isAppend());
 
             newTransfers[index++] = newTr;
@@ -568,6 +1070,15 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
         return newTransfers;
     }
 
+    private static String sftp2tosca(String url, String toscaUUID) {
+        if (!url.startsWith("sftp://")) {
+            return url;
+        }
+        return "tosca://" + url.substring("sftp://".length())
+                + ((url.indexOf('?') < 0) ? "?" : "&")
+                + TOSCA_DEPLOYMENT_UUID + "=" + toscaUUID;
+    }
+
     @Override
     public String getStagingDirectory(String nativeJobId)
             throws PermissionDeniedException,
@@ -576,21 +1087,16 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
         String result = "";
         log.debug("getStagingDirectory (begin)");                        
                 
+        // Asynchronous jobs may be still waiting their deployment
+        awaitSubmission(nativeJobId);
+
         // Get and retrieve info from JobId
-        String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-        String sshJobId    = jobIdInfo[1];
-        tosca_UUID         = jobIdInfo[2];
-        String sshPublicIP = jobIdInfo[3];
-        int sshPort        = Integer.parseInt(jobIdInfo[4]);
-        ssh_username       = jobIdInfo[5];
-        ssh_password       = jobIdInfo[6]; 
+        ToscaJobContext job = getJobContext(nativeJobId);
         
+        SSHJobControlAdaptor sshAdaptor = null;
         try {
-            sshControlAdaptor.setSecurityCredential(
-                    new UserPassSecurityCredential(ssh_username, ssh_password)
-            );
-            sshControlAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-            result = sshControlAdaptor.getStagingDirectory(sshJobId);
+            sshAdaptor = sshSessions.getControl(job);
+            result = sshAdaptor.getStagingDirectory(job.getSshJobId());
             log.debug("result: " + result);
         } catch (NotImplementedException ex) {
             throw new NoSuccessException(ex);
@@ -600,6 +1106,8 @@ public class ToscaJobControlAdaptor extends ToscaAdaptorCommon
             throw new PermissionDeniedException(ex);
         } catch (BadParameterException ex) {
             throw new NoSuccessException(ex);
+        } finally {
+            sshSessions.release(sshAdaptor);
         }
         log.debug("getStagingDirectory (end)");
         return result;
@@ -0,0 +1,117 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+/**
+ * Native job id codec. Two formats are accepted:
+ * <ul>
+ * <li>v1 (legacy): &lt;sshJobId&gt;#&lt;toscaUUID&gt;</li>
+ * <li>v2: v2#&lt;sshJobId&gt;#&lt;toscaUUID&gt;[#&lt;host&gt;:&lt;port&gt;]</li>
+ * </ul>
+ * The v2 format carries the node address, so that a job can be reached
+ * without asking the orchestrator; the address is missing when the id is
+ * issued before the deployment is ready (asynchronous submission).
+ */
+public class ToscaJobId {
+
+    public static final String V2 = "v2";
+    private static final String SEP = "#";
+
+    private final String sshJobId;
+    private final String toscaUUID;
+    private final String host;
+    private final int port;
+
+    public ToscaJobId(String sshJobId, String toscaUUID, String host, int port) {
+        this.sshJobId = sshJobId;
+        this.toscaUUID = toscaUUID;
+        this.host = host;
+        this.port = port;
+    }
+
+    public ToscaJobId(String sshJobId, String toscaUUID) {
+        this(sshJobId, toscaUUID, null, -1);
+    }
+
+    /**
+     * Decode a native job id
+     *
+     * @param nativeJobId Job id in v1 or v2 format
+     * @return The decoded id
+     * @throws IllegalArgumentException If the id cannot be decoded
+     */
+    public static ToscaJobId parse(String nativeJobId) {
+        String[] parts = nativeJobId.split(SEP, -1);
+        if (parts.length == 2) {
+            return new ToscaJobId(parts[0], parts[1]);
+        }
+        if (V2.equals(parts[0]) && (parts.length == 3 || parts.length == 4)) {
+            if (parts.length == 3 || parts[3].length() == 0) {
+                return new ToscaJobId(parts[1], parts[2]);
+            }
+            int colon = parts[3].lastIndexOf(':');
+            try {
+                return (colon < 0)
+                        ? new ToscaJobId(parts[1], parts[2], parts[3], 22)
+                        : new ToscaJobId(parts[1], parts[2],
+                                parts[3].substring(0, colon),
+                                Integer.parseInt(parts[3].substring(colon + 1)));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid port in job id '" + nativeJobId + "'");
+            }
+        }
+        throw new IllegalArgumentException("Invalid job id '" + nativeJobId + "'");
+    }
+
+    public String getSshJobId() {
+        return sshJobId;
+    }
+
+    public String getToscaUUID() {
+        return toscaUUID;
+    }
+
+    /**
+     * @return The node address or null if not carried by the id
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean hasAddress() {
+        return null != host;
+    }
+
+    @Override
+    public String toString() {
+        return V2 + SEP + sshJobId + SEP + toscaUUID
+                + (hasAddress() ? SEP + host + ":" + port : "");
+    }
+}
@@ -35,14 +35,21 @@ import it.infn.ct.jsaga.adaptor.tosca.ToscaAdaptorCommon;
 import fr.in2p3.jsaga.adaptor.job.control.manage.ListableJobAdaptor;
 import fr.in2p3.jsaga.adaptor.job.monitor.JobInfoAdaptor;
 import fr.in2p3.jsaga.adaptor.job.monitor.JobStatus;
+import fr.in2p3.jsaga.adaptor.job.monitor.QueryFilteredJob;
 import fr.in2p3.jsaga.adaptor.job.monitor.QueryIndividualJob;
-import fr.in2p3.jsaga.adaptor.security.impl.UserPassSecurityCredential;
+import fr.in2p3.jsaga.adaptor.job.monitor.QueryListJob;
 import fr.in2p3.jsaga.adaptor.ssh3.job.SSHJobMonitorAdaptor;
 import static it.infn.ct.jsaga.adaptor.tosca.ToscaAdaptorCommon.LS;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import java.util.logging.Level;
 import java.util.regex.Matcher;
@@ -66,6 +73,8 @@ import org.ogf.saga.error.*;
 
 public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon 
                                       implements QueryIndividualJob, 
+                                                 QueryListJob, 
+                                                 QueryFilteredJob, 
                                                  ListableJobAdaptor, 
                                                  JobInfoAdaptor
 {      
@@ -80,6 +89,54 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
   
   private static final Logger log = 
           Logger.getLogger(ToscaJobMonitorAdaptor.class);
+
+  // Bulk queries check the different hosts in parallel
+  private static final int STATUS_THREADS = 8;
+  private static ExecutorService statusPool = null;
+
+  // Jobs submitted by this process, used by filtered queries; the oldest
+  // ones are forgotten beyond MAX_SUBMITTED_JOBS
+  private static final int MAX_SUBMITTED_JOBS = 10000;
+  private static final Map<String, Date> submittedJobs =
+          new LinkedHashMap<String, Date>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Date> eldest) {
+              return size() > MAX_SUBMITTED_JOBS;
+            }
+          };
+
+  /**
+   * Jobs of the same host; their status is read over a single SSH
+   * connection
+   */
+  private static class HostJobs {
+    final String host;
+    final int port;
+    final String username;
+    final String password;
+    final String toscaUUID;
+    final Map<String, String> jobs = new LinkedHashMap<String, String>();
+
+    HostJobs(String[] sshCredentials, String toscaUUID) {
+      this.toscaUUID = toscaUUID;
+      host = sshCredentials[0];
+      port = Integer.parseInt(sshCredentials[1]);
+      username = sshCredentials[2];
+      password = sshCredentials[3];
+    }
+  }
+
+  static void jobSubmitted(String nativeJobId) {
+    synchronized (submittedJobs) {
+      submittedJobs.put(nativeJobId, new Date());
+    }
+  }
+
+  static void jobCleaned(String nativeJobId) {
+    synchronized (submittedJobs) {
+      submittedJobs.remove(nativeJobId);
+    }
+  }
   
   @Override
   public void connect(String userInfo, String host, int port, 
@@ -109,24 +166,20 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
   {  
     JobStatus result = null;    
     log.debug("getStatus (begin) '"+nativeJobId+"'");
+
+    // Asynchronous jobs have no SSH job until their deployment is ready
+    ToscaAsyncSubmitter.Submission submission = ToscaAsyncSubmitter.get(nativeJobId);
+    if (null != submission) {
+        log.debug("getStatus (end) pending submission: '"+submission.getState()+"'");
+        return submission.getStatus();
+    }
     
     // Get and retrieve info from JobId
-    String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-    String sshJobId    = jobIdInfo[1];
-    tosca_UUID         = jobIdInfo[2];
-    String sshPublicIP = jobIdInfo[3];
-    int sshPort        = Integer.parseInt(jobIdInfo[4]);
-    ssh_username       = jobIdInfo[5];
-    ssh_password       = jobIdInfo[6];                                                          
-            
-    credential.setUsername(ssh_username);
-    credential.setPassword(ssh_password);            
-    sshMonitorAdaptor.setSecurityCredential(
-            new UserPassSecurityCredential(ssh_username, ssh_password)
-    );    
+    ToscaJobContext job = getJobContext(nativeJobId);
+    SSHJobMonitorAdaptor sshAdaptor = null;
     try {
-        sshMonitorAdaptor.connect(null, sshPublicIP, sshPort, null, new HashMap());
-        result = sshMonitorAdaptor.getStatus(sshJobId);
+        sshAdaptor = sshSessions.getMonitor(job);
+        result = sshAdaptor.getStatus(job.getSshJobId());
     } catch (NotImplementedException ex) {
         java.util.logging.Logger.getLogger(ToscaJobMonitorAdaptor.class.getName()).log(Level.SEVERE, null, ex);
     } catch (AuthenticationFailedException ex) {
@@ -135,6 +188,8 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
         java.util.logging.Logger.getLogger(ToscaJobMonitorAdaptor.class.getName()).log(Level.SEVERE, null, ex);
     } catch (BadParameterException ex) {
         java.util.logging.Logger.getLogger(ToscaJobMonitorAdaptor.class.getName()).log(Level.SEVERE, null, ex);
+    } finally {
+        sshSessions.release(sshAdaptor);
     }
     
     log.info("");
@@ -143,6 +198,169 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
     return result;    
   }
   
+  /**
+   * Status of many jobs at once. Jobs are grouped by host: each deployment
+   * is resolved once, from the credential store when possible, and the
+   * status of the jobs of a host is read by one remote command; hosts are
+   * checked in parallel. Jobs whose host cannot be reached are left out of
+   * the result.
+   */
+  @Override
+  public JobStatus[] getStatusList(String[] nativeJobIds)
+                   throws TimeoutException, NoSuccessException
+  {
+    log.debug("getStatusList (begin) " + nativeJobIds.length + " jobs");
+    final Map<String, JobStatus> statuses = new ConcurrentHashMap<String, JobStatus>();
+    Map<String, String[]> deployments = new HashMap<String, String[]>();
+    Map<String, HostJobs> hosts = new LinkedHashMap<String, HostJobs>();
+    for (String nativeJobId : nativeJobIds) {
+      ToscaJobId jobId;
+      try {
+        jobId = ToscaJobId.parse(nativeJobId);
+      } catch (IllegalArgumentException ex) {
+        log.warn(ex.getMessage());
+        continue;
+      }
+      String sshJobId = jobId.getSshJobId();
+      String toscaUUID = jobId.getToscaUUID();
+      ToscaAsyncSubmitter.Submission submission = ToscaAsyncSubmitter.get(nativeJobId);
+      if (null != submission) {
+        statuses.put(nativeJobId, submission.getStatus());
+        continue;
+      }
+      if (!deployments.containsKey(toscaUUID)) {
+        deployments.put(toscaUUID, getNodeAccess(jobId));
+      }
+      String[] sshCredentials = deployments.get(toscaUUID);
+      if (null == sshCredentials || null == sshCredentials[0]) {
+        log.warn("Unable to get credentials for '" + toscaUUID + "'");
+        continue;
+      }
+      String key = sshCredentials[2] + "@" + sshCredentials[0] + ":" + sshCredentials[1];
+      HostJobs hostJobs = hosts.get(key);
+      if (null == hostJobs) {
+        hostJobs = new HostJobs(sshCredentials, toscaUUID);
+        hosts.put(key, hostJobs);
+      }
+      hostJobs.jobs.put(nativeJobId, sshJobId);
+    }
+
+    List<Callable<Void>> checks = new ArrayList<Callable<Void>>();
+    for (final HostJobs hostJobs : hosts.values()) {
+      checks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          getHostStatus(hostJobs, statuses);
+          return null;
+        }
+      });
+    }
+    try {
+      getStatusPool().invokeAll(checks);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new NoSuccessException("Interrupted while querying job status");
+    }
+
+    List<JobStatus> result = new ArrayList<JobStatus>();
+    for (String nativeJobId : nativeJobIds) {
+      JobStatus status = statuses.get(nativeJobId);
+      if (null != status) {
+        result.add(status);
+      }
+    }
+    log.debug("getStatusList (end) " + result.size() + "/" + nativeJobIds.length
+            + " jobs on " + hosts.size() + " hosts");
+    return result.toArray(new JobStatus[result.size()]);
+  }
+
+  /**
+   * Created on first use, after connect() selected the executor mode
+   */
+  private static synchronized ExecutorService getStatusPool() {
+    if (null == statusPool) {
+      statusPool = ToscaExecutors.newBlockingPool("tosca-status", STATUS_THREADS);
+    }
+    return statusPool;
+  }
+
+  private void getHostStatus(HostJobs hostJobs, Map<String, JobStatus> statuses) {
+    SSHJobMonitorAdaptor sshAdaptor;
+    try {
+      sshAdaptor = sshSessions.getMonitor(hostJobs.host, hostJobs.port,
+                                          hostJobs.username, hostJobs.password,
+                                          hostJobs.toscaUUID);
+    } catch (SagaException ex) {
+      log.warn("Unable to connect to '" + hostJobs.host + ":" + hostJobs.port + "': " + ex);
+      return;
+    }
+    try {
+      String[] nativeJobIds = hostJobs.jobs.keySet().toArray(new String[hostJobs.jobs.size()]);
+      String[] sshJobIds = hostJobs.jobs.values().toArray(new String[hostJobs.jobs.size()]);
+      JobStatus[] batch = null;
+      if (sshAdaptor instanceof ToscaSshSessionCache.MonitorAdaptor) {
+        try {
+          batch = ((ToscaSshSessionCache.MonitorAdaptor) sshAdaptor).getStatusList(sshJobIds);
+        } catch (NoSuccessException ex) {
+          log.warn("Unable to read the job status on '" + hostJobs.host + "', asking each job: " + ex);
+        }
+      }
+      for (int i = 0; i < sshJobIds.length; i++) {
+        if (null != batch && null != batch[i]) {
+          statuses.put(nativeJobIds[i], batch[i]);
+          continue;
+        }
+        // Jobs the batch cannot tell about, e.g. canceled ones
+        try {
+          statuses.put(nativeJobIds[i], sshAdaptor.getStatus(sshJobIds[i]));
+        } catch (SagaException ex) {
+          log.warn("Unable to get status of '" + nativeJobIds[i] + "': " + ex);
+        }
+      }
+    } finally {
+      sshSessions.release(sshAdaptor);
+    }
+  }
+
+  /**
+   * Cached SSH monitor adaptor connected to the job host, to be given back
+   * to the session cache after use
+   */
+  private SSHJobMonitorAdaptor getSshMonitor(ToscaJobContext job)
+                               throws NoSuccessException
+  {
+    try {
+      return sshSessions.getMonitor(job);
+    } catch (NoSuccessException ex) {
+      throw ex;
+    } catch (SagaException ex) {
+      throw new NoSuccessException(ex);
+    }
+  }
+
+  /**
+   * Status of the jobs submitted by this process; only the START_DATE
+   * filter applies, as all of them belong to the current user and TOSCA
+   * has no job collections.
+   */
+  @Override
+  public JobStatus[] getFilteredStatus(Object[] filters)
+                   throws TimeoutException, NoSuccessException
+  {
+    Date startDate = (null != filters && filters.length > START_DATE)
+                     ? (Date) filters[START_DATE]
+                     : null;
+    List<String> jobIds = new ArrayList<String>();
+    synchronized (submittedJobs) {
+      for (Map.Entry<String, Date> job : submittedJobs.entrySet()) {
+        if (null == startDate || !job.getValue().before(startDate)) {
+          jobIds.add(job.getKey());
+        }
+      }
+    }
+    return getStatusList(jobIds.toArray(new String[jobIds.size()]));
+  }
+
   @Override
   public String[] list() throws PermissionDeniedException, TimeoutException, NoSuccessException 
   {
@@ -157,15 +375,14 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
     log.info("getCreated() (start)");
     
     // Get and retrieve info from JobId
-    String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-    String sshJobId    = jobIdInfo[1];
-    tosca_UUID         = jobIdInfo[2];
-    String sshPublicIP = jobIdInfo[3];
-    int sshPort        = Integer.parseInt(jobIdInfo[4]);
-    ssh_username       = jobIdInfo[5];
-    ssh_password       = jobIdInfo[6];                                                          
+    ToscaJobContext job = getJobContext(nativeJobId);
     
-    result = sshMonitorAdaptor.getCreated(sshJobId);
+    SSHJobMonitorAdaptor sshAdaptor = getSshMonitor(job);
+    try {
+      result = sshAdaptor.getCreated(job.getSshJobId());
+    } finally {
+      sshSessions.release(sshAdaptor);
+    }
     log.info("getCreated() (end)");    
     return result;
   }
@@ -178,15 +395,14 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
     log.info("getStarted() (begin)");
     
     // Get and retrieve info from JobId
-    String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-    String sshJobId    = jobIdInfo[1];
-    tosca_UUID         = jobIdInfo[2];
-    String sshPublicIP = jobIdInfo[3];
-    int sshPort        = Integer.parseInt(jobIdInfo[4]);
-    ssh_username       = jobIdInfo[5];
-    ssh_password       = jobIdInfo[6];                                                          
+    ToscaJobContext job = getJobContext(nativeJobId);
     
-    result = sshMonitorAdaptor.getStarted(sshJobId);
+    SSHJobMonitorAdaptor sshAdaptor = getSshMonitor(job);
+    try {
+      result = sshAdaptor.getStarted(job.getSshJobId());
+    } finally {
+      sshSessions.release(sshAdaptor);
+    }
     log.info("getStarted() (end)");
     return result;
   }
@@ -199,15 +415,14 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
     log.info("getFinished() (begin)");
     
     // Get and retrieve info from JobId
-    String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-    String sshJobId    = jobIdInfo[1];
-    tosca_UUID         = jobIdInfo[2];
-    String sshPublicIP = jobIdInfo[3];
-    int sshPort        = Integer.parseInt(jobIdInfo[4]);
-    ssh_username       = jobIdInfo[5];
-    ssh_password       = jobIdInfo[6];                                                          
+    ToscaJobContext job = getJobContext(nativeJobId);
     
-    result = sshMonitorAdaptor.getFinished(sshJobId);
+    SSHJobMonitorAdaptor sshAdaptor = getSshMonitor(job);
+    try {
+      result = sshAdaptor.getFinished(job.getSshJobId());
+    } finally {
+      sshSessions.release(sshAdaptor);
+    }
     log.info("getFinished() (end)");
     return result;
   }
@@ -220,15 +435,14 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
     log.info("getExitCode() (begin)");
     
     // Get and retrieve info from JobId
-    String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-    String sshJobId    = jobIdInfo[1];
-    tosca_UUID         = jobIdInfo[2];
-    String sshPublicIP = jobIdInfo[3];
-    int sshPort        = Integer.parseInt(jobIdInfo[4]);
-    ssh_username       = jobIdInfo[5];
-    ssh_password       = jobIdInfo[6];                                                          
+    ToscaJobContext job = getJobContext(nativeJobId);
     
-    result = sshMonitorAdaptor.getExitCode(sshJobId);
+    SSHJobMonitorAdaptor sshAdaptor = getSshMonitor(job);
+    try {
+      result = sshAdaptor.getExitCode(job.getSshJobId());
+    } finally {
+      sshSessions.release(sshAdaptor);
+    }
     log.info("getExitCode() (end)");
     return result;
   }
@@ -241,15 +455,14 @@ public class ToscaJobMonitorAdaptor extends ToscaAdaptorCommon
     log.info("getExecutionHosts() (begin)");
     
     // Get and retrieve info from JobId
-    String[] jobIdInfo = getInfoFromNativeJobId(nativeJobId);
-    String sshJobId    = jobIdInfo[1];
-    tosca_UUID         = jobIdInfo[2];
-    String sshPublicIP = jobIdInfo[3];
-    int sshPort        = Integer.parseInt(jobIdInfo[4]);
-    ssh_username       = jobIdInfo[5];
-    ssh_password       = jobIdInfo[6];                                                          
+    ToscaJobContext job = getJobContext(nativeJobId);
     
-    result = sshMonitorAdaptor.getExecutionHosts(sshJobId);
+    SSHJobMonitorAdaptor sshAdaptor = getSshMonitor(job);
+    try {
+      result = sshAdaptor.getExecutionHosts(job.getSshJobId());
+    } finally {
+      sshSessions.release(sshAdaptor);
+    }
     log.info("getExecutionHosts() (end)");
     return result;
   }
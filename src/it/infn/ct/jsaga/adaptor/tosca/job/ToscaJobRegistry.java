@@ -0,0 +1,624 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent registry of the jobs submitted by this user and of their
+ * deployments, kept in an embedded H2 database. Deployments are recorded
+ * as soon as the orchestrator accepts them, with the end-point owning them;
+ * node address and SSH user are added once they are ready. Passwords are
+ * not stored here but in the ToscaCredentialStore.
+ * <p>
+ * The whole registry is loaded at start-up and lookups are served from
+ * memory. Changes are written behind: they are queued and stored in
+ * batches by a single thread, so submissions never wait for the disk.
+ */
+public class ToscaJobRegistry {
+
+    private static final Logger log = Logger.getLogger(ToscaJobRegistry.class);
+
+    public static final String DISABLED = "none";
+    public static final long DEFAULT_FLUSH_MS = 200;
+    public static final int DEFAULT_BATCH = 500;
+    public static final long RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String JOBS_TABLE
+            = "CREATE TABLE IF NOT EXISTS TOSCA_JOBS ("
+            + "JOB_ID VARCHAR(1024) PRIMARY KEY, "
+            + "SSH_JOB_ID VARCHAR(512), "
+            + "TOSCA_UUID VARCHAR(64), "
+            + "SUBMITTED BIGINT, "
+            + "FINISHED BIGINT)";
+    private static final String DEPLOYMENTS_TABLE
+            = "CREATE TABLE IF NOT EXISTS TOSCA_DEPLOYMENTS ("
+            + "TOSCA_UUID VARCHAR(64) PRIMARY KEY, "
+            + "ENDPOINT VARCHAR(1024), "
+            + "TEMPLATE VARCHAR(1024), "
+            + "CREATED BIGINT, "
+            + "READY BIGINT, "
+            + "RELEASED BIGINT, "
+            + "HOST VARCHAR(255), "
+            + "PORT INT, "
+            + "USERNAME VARCHAR(255))";
+    private static final String MERGE_JOB
+            = "MERGE INTO TOSCA_JOBS (JOB_ID, SSH_JOB_ID, TOSCA_UUID, SUBMITTED, FINISHED)"
+            + " KEY (JOB_ID) VALUES (?, ?, ?, ?, ?)";
+    private static final String MERGE_DEPLOYMENT
+            = "MERGE INTO TOSCA_DEPLOYMENTS (TOSCA_UUID, ENDPOINT, TEMPLATE, CREATED,"
+            + " READY, RELEASED, HOST, PORT, USERNAME)"
+            + " KEY (TOSCA_UUID) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final Map<String, ToscaJobRegistry> registries
+            = new HashMap<String, ToscaJobRegistry>();
+
+    private final String url;
+    private final Connection conn;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final Map<String, Deployment> deployments
+            = new ConcurrentHashMap<String, Deployment>();
+    private final Set<String> dirtyJobs = new LinkedHashSet<String>();
+    private final Set<String> dirtyDeployments = new LinkedHashSet<String>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushRequested.set(false);
+            flush();
+        }
+    };
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * A submitted job
+     */
+    public static class Job {
+
+        private final String jobId;
+        private final String sshJobId;
+        private final String toscaUUID;
+        private final long submitted;
+        private final long finished;
+
+        Job(String jobId, String sshJobId, String toscaUUID,
+                long submitted, long finished) {
+            this.jobId = jobId;
+            this.sshJobId = sshJobId;
+            this.toscaUUID = toscaUUID;
+            this.submitted = submitted;
+            this.finished = finished;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getSshJobId() {
+            return sshJobId;
+        }
+
+        public String getToscaUUID() {
+            return toscaUUID;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * @return The time the job has been cleaned, or 0
+         */
+        public long getFinished() {
+            return finished;
+        }
+    }
+
+    /**
+     * A deployment created by this user
+     */
+    public static class Deployment {
+
+        private final String toscaUUID;
+        private final String endpoint;
+        private final String template;
+        private final long created;
+        private final long ready;
+        private final long released;
+        private final String host;
+        private final int port;
+        private final String username;
+
+        Deployment(String toscaUUID, String endpoint, String template,
+                long created, long ready, long released,
+                String host, int port, String username) {
+            this.toscaUUID = toscaUUID;
+            this.endpoint = endpoint;
+            this.template = template;
+            this.created = created;
+            this.ready = ready;
+            this.released = released;
+            this.host = host;
+            this.port = port;
+            this.username = username;
+        }
+
+        public String getToscaUUID() {
+            return toscaUUID;
+        }
+
+        /**
+         * @return The orchestrator end-point owning the deployment
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return The time the node access became known, or 0
+         */
+        public long getReady() {
+            return ready;
+        }
+
+        /**
+         * @return The time the deployment has been released, or 0
+         */
+        public long getReleased() {
+            return released;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    ToscaJobRegistry(File path) throws SQLException {
+        url = "jdbc:h2:" + path.getAbsolutePath() + ";DB_CLOSE_ON_EXIT=FALSE";
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("H2 driver not available", ex);
+        }
+        conn = DriverManager.getConnection(url, "sa", "");
+        long start = System.currentTimeMillis();
+        Statement st = conn.createStatement();
+        try {
+            st.execute(JOBS_TABLE);
+            st.execute(DEPLOYMENTS_TABLE);
+        } finally {
+            st.close();
+        }
+        prune(start - RETENTION_MS);
+        load();
+        log.info("Loaded job registry '" + path + "': " + jobs.size() + " jobs, "
+                + deployments.size() + " deployments in "
+                + (System.currentTimeMillis() - start) + "ms");
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                ToscaDeploymentWatcher.daemonThreads("tosca-job-registry"));
+        flusher.scheduleWithFixedDelay(flushTask,
+                DEFAULT_FLUSH_MS, DEFAULT_FLUSH_MS, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                prune(System.currentTimeMillis() - RETENTION_MS);
+            }
+        }, 1, 1, TimeUnit.HOURS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, "tosca-job-registry-shutdown"));
+    }
+
+    /**
+     * Return the registry kept in the given database, opening and loading
+     * it on first use
+     *
+     * @param path Database file name without extension, null for
+     * ~/.jsaga/tosca-jobs, or "none" to disable the registry
+     * @return The shared registry, or null if disabled or not available
+     */
+    public static ToscaJobRegistry getInstance(String path) {
+        if (DISABLED.equalsIgnoreCase(path)) {
+            return null;
+        }
+        File file = (null != path && path.length() > 0)
+                ? new File(path)
+                : new File(System.getProperty("user.home"),
+                        ".jsaga" + File.separator + "tosca-jobs");
+        synchronized (registries) {
+            String key = file.getAbsolutePath();
+            if (registries.containsKey(key)) {
+                return registries.get(key);
+            }
+            ToscaJobRegistry registry = null;
+            try {
+                registry = new ToscaJobRegistry(file);
+            } catch (SQLException ex) {
+                log.warn("Job registry '" + file + "' not available: " + ex);
+            }
+            registries.put(key, registry);
+            return registry;
+        }
+    }
+
+    public Job getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    public Deployment getDeployment(String toscaUUID) {
+        return deployments.get(toscaUUID);
+    }
+
+    /**
+     * @return The deployments not yet released
+     */
+    public List<Deployment> getLiveDeployments() {
+        List<Deployment> live = new ArrayList<Deployment>();
+        for (Deployment d : deployments.values()) {
+            if (d.released == 0) {
+                live.add(d);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Record a deployment accepted by the orchestrator
+     *
+     * @param toscaUUID Deployment UUID
+     * @param endpoint End-point owning the deployment
+     * @param template TOSCA template of the deployment
+     */
+    public void deploymentCreated(String toscaUUID, String endpoint, String template) {
+        if (null == toscaUUID) {
+            return;
+        }
+        deployments.put(toscaUUID, new Deployment(toscaUUID, endpoint, template,
+                System.currentTimeMillis(), 0, 0, null, -1, null));
+        changed(dirtyDeployments, toscaUUID);
+    }
+
+    /**
+     * Record the node of a ready deployment; unknown deployments are
+     * added without end-point
+     */
+    public void deploymentReady(String toscaUUID, String host, int port, String username) {
+        if (null == toscaUUID) {
+            return;
+        }
+        synchronized (deployments) {
+            Deployment d = deployments.get(toscaUUID);
+            if (null != d && equals(host, d.host) && port == d.port
+                    && equals(username, d.username)) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            deployments.put(toscaUUID, (null == d)
+                    ? new Deployment(toscaUUID, null, null, now, now, 0, host, port, username)
+                    : new Deployment(toscaUUID, d.endpoint, d.template, d.created,
+                            (d.ready > 0) ? d.ready : now, d.released,
+                            host, port, username));
+        }
+        changed(dirtyDeployments, toscaUUID);
+    }
+
+    public void deploymentReleased(String toscaUUID) {
+        synchronized (deployments) {
+            Deployment d = deployments.get(toscaUUID);
+            if (null == d || d.released > 0) {
+                return;
+            }
+            deployments.put(toscaUUID, new Deployment(toscaUUID, d.endpoint,
+                    d.template, d.created, d.ready, System.currentTimeMillis(),
+                    d.host, d.port, d.username));
+        }
+        changed(dirtyDeployments, toscaUUID);
+    }
+
+    /**
+     * Record a submitted, or resolved, job
+     */
+    public void jobSubmitted(String jobId, String sshJobId, String toscaUUID) {
+        if (null == jobId || jobs.containsKey(jobId)) {
+            return;
+        }
+        jobs.put(jobId, new Job(jobId, sshJobId, toscaUUID, System.currentTimeMillis(), 0));
+        changed(dirtyJobs, jobId);
+    }
+
+    public void jobFinished(String jobId) {
+        synchronized (jobs) {
+            Job j = jobs.get(jobId);
+            if (null == j || j.finished > 0) {
+                return;
+            }
+            jobs.put(jobId, new Job(jobId, j.sshJobId, j.toscaUUID,
+                    j.submitted, System.currentTimeMillis()));
+        }
+        changed(dirtyJobs, jobId);
+    }
+
+    /**
+     * @return The UUIDs of the deployments running jobs not yet cleaned
+     */
+    public Set<String> getDeploymentsInUse() {
+        Set<String> inUse = new HashSet<String>();
+        for (Job j : jobs.values()) {
+            if (j.finished == 0 && null != j.toscaUUID) {
+                inUse.add(j.toscaUUID);
+            }
+        }
+        return inUse;
+    }
+
+    private void changed(Set<String> dirty, String key) {
+        int pending;
+        synchronized (this) {
+            dirty.add(key);
+            pending = dirtyJobs.size() + dirtyDeployments.size();
+        }
+        if (pending >= DEFAULT_BATCH && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(flushTask);
+        }
+    }
+
+    /**
+     * Store the pending changes
+     */
+    public void flush() {
+        List<Job> jobBatch = new ArrayList<Job>();
+        List<Deployment> deploymentBatch = new ArrayList<Deployment>();
+        synchronized (conn) {
+            synchronized (this) {
+                for (String key : dirtyJobs) {
+                    jobBatch.add(jobs.get(key));
+                }
+                for (String key : dirtyDeployments) {
+                    deploymentBatch.add(deployments.get(key));
+                }
+                dirtyJobs.clear();
+                dirtyDeployments.clear();
+            }
+            if (jobBatch.isEmpty() && deploymentBatch.isEmpty()) {
+                return;
+            }
+            try {
+                write(jobBatch, deploymentBatch);
+                writes.addAndGet(jobBatch.size() + deploymentBatch.size());
+                batches.incrementAndGet();
+            } catch (SQLException ex) {
+                failures.incrementAndGet();
+                log.warn("Unable to write " + (jobBatch.size() + deploymentBatch.size())
+                        + " job registry changes: " + ex);
+                // Retried on the next flush
+                synchronized (this) {
+                    for (Job j : jobBatch) {
+                        dirtyJobs.add(j.jobId);
+                    }
+                    for (Deployment d : deploymentBatch) {
+                        dirtyDeployments.add(d.toscaUUID);
+                    }
+                }
+            }
+        }
+    }
+
+    private void write(Collection<Job> jobBatch, Collection<Deployment> deploymentBatch)
+            throws SQLException {
+        conn.setAutoCommit(false);
+        PreparedStatement js = conn.prepareStatement(MERGE_JOB);
+        PreparedStatement ds = conn.prepareStatement(MERGE_DEPLOYMENT);
+        try {
+            for (Job j : jobBatch) {
+                js.setString(1, j.jobId);
+                js.setString(2, j.sshJobId);
+                js.setString(3, j.toscaUUID);
+                js.setLong(4, j.submitted);
+                js.setLong(5, j.finished);
+                js.addBatch();
+            }
+            for (Deployment d : deploymentBatch) {
+                ds.setString(1, d.toscaUUID);
+                ds.setString(2, d.endpoint);
+                ds.setString(3, d.template);
+                ds.setLong(4, d.created);
+                ds.setLong(5, d.ready);
+                ds.setLong(6, d.released);
+                ds.setString(7, d.host);
+                ds.setInt(8, d.port);
+                ds.setString(9, d.username);
+                ds.addBatch();
+            }
+            if (!jobBatch.isEmpty()) {
+                js.executeBatch();
+            }
+            if (!deploymentBatch.isEmpty()) {
+                ds.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            js.close();
+            ds.close();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void load() throws SQLException {
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT JOB_ID, SSH_JOB_ID, TOSCA_UUID,"
+                    + " SUBMITTED, FINISHED FROM TOSCA_JOBS");
+            while (rs.next()) {
+                Job j = new Job(rs.getString(1), rs.getString(2), rs.getString(3),
+                        rs.getLong(4), rs.getLong(5));
+                jobs.put(j.jobId, j);
+            }
+            rs.close();
+            rs = st.executeQuery("SELECT TOSCA_UUID, ENDPOINT, TEMPLATE, CREATED,"
+                    + " READY, RELEASED, HOST, PORT, USERNAME FROM TOSCA_DEPLOYMENTS");
+            while (rs.next()) {
+                Deployment d = new Deployment(rs.getString(1), rs.getString(2),
+                        rs.getString(3), rs.getLong(4), rs.getLong(5), rs.getLong(6),
+                        rs.getString(7), rs.getInt(8), rs.getString(9));
+                deployments.put(d.toscaUUID, d);
+            }
+            rs.close();
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Drop the jobs cleaned and the deployments released before the
+     * given time
+     */
+    private void prune(long before) {
+        synchronized (conn) {
+            try {
+                PreparedStatement js = conn.prepareStatement(
+                        "DELETE FROM TOSCA_JOBS WHERE FINISHED > 0 AND FINISHED < ?");
+                PreparedStatement ds = conn.prepareStatement(
+                        "DELETE FROM TOSCA_DEPLOYMENTS WHERE RELEASED > 0 AND RELEASED < ?");
+                try {
+                    js.setLong(1, before);
+                    ds.setLong(1, before);
+                    int pruned = js.executeUpdate() + ds.executeUpdate();
+                    if (pruned > 0) {
+                        log.debug("Pruned " + pruned + " job registry entries");
+                    }
+                } finally {
+                    js.close();
+                    ds.close();
+                }
+            } catch (SQLException ex) {
+                log.warn("Unable to prune the job registry: " + ex);
+            }
+        }
+        for (Job j : jobs.values()) {
+            if (j.finished > 0 && j.finished < before) {
+                jobs.remove(j.jobId);
+            }
+        }
+        for (Deployment d : deployments.values()) {
+            if (d.released > 0 && d.released < before) {
+                deployments.remove(d.toscaUUID);
+            }
+        }
+    }
+
+    /**
+     * Store the pending changes and close the database
+     */
+    public void close() {
+        if (null != flusher) {
+            flusher.shutdown();
+        }
+        flush();
+        synchronized (conn) {
+            try {
+                if (!conn.isClosed()) {
+                    conn.close();
+                }
+            } catch (SQLException ex) {
+                log.warn("Error closing the job registry: " + ex);
+            }
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return (null == a) ? null == b : a.equals(b);
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public synchronized int getPending() {
+        return dirtyJobs.size() + dirtyDeployments.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaJobRegistry[" + url
+                + ", jobs=" + jobs.size()
+                + ", deployments=" + deployments.size()
+                + ", pending=" + getPending()
+                + ", writes=" + getWrites()
+                + ", batches=" + getBatches()
+                + ", failures=" + failures.get() + "]";
+    }
+}
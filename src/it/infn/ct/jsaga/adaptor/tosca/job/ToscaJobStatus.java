@@ -0,0 +1,65 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import fr.in2p3.jsaga.adaptor.job.SubState;
+import fr.in2p3.jsaga.adaptor.job.monitor.JobStatus;
+
+/**
+ * Status of a job whose TOSCA deployment is still being provisioned, or
+ * whose provisioning failed, so that no SSH job exists yet.
+ */
+public class ToscaJobStatus extends JobStatus {
+
+    public static final String PROVISIONING = "PROVISIONING";
+    public static final String SUBMITTING = "SUBMITTING";
+    public static final String SUBMITTED = "SUBMITTED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELED = "CANCELED";
+
+    public ToscaJobStatus(String nativeJobId, String state) {
+        super(nativeJobId, state, state);
+    }
+
+    public ToscaJobStatus(String nativeJobId, String state, String cause) {
+        super(nativeJobId, state, state, cause);
+    }
+
+    @Override
+    public String getModel() {
+        return "tosca";
+    }
+
+    @Override
+    public SubState getSubState() {
+        if (FAILED.equals(m_nativeStateCode)) {
+            return SubState.FAILED_ERROR;
+        } else if (CANCELED.equals(m_nativeStateCode)) {
+            return SubState.CANCELED;
+        }
+        return SubState.RUNNING_SUBMITTED;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+/**
+ * Decides when the status of a deployment being created has to be checked
+ * again. A policy instance is used for the whole wait of one deployment.
+ */
+public interface ToscaPollingPolicy {
+
+    /**
+     * Time to wait before the next status check
+     *
+     * @param attempt Number of checks already done
+     * @param elapsedMs Time elapsed since the deployment request
+     * @return The delay in milliseconds or -1 to stop waiting
+     */
+    long nextDelay(int attempt, long elapsedMs);
+}
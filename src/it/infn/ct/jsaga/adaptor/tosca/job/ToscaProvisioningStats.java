@@ -0,0 +1,90 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Historical provisioning times per TOSCA template, kept as an
+ * exponentially weighted moving average of the successful creations.
+ */
+public class ToscaProvisioningStats {
+
+    private static final double ALPHA = 0.3;
+
+    private static final Map<String, ToscaProvisioningStats> stats
+            = new HashMap<String, ToscaProvisioningStats>();
+
+    private long samples = 0;
+    private double averageMs = 0;
+    private long minMs = Long.MAX_VALUE;
+    private long maxMs = 0;
+
+    public static ToscaProvisioningStats getInstance(String template) {
+        synchronized (stats) {
+            ToscaProvisioningStats s = stats.get(template);
+            if (null == s) {
+                s = new ToscaProvisioningStats();
+                stats.put(template, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Record the time a deployment took to reach CREATE_COMPLETE
+     *
+     * @param elapsedMs Provisioning time in milliseconds
+     */
+    public synchronized void record(long elapsedMs) {
+        averageMs = (samples == 0)
+                ? elapsedMs
+                : ALPHA * elapsedMs + (1 - ALPHA) * averageMs;
+        samples++;
+        minMs = Math.min(minMs, elapsedMs);
+        maxMs = Math.max(maxMs, elapsedMs);
+    }
+
+    /**
+     * @return The expected provisioning time or 0 without history
+     */
+    public synchronized long getExpectedMs() {
+        return (samples > 0) ? (long) averageMs : 0;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "samples=" + samples
+                + ", avg=" + (long) averageMs + "ms"
+                + ", min=" + ((samples > 0) ? minMs : 0) + "ms"
+                + ", max=" + maxMs + "ms";
+    }
+}
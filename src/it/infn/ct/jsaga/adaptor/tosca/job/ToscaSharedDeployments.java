@@ -0,0 +1,180 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaDeploymentInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the deployments shared by several jobs. Jobs created from the
+ * same template on the same end-point are packed onto a ready deployment up
+ * to a number of slots; each deployment keeps the set of jobs using it and
+ * must be deleted only when its last job is released. Releasing the same
+ * job twice (e.g. cancel then clean) has no further effect.
+ * Deployments never registered here have a single owner, so releasing them
+ * always reports the last reference.
+ */
+public class ToscaSharedDeployments {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaSharedDeployments.class);
+
+    private static final Map<String, List<Shared>> byTemplate
+            = new HashMap<String, List<Shared>>();
+    private static final Map<String, Shared> byUuid
+            = new HashMap<String, Shared>();
+
+    private static class Shared {
+
+        final String key;
+        final ToscaDeploymentInfo deployment;
+        final int slots;
+        final Set<String> jobs = new HashSet<String>();
+
+        Shared(String key, ToscaDeploymentInfo deployment, int slots) {
+            this.key = key;
+            this.deployment = deployment;
+            this.slots = slots;
+        }
+    }
+
+    private ToscaSharedDeployments() {
+    }
+
+    private static String key(String endpoint, String template) {
+        return endpoint + "|" + template;
+    }
+
+    /**
+     * Take a slot on a shared deployment of the given template
+     *
+     * @param endpoint Orchestrator deployments end-point
+     * @param template TOSCA template path
+     * @param jobId Job taking the slot
+     * @return The deployment or null if none has a free slot
+     */
+    public static synchronized ToscaDeploymentInfo acquire(String endpoint,
+            String template,
+            String jobId) {
+        List<Shared> shared = byTemplate.get(key(endpoint, template));
+        if (null == shared) {
+            return null;
+        }
+        // Fill the most used deployment first, so that the others
+        // drain and get deleted earlier
+        Shared best = null;
+        for (Shared s : shared) {
+            if (s.jobs.size() < s.slots
+                    && (null == best || s.jobs.size() > best.jobs.size())) {
+                best = s;
+            }
+        }
+        if (null == best) {
+            return null;
+        }
+        best.jobs.add(jobId);
+        log.debug("Sharing deployment '" + best.deployment.getUuid() + "'"
+                + " (" + best.jobs.size() + "/" + best.slots + " slots)");
+        return best.deployment;
+    }
+
+    /**
+     * Register a new deployment owned by one job
+     *
+     * @param endpoint Orchestrator deployments end-point
+     * @param template TOSCA template path
+     * @param deployment The ready deployment
+     * @param slots Maximum number of jobs on this deployment
+     * @param jobId Job owning the deployment
+     */
+    public static synchronized void register(String endpoint,
+            String template,
+            ToscaDeploymentInfo deployment,
+            int slots,
+            String jobId) {
+        if (byUuid.containsKey(deployment.getUuid())) {
+            return;
+        }
+        String key = key(endpoint, template);
+        Shared s = new Shared(key, deployment, slots);
+        s.jobs.add(jobId);
+        List<Shared> shared = byTemplate.get(key);
+        if (null == shared) {
+            shared = new ArrayList<Shared>();
+            byTemplate.put(key, shared);
+        }
+        shared.add(s);
+        byUuid.put(deployment.getUuid(), s);
+    }
+
+    /**
+     * Release the slot of a job
+     *
+     * @param toscaUUID Deployment UUID
+     * @param jobId Job releasing its slot
+     * @return true if no other job uses the deployment, so it can be deleted
+     */
+    public static synchronized boolean release(String toscaUUID, String jobId) {
+        Shared s = byUuid.get(toscaUUID);
+        if (null == s) {
+            return true;
+        }
+        if (!s.jobs.remove(jobId)) {
+            return false;
+        }
+        if (!s.jobs.isEmpty()) {
+            log.debug("Deployment '" + toscaUUID + "' still used by "
+                    + s.jobs.size() + " job(s)");
+            return false;
+        }
+        byUuid.remove(toscaUUID);
+        List<Shared> shared = byTemplate.get(s.key);
+        shared.remove(s);
+        if (shared.isEmpty()) {
+            byTemplate.remove(s.key);
+        }
+        return true;
+    }
+
+    /**
+     * @param toscaUUID Deployment UUID
+     * @return Number of jobs using the deployment, 0 if not shared
+     */
+    public static synchronized int getReferences(String toscaUUID) {
+        Shared s = byUuid.get(toscaUUID);
+        return (null != s) ? s.jobs.size() : 0;
+    }
+
+    public static synchronized int getShared() {
+        return byUuid.size();
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.job;
+
+import ch.ethz.ssh2.ChannelCondition;
+import ch.ethz.ssh2.StreamGobbler;
+import fr.in2p3.jsaga.adaptor.job.monitor.JobStatus;
+import fr.in2p3.jsaga.adaptor.security.impl.UserPassSecurityCredential;
+import fr.in2p3.jsaga.adaptor.ssh3.SSHAdaptorAbstract;
+import fr.in2p3.jsaga.adaptor.ssh3.job.SSHJobControlAdaptor;
+import fr.in2p3.jsaga.adaptor.ssh3.job.SSHJobMonitorAdaptor;
+import fr.in2p3.jsaga.adaptor.ssh3.job.SSHJobProcess;
+import fr.in2p3.jsaga.adaptor.ssh3.job.SSHJobStatus;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetric;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.ogf.saga.error.AuthenticationFailedException;
+import org.ogf.saga.error.AuthorizationFailedException;
+import org.ogf.saga.error.BadParameterException;
+import org.ogf.saga.error.NoSuccessException;
+import org.ogf.saga.error.NotImplementedException;
+import org.ogf.saga.error.TimeoutException;
+
+/**
+ * Cache of the connected SSH adaptors wrapped by the TOSCA adaptors, keyed
+ * by (host, port, username), so that monitoring and control calls do not
+ * pay a full SSH handshake each time. Sessions unused for longer than the
+ * idle timeout are closed, the least recently used one is closed when the
+ * cache is full, and a session idle for a while is checked before being
+ * handed out again. Adaptors are leased: each one obtained from the cache
+ * must be given back with release(), and a session evicted or invalidated
+ * while leased is only closed once its last lease is returned. A connection
+ * serves at most MAX_SHARES leases at once, further callers get another
+ * connection to the same host.
+ */
+public class ToscaSshSessionCache {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaSshSessionCache.class);
+
+    public static final long DEFAULT_IDLE_MS = 300000;
+    public static final int DEFAULT_MAX_SESSIONS = 64;
+    private static final long CHECK_AFTER_MS = 30000;
+    // Leases of one connection at a time, below the sshd MaxSessions default
+    public static final int MAX_SHARES = 6;
+    private static final long REAP_PERIOD_MS = 30000;
+    // Jobs whose status is read by one remote command
+    private static final int STATUS_BATCH = 200;
+    private static final long STATUS_TIMEOUT_MS = 60000;
+
+    private static ToscaSshSessionCache instance = null;
+
+    private long idleMs;
+    private int maxSessions;
+    private final LinkedHashMap<String, Session> sessions
+            = new LinkedHashMap<String, Session>(16, 0.75f, true);
+    private final ScheduledExecutorService reaper;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    /**
+     * Adaptor able to tell if its connection is still usable
+     */
+    interface Checked {
+
+        boolean isAlive();
+    }
+
+    /**
+     * Control adaptor able to tell if its connection is still usable
+     */
+    static class ControlAdaptor extends SSHJobControlAdaptor implements Checked {
+
+        private final Session session;
+
+        ControlAdaptor(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return ToscaSshSessionCache.isAlive(m_conn);
+        }
+    }
+
+    /**
+     * Monitor adaptor able to tell if its connection is still usable
+     */
+    static class MonitorAdaptor extends SSHJobMonitorAdaptor implements Checked {
+
+        private final Session session;
+
+        MonitorAdaptor(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return ToscaSshSessionCache.isAlive(m_conn);
+        }
+
+        /**
+         * Status of many jobs of this host, read by one remote command for
+         * each STATUS_BATCH jobs instead of one SFTP channel per job: the
+         * end code of the finished jobs, running for the jobs whose process
+         * is alive
+         *
+         * @param sshJobIds SSH job ids
+         * @return The status of each job, null for the jobs the command
+         * cannot tell about (e.g. canceled), to be asked with getStatus()
+         */
+        JobStatus[] getStatusList(String[] sshJobIds) throws NoSuccessException {
+            JobStatus[] statuses = new JobStatus[sshJobIds.length];
+            for (int from = 0; from < sshJobIds.length; from += STATUS_BATCH) {
+                int to = Math.min(from + STATUS_BATCH, sshJobIds.length);
+                List<String> lines = exec(statusCommand(sshJobIds, from, to));
+                for (int i = from; i < to && i - from < lines.size(); i++) {
+                    String line = lines.get(i - from).trim();
+                    if ("R".equals(line)) {
+                        statuses[i] = new SSHJobStatus(sshJobIds[i], SSHJobProcess.PROCESS_RUNNING);
+                    } else if (line.matches("-?[0-9]+")) {
+                        statuses[i] = new SSHJobStatus(sshJobIds[i], Integer.parseInt(line));
+                    }
+                }
+            }
+            return statuses;
+        }
+
+        private static String statusCommand(String[] sshJobIds, int from, int to) {
+            StringBuilder cmd = new StringBuilder(
+                    "s(){ cat \"$1.endcode\" 2>/dev/null"
+                    + " || { kill -0 \"$(cat \"$1.pid\" 2>/dev/null)\" 2>/dev/null && echo R; }"
+                    + " || echo U; }; cd && for j in");
+            for (int i = from; i < to; i++) {
+                cmd.append(" '")
+                   .append((SSHJobProcess.getRootDir() + "/" + sshJobIds[i]).replace("'", "'\\''"))
+                   .append('\'');
+            }
+            return cmd.append("; do echo \"$(s \"$j\")\"; done").toString();
+        }
+
+        private List<String> exec(String command) throws NoSuccessException {
+            List<String> lines = new ArrayList<String>();
+            ch.ethz.ssh2.Session exec = null;
+            try {
+                exec = m_conn.openSession();
+                exec.execCommand(command);
+                BufferedReader out = new BufferedReader(new InputStreamReader(
+                        new StreamGobbler(exec.getStdout()), "UTF-8"));
+                int condition = exec.waitForCondition(
+                        ChannelCondition.EOF | ChannelCondition.CLOSED, STATUS_TIMEOUT_MS);
+                if ((condition & ChannelCondition.TIMEOUT) != 0) {
+                    throw new NoSuccessException("Timeout reading job status on '"
+                            + session.host + "'");
+                }
+                String line;
+                while (null != (line = out.readLine())) {
+                    lines.add(line);
+                }
+            } catch (IOException ex) {
+                throw new NoSuccessException(ex);
+            } finally {
+                if (null != exec) {
+                    exec.close();
+                }
+            }
+            return lines;
+        }
+    }
+
+    private static class Session {
+
+        final String host;
+        final int port;
+        final String username;
+        final String password;
+        final String toscaUUID;
+        ControlAdaptor control = null;
+        MonitorAdaptor monitor = null;
+        long lastUsed = System.currentTimeMillis();
+        // Leases and removal from the cache, guarded by the cache
+        int refs = 0;
+        boolean retired = false;
+
+        Session(String host, int port, String username, String password,
+                String toscaUUID) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.toscaUUID = toscaUUID;
+        }
+
+        void close() {
+            disconnect(control);
+            disconnect(monitor);
+            control = null;
+            monitor = null;
+        }
+    }
+
+    ToscaSshSessionCache(long idleMs, int maxSessions) {
+        this.idleMs = idleMs;
+        this.maxSessions = maxSessions;
+        reaper = Executors.newSingleThreadScheduledExecutor(
+                ToscaDeploymentWatcher.daemonThreads("tosca-ssh-reaper"));
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdle();
+            }
+        }, REAP_PERIOD_MS, REAP_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the session cache, creating it on first use; idle timeout and
+     * size are updated with the given values.
+     *
+     * @param idleMs Idle time in milliseconds before closing a session
+     * @param maxSessions Maximum number of cached sessions
+     * @return The shared cache instance
+     */
+    public static synchronized ToscaSshSessionCache getInstance(long idleMs,
+            int maxSessions) {
+        if (null == instance) {
+            instance = new ToscaSshSessionCache(idleMs, maxSessions);
+            log.debug("Created SSH session cache (idle: " + idleMs + "ms"
+                    + ", max: " + maxSessions + ")");
+        } else {
+            instance.configure(idleMs, maxSessions);
+        }
+        return instance;
+    }
+
+    public synchronized void configure(long idleMs, int maxSessions) {
+        this.idleMs = idleMs;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Connected control adaptor for the given host
+     *
+     * @param host Public IP of the deployment node
+     * @param port SSH port
+     * @param username SSH username
+     * @param password SSH password
+     * @param toscaUUID Deployment owning the host
+     * @return The connected adaptor, to be given back with release()
+     */
+    public SSHJobControlAdaptor getControl(String host, int port,
+            String username, String password, String toscaUUID)
+            throws NotImplementedException,
+            AuthenticationFailedException,
+            AuthorizationFailedException,
+            BadParameterException,
+            TimeoutException,
+            NoSuccessException {
+        Session session = getSession(host, port, username, password, toscaUUID);
+        boolean leased = false;
+        try {
+            synchronized (session) {
+                if (null != session.control && !usable(session, session.control)) {
+                    disconnect(session.control);
+                    session.control = null;
+                }
+                if (null == session.control) {
+                    ControlAdaptor control = new ControlAdaptor(session);
+                    connect(control, session);
+                    session.control = control;
+                }
+                session.lastUsed = System.currentTimeMillis();
+                leased = true;
+                return session.control;
+            }
+        } finally {
+            if (!leased) {
+                unref(session);
+            }
+        }
+    }
+
+    /**
+     * Connected control adaptor for the node of a job
+     *
+     * @param job The job context
+     * @return The connected adaptor, to be given back with release()
+     */
+    public SSHJobControlAdaptor getControl(ToscaJobContext job)
+            throws NotImplementedException,
+            AuthenticationFailedException,
+            AuthorizationFailedException,
+            BadParameterException,
+            TimeoutException,
+            NoSuccessException {
+        return getControl(job.getHost(), job.getPort(),
+                job.getUsername(), job.getPassword(), job.getToscaUUID());
+    }
+
+    /**
+     * Connected monitor adaptor for the node of a job
+     *
+     * @param job The job context
+     * @return The connected adaptor, to be given back with release()
+     */
+    public SSHJobMonitorAdaptor getMonitor(ToscaJobContext job)
+            throws NotImplementedException,
+            AuthenticationFailedException,
+            AuthorizationFailedException,
+            BadParameterException,
+            TimeoutException,
+            NoSuccessException {
+        return getMonitor(job.getHost(), job.getPort(),
+                job.getUsername(), job.getPassword(), job.getToscaUUID());
+    }
+
+    /**
+     * Connected monitor adaptor for the given host
+     *
+     * @param host Public IP of the deployment node
+     * @param port SSH port
+     * @param username SSH username
+     * @param password SSH password
+     * @param toscaUUID Deployment owning the host
+     * @return The connected adaptor, to be given back with release()
+     */
+    public SSHJobMonitorAdaptor getMonitor(String host, int port,
+            String username, String password, String toscaUUID)
+            throws NotImplementedException,
+            AuthenticationFailedException,
+            AuthorizationFailedException,
+            BadParameterException,
+            TimeoutException,
+            NoSuccessException {
+        Session session = getSession(host, port, username, password, toscaUUID);
+        boolean leased = false;
+        try {
+            synchronized (session) {
+                if (null != session.monitor && !usable(session, session.monitor)) {
+                    disconnect(session.monitor);
+                    session.monitor = null;
+                }
+                if (null == session.monitor) {
+                    MonitorAdaptor monitor = new MonitorAdaptor(session);
+                    connect(monitor, session);
+                    session.monitor = monitor;
+                }
+                session.lastUsed = System.currentTimeMillis();
+                leased = true;
+                return session.monitor;
+            }
+        } finally {
+            if (!leased) {
+                unref(session);
+            }
+        }
+    }
+
+    /**
+     * Give back an adaptor obtained from the cache
+     *
+     * @param adaptor The adaptor, null is ignored
+     */
+    public void release(SSHAdaptorAbstract adaptor) {
+        if (adaptor instanceof ControlAdaptor) {
+            unref(((ControlAdaptor) adaptor).session);
+        } else if (adaptor instanceof MonitorAdaptor) {
+            unref(((MonitorAdaptor) adaptor).session);
+        }
+    }
+
+    private void unref(Session session) {
+        synchronized (this) {
+            session.refs--;
+            session.lastUsed = System.currentTimeMillis();
+            if (!session.retired || session.refs > 0) {
+                return;
+            }
+        }
+        close(session);
+    }
+
+    /**
+     * Mark a session removed from the cache; it is added to the sessions to
+     * close unless leased, in which case the last release closes it
+     */
+    private static void retire(Session session, List<Session> toClose) {
+        session.retired = true;
+        if (session.refs <= 0) {
+            toClose.add(session);
+        }
+    }
+
+    /**
+     * Sessions used recently are trusted, the others are checked
+     */
+    private boolean usable(Session session, Checked adaptor) {
+        // The connection is probed only when idle for a while
+        if (System.currentTimeMillis() - session.lastUsed < CHECK_AFTER_MS
+                || adaptor.isAlive()) {
+            hits.incrementAndGet();
+            return true;
+        }
+        reconnects.incrementAndGet();
+        log.debug("SSH session to '" + session.host + ":" + session.port + "' is dead");
+        return false;
+    }
+
+    private Session getSession(String host, int port, String username,
+            String password, String toscaUUID) {
+        String address = username + "@" + host + ":" + port;
+        List<Session> evicted = new ArrayList<Session>();
+        Session session;
+        synchronized (this) {
+            // A host gets one more connection each MAX_SHARES leases
+            String key;
+            int index = 0;
+            do {
+                key = address + "#" + index++;
+                session = sessions.get(key);
+                // A new deployment may reuse the address with new credentials
+                if (null != session && !equals(session.password, password)) {
+                    sessions.remove(key);
+                    retire(session, evicted);
+                    session = null;
+                }
+            } while (null != session && session.refs >= MAX_SHARES);
+            if (null == session) {
+                misses.incrementAndGet();
+                session = new Session(host, port, username, password, toscaUUID);
+                sessions.put(key, session);
+                Iterator<Session> it = sessions.values().iterator();
+                while (sessions.size() > Math.max(1, maxSessions) && it.hasNext()) {
+                    Session lru = it.next();
+                    it.remove();
+                    retire(lru, evicted);
+                }
+            }
+            session.refs++;
+        }
+        close(evicted);
+        return session;
+    }
+
+    private static boolean equals(String a, String b) {
+        return (null == a) ? null == b : a.equals(b);
+    }
+
+    private static void connect(SSHAdaptorAbstract adaptor, Session session)
+            throws NotImplementedException,
+            AuthenticationFailedException,
+            AuthorizationFailedException,
+            BadParameterException,
+            TimeoutException,
+            NoSuccessException {
+        adaptor.setSecurityCredential(
+                new UserPassSecurityCredential(session.username, session.password));
+        // Includes the TCP connection, key exchange and authentication
+        ToscaMetric metric = ToscaMetrics.timer(ToscaMetrics.SSH_CONNECT);
+        long start = System.currentTimeMillis();
+        boolean connected = false;
+        try {
+            adaptor.connect(null, session.host, session.port, null, new HashMap<String, Object>());
+            connected = true;
+        } finally {
+            if (connected) {
+                metric.recordSince(start);
+            } else {
+                metric.recordError();
+            }
+        }
+    }
+
+    private static void disconnect(SSHAdaptorAbstract adaptor) {
+        if (null == adaptor) {
+            return;
+        }
+        try {
+            adaptor.disconnect();
+        } catch (NoSuccessException ex) {
+            log.debug("Error closing SSH session: " + ex);
+        }
+    }
+
+    private static boolean isAlive(ch.ethz.ssh2.Connection conn) {
+        if (null == conn) {
+            return false;
+        }
+        try {
+            conn.sendIgnorePacket();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void close(List<Session> sessions) {
+        for (Session session : sessions) {
+            close(session);
+        }
+    }
+
+    private void close(Session session) {
+        log.debug("Closing SSH session to '" + session.username + "@"
+                + session.host + ":" + session.port + "'");
+        synchronized (session) {
+            session.close();
+        }
+        closed.incrementAndGet();
+    }
+
+    /**
+     * Close the sessions not leased and unused since more than the idle
+     * timeout
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        List<Session> idle = new ArrayList<Session>();
+        synchronized (this) {
+            Iterator<Session> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                if (session.refs <= 0 && now - session.lastUsed > idleMs) {
+                    it.remove();
+                    retire(session, idle);
+                }
+            }
+        }
+        close(idle);
+    }
+
+    /**
+     * Close the sessions to the hosts of a released deployment, as soon as
+     * they are no longer leased
+     *
+     * @param toscaUUID Deployment UUID
+     */
+    public void invalidate(String toscaUUID) {
+        List<Session> released = new ArrayList<Session>();
+        synchronized (this) {
+            Iterator<Session> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                if (equals(session.toscaUUID, toscaUUID)) {
+                    it.remove();
+                    retire(session, released);
+                }
+            }
+        }
+        close(released);
+    }
+
+    /**
+     * Close all the cached sessions
+     */
+    public void clear() {
+        List<Session> all = new ArrayList<Session>();
+        synchronized (this) {
+            for (Session session : sessions.values()) {
+                retire(session, all);
+            }
+            sessions.clear();
+        }
+        close(all);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaSshSessionCache[size=" + size() + "/" + maxSessions
+                + ", idle=" + idleMs + "ms"
+                + ", hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", reconnects=" + getReconnects()
+                + ", closed=" + closed.get() + "]";
+    }
+}
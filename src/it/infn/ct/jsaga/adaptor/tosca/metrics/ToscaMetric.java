@@ -0,0 +1,164 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.metrics;
+
+import it.infn.ct.jsaga.adaptor.tosca.orchestrator.ToscaLatencyHistogram;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timer or size distribution of one adaptor lifecycle phase, exported via
+ * JMX by ToscaMetrics.
+ */
+public class ToscaMetric implements ToscaMetricMBean {
+
+    public static final String MILLISECONDS = "ms";
+    public static final String BYTES = "bytes";
+    public static final String COUNT = "count";
+
+    private static final long MAX_BYTES = 1L << 40;
+    private static final long MAX_COUNT = 1000000;
+
+    private final String name;
+    private final String unit;
+    private final ToscaLatencyHistogram histogram;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    ToscaMetric(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+        long maxValue = ToscaLatencyHistogram.DEFAULT_MAX_VALUE;
+        if (BYTES.equals(unit)) {
+            maxValue = MAX_BYTES;
+        } else if (COUNT.equals(unit)) {
+            maxValue = MAX_COUNT;
+        }
+        this.histogram = new ToscaLatencyHistogram(
+                ToscaLatencyHistogram.DEFAULT_WINDOW_MS, maxValue);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param value Duration, size or count of one occurrence
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        histogram.record(value);
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since the given start
+     *
+     * @param startMs Start time as returned by System.currentTimeMillis()
+     */
+    public void recordSince(long startMs) {
+        record(System.currentTimeMillis() - startMs);
+    }
+
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : (double) total.get() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(50);
+    }
+
+    @Override
+    public long getP95() {
+        return percentile(95);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(99);
+    }
+
+    /**
+     * Bucket bounds are about 12% wide; the largest value seen is a tighter
+     * limit for the highest percentiles
+     */
+    private long percentile(double percentile) {
+        long value = histogram.getPercentile(percentile);
+        return (value < 0) ? value : Math.min(value, max.get());
+    }
+
+    @Override
+    public void reset() {
+        histogram.clear();
+        count.set(0);
+        errors.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[count=" + getCount()
+                + ", errors=" + getErrors()
+                + ", p50=" + getP50() + unit
+                + ", p95=" + getP95() + unit
+                + ", p99=" + getP99() + unit
+                + ", max=" + getMax() + unit + "]";
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the adaptor metrics. Each metric is created on first use and
+ * registered on the platform MBean server as
+ * {@code it.infn.ct.jsaga.adaptor.tosca:type=Metric,name=<name>}; a failure
+ * to register only disables its JMX export.
+ */
+public class ToscaMetrics {
+
+    private static final Logger log = Logger.getLogger(ToscaMetrics.class);
+
+    public static final String DOMAIN = "it.infn.ct.jsaga.adaptor.tosca";
+
+    // Lifecycle phases
+    public static final String SUBMIT_POST = "submit.post";
+    public static final String DEPLOYMENT_READY = "deployment.ready";
+    public static final String DEPLOYMENT_POLLS = "deployment.polls";
+    public static final String DEPLOYMENT_DELETE = "deployment.delete";
+    public static final String SSH_CONNECT = "ssh.connect";
+    public static final String SSH_SUBMIT = "ssh.submit";
+    public static final String STAGING_GET = "staging.get";
+    public static final String STAGING_GET_BYTES = "staging.get.bytes";
+    public static final String STAGING_PUT = "staging.put";
+    public static final String STAGING_PUT_BYTES = "staging.put.bytes";
+
+    private static final Map<String, ToscaMetric> metrics
+            = new LinkedHashMap<String, ToscaMetric>();
+
+    private ToscaMetrics() {
+    }
+
+    /**
+     * Return the metric with the given name, creating and registering it
+     * on first use
+     *
+     * @param name Metric name
+     * @param unit Unit of the recorded values
+     * @return The shared metric
+     */
+    public static ToscaMetric get(String name, String unit) {
+        synchronized (metrics) {
+            ToscaMetric metric = metrics.get(name);
+            if (null == metric) {
+                metric = new ToscaMetric(name, unit);
+                metrics.put(name, metric);
+                register(metric);
+            }
+            return metric;
+        }
+    }
+
+    public static ToscaMetric timer(String name) {
+        return get(name, ToscaMetric.MILLISECONDS);
+    }
+
+    public static ToscaMetric size(String name) {
+        return get(name, ToscaMetric.BYTES);
+    }
+
+    public static ToscaMetric counter(String name) {
+        return get(name, ToscaMetric.COUNT);
+    }
+
+    private static void register(ToscaMetric metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN
+                    + ":type=Metric,name=" + ObjectName.quote(metric.getName()));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (JMException ex) {
+            log.warn("Unable to export metric '" + metric.getName()
+                    + "' via JMX: " + ex);
+        } catch (SecurityException ex) {
+            log.warn("Unable to export metric '" + metric.getName()
+                    + "' via JMX: " + ex);
+        }
+    }
+
+    /**
+     * @return A one line summary of every metric recorded so far
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (metrics) {
+            for (ToscaMetric metric : metrics.values()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(metric);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker of an orchestrator end-point. After the given number of
+ * consecutive failures the circuit opens and calls are refused at once;
+ * when the open period is over a single trial call is let through, which
+ * closes the circuit on success or opens it again on failure.
+ */
+public class ToscaCircuitBreaker {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaCircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURES = 5;
+    public static final long DEFAULT_OPEN_MS = 30000;
+
+    public static final String CLOSED = "CLOSED";
+    public static final String OPEN = "OPEN";
+    public static final String HALF_OPEN = "HALF_OPEN";
+
+    private final String name;
+    private int failureThreshold;
+    private long openMs;
+    private String state = CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private boolean trialRunning = false;
+    private long rejected = 0;
+    private long trips = 0;
+
+    /**
+     * @param name Name used in the log
+     * @param failureThreshold Consecutive failures opening the circuit,
+     * 0 or less disables the breaker
+     * @param openMs Time the circuit stays open before a trial call
+     */
+    public ToscaCircuitBreaker(String name, int failureThreshold, long openMs) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    public synchronized void configure(int failureThreshold, long openMs) {
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+        if (failureThreshold <= 0) {
+            state = CLOSED;
+            failures = 0;
+        }
+    }
+
+    /**
+     * @return true if a call may be attempted now
+     */
+    public synchronized boolean allowRequest() {
+        if (failureThreshold <= 0 || CLOSED.equals(state)) {
+            return true;
+        }
+        if (OPEN.equals(state)
+                && System.currentTimeMillis() - openedAt >= openMs) {
+            state = HALF_OPEN;
+            trialRunning = false;
+        }
+        if (HALF_OPEN.equals(state) && !trialRunning) {
+            trialRunning = true;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        if (!CLOSED.equals(state)) {
+            log.info("Circuit of '" + name + "' closed");
+        }
+        state = CLOSED;
+        failures = 0;
+        trialRunning = false;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        trialRunning = false;
+        if (failureThreshold > 0
+                && (HALF_OPEN.equals(state)
+                || (CLOSED.equals(state) && failures >= failureThreshold))) {
+            state = OPEN;
+            openedAt = System.currentTimeMillis();
+            trips++;
+            log.warn("Circuit of '" + name + "' opened after " + failures
+                    + " failures; calls refused for " + openMs + "ms");
+        }
+    }
+
+    /**
+     * A call was given up by the caller; its outcome tells nothing about
+     * the orchestrator, but a trial call must be allowed again
+     */
+    public synchronized void recordAborted() {
+        trialRunning = false;
+    }
+
+    public synchronized String getState() {
+        if (OPEN.equals(state)
+                && System.currentTimeMillis() - openedAt >= openMs) {
+            return HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized boolean isOpen() {
+        return OPEN.equals(getState());
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getTrips() {
+        return trips;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getState() + " (failures=" + failures
+                + ", trips=" + trips + ", rejected=" + rejected + ")";
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded cache of parsed orchestrator deployments keyed by the TOSCA UUID.
+ * Entries expire after a time-to-live and the least recently used entry is
+ * evicted once the cache is full. Expired entries are kept until evicted,
+ * so they can still be served while the orchestrator is unavailable. A single instance is shared by every
+ * adaptor connected to the same orchestrator endpoint.
+ */
+public class ToscaDeploymentCache {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaDeploymentCache.class);
+
+    public static final int DEFAULT_SIZE = 1000;
+    public static final long DEFAULT_TTL_MS = 60000;
+
+    private static final Map<String, ToscaDeploymentCache> caches
+            = new HashMap<String, ToscaDeploymentCache>();
+
+    private final String endpoint;
+    private int maxEntries;
+    private long ttlMs;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+
+    private static class Entry {
+
+        final ToscaDeploymentInfo value;
+        final long expires;
+
+        Entry(ToscaDeploymentInfo value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    ToscaDeploymentCache(String endpoint, int maxEntries, long ttlMs) {
+        this.endpoint = endpoint;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the cache shared by all the adaptors using the given endpoint,
+     * creating it on first use. Size and TTL are updated with the given
+     * values so that the last connected adaptor configuration wins.
+     *
+     * @param endpoint Orchestrator deployments end-point
+     * @param maxEntries Maximum number of cached deployments (0 disables)
+     * @param ttlMs Time-to-live of each entry in milliseconds
+     * @return The shared cache instance
+     */
+    public static ToscaDeploymentCache getInstance(String endpoint,
+            int maxEntries,
+            long ttlMs) {
+        synchronized (caches) {
+            ToscaDeploymentCache cache = caches.get(endpoint);
+            if (null == cache) {
+                cache = new ToscaDeploymentCache(endpoint, maxEntries, ttlMs);
+                caches.put(endpoint, cache);
+                log.debug("Created deployment cache for '" + endpoint + "'"
+                        + " (size: " + maxEntries + ", ttl: " + ttlMs + "ms)");
+            } else {
+                cache.configure(maxEntries, ttlMs);
+            }
+            return cache;
+        }
+    }
+
+    public synchronized void configure(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        trim();
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlMs > 0;
+    }
+
+    /**
+     * Retrieve a cached deployment
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The cached deployment or null if missing or expired
+     */
+    public synchronized ToscaDeploymentInfo get(String toscaUUID) {
+        Entry entry = entries.get(toscaUUID);
+        if (null == entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Retrieve a cached deployment even if expired
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The last known deployment or null if not cached
+     */
+    public synchronized ToscaDeploymentInfo getStale(String toscaUUID) {
+        Entry entry = entries.get(toscaUUID);
+        if (null == entry) {
+            return null;
+        }
+        staleHits.incrementAndGet();
+        return entry.value;
+    }
+
+    public synchronized void put(String toscaUUID, ToscaDeploymentInfo value) {
+        if (!isEnabled() || null == toscaUUID || null == value) {
+            return;
+        }
+        entries.put(toscaUUID,
+                new Entry(value, System.currentTimeMillis() + ttlMs));
+        trim();
+    }
+
+    public synchronized void invalidate(String toscaUUID) {
+        if (null != entries.remove(toscaUUID)) {
+            log.debug("Invalidated cached deployment '" + toscaUUID + "'");
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > Math.max(0, maxEntries) && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaDeploymentCache[" + endpoint
+                + ", size=" + size() + "/" + maxEntries
+                + ", ttl=" + ttlMs + "ms"
+                + ", hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions()
+                + ", expirations=" + getExpirations()
+                + ", stale=" + getStaleHits() + "]";
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Immutable view of an orchestrator deployment document. The document is
+ * read in a single streaming pass, only the values used by the adaptor are
+ * kept: uuid, status, node IPs, node credentials and the other outputs.
+ */
+public final class ToscaDeploymentInfo {
+
+    public static final String CREATE_IN_PROGRESS = "CREATE_IN_PROGRESS";
+    public static final String CREATE_COMPLETE = "CREATE_COMPLETE";
+    public static final String CREATE_FAILED = "CREATE_FAILED";
+
+    private final String uuid;
+    private final String status;
+    private final String statusReason;
+    private final String creationTime;
+    private final List<String> nodeIps;
+    private final String username;
+    private final String password;
+    private final Map<String, String> outputs;
+
+    private ToscaDeploymentInfo(Builder b) {
+        this.uuid = b.uuid;
+        this.status = b.status;
+        this.statusReason = b.statusReason;
+        this.creationTime = b.creationTime;
+        this.nodeIps = Collections.unmodifiableList(b.nodeIps);
+        this.username = b.username;
+        this.password = b.password;
+        this.outputs = Collections.unmodifiableMap(b.outputs);
+    }
+
+    /**
+     * Parse an orchestrator deployment document
+     *
+     * @param json The orchestrator document
+     * @return The deployment information
+     * @throws ParseException If the json cannot be parsed
+     */
+    public static ToscaDeploymentInfo parse(String json) throws ParseException {
+        if (null == json || json.trim().length() == 0) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+        }
+        Builder builder = new Builder();
+        new JSONParser().parse(json, new Handler(builder));
+        return new ToscaDeploymentInfo(builder);
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getStatusReason() {
+        return statusReason;
+    }
+
+    public String getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return The node IP addresses listed in outputs.node_ip
+     */
+    public List<String> getNodeIps() {
+        return nodeIps;
+    }
+
+    /**
+     * @return The first node IP or null if not yet available
+     */
+    public String getNodeIp() {
+        return nodeIps.isEmpty() ? null : nodeIps.get(0);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return The primitive outputs of the deployment; nested values
+     * other than node_ip and node_creds are not kept
+     */
+    public Map<String, String> getOutputs() {
+        return outputs;
+    }
+
+    public boolean isInProgress() {
+        return CREATE_IN_PROGRESS.equals(status);
+    }
+
+    public boolean isComplete() {
+        return CREATE_COMPLETE.equals(status);
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaDeploymentInfo[uuid=" + uuid
+                + ", status=" + status
+                + ", node_ip=" + nodeIps + "]";
+    }
+
+    private static class Builder {
+
+        String uuid;
+        String status;
+        String statusReason;
+        String creationTime;
+        List<String> nodeIps = new ArrayList<String>(1);
+        String username;
+        String password;
+        Map<String, String> outputs = new LinkedHashMap<String, String>();
+    }
+
+    /**
+     * SAX-like handler collecting the values while the document is parsed
+     */
+    private static class Handler implements ContentHandler {
+
+        private final Builder b;
+        private final String[] path = new String[16];
+        private int depth = 0;
+
+        Handler(Builder b) {
+            this.b = b;
+        }
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (depth < path.length) {
+                path[depth] = key;
+            }
+            depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value)
+                throws ParseException, IOException {
+            if (null == value) {
+                return true;
+            }
+            String v = value.toString();
+            if (depth == 1) {
+                if ("uuid".equals(path[0])) {
+                    b.uuid = v;
+                } else if ("status".equals(path[0])) {
+                    b.status = v;
+                } else if ("statusReason".equals(path[0])) {
+                    b.statusReason = v;
+                } else if ("creationTime".equals(path[0])) {
+                    b.creationTime = v;
+                }
+            } else if (depth >= 2 && "outputs".equals(path[0])) {
+                if ("node_ip".equals(path[1])) {
+                    b.nodeIps.add(v);
+                } else if ("node_creds".equals(path[1]) && depth == 3) {
+                    if ("user".equals(path[2])) {
+                        b.username = v;
+                    } else if ("token".equals(path[2])) {
+                        b.password = v;
+                    }
+                } else if (depth == 2) {
+                    b.outputs.put(path[1], v);
+                }
+            }
+            return true;
+        }
+    }
+}
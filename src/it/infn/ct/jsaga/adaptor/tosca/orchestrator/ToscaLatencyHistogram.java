@@ -0,0 +1,183 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with logarithmic buckets, about 12% wide, from 1ms up to
+ * ten minutes by default; any other positive quantity may be recorded with
+ * a suitable maximum value. Samples are kept in two windows; the current one is moved
+ * over the previous one after the given period, so percentiles follow
+ * latency changes while always being computed on recent samples.
+ */
+public class ToscaLatencyHistogram {
+
+    public static final long DEFAULT_WINDOW_MS = 60000;
+    public static final long DEFAULT_MAX_VALUE = 600000;
+
+    private static final double GROWTH = 1.12;
+    private static final long[] DEFAULT_BOUNDS = bounds(DEFAULT_MAX_VALUE);
+
+    private final long windowMs;
+    private final long[] bounds;
+    private volatile AtomicLongArray current;
+    private volatile AtomicLongArray previous;
+    private volatile long windowStart = System.currentTimeMillis();
+
+    public ToscaLatencyHistogram() {
+        this(DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * @param windowMs Period after which the samples are rotated
+     */
+    public ToscaLatencyHistogram(long windowMs) {
+        this(windowMs, DEFAULT_MAX_VALUE);
+    }
+
+    /**
+     * @param windowMs Period after which the samples are rotated
+     * @param maxValue Largest value with its own bucket
+     */
+    public ToscaLatencyHistogram(long windowMs, long maxValue) {
+        this.windowMs = windowMs;
+        this.bounds = (maxValue == DEFAULT_MAX_VALUE) ? DEFAULT_BOUNDS : bounds(maxValue);
+        current = new AtomicLongArray(bounds.length + 1);
+        previous = new AtomicLongArray(bounds.length + 1);
+    }
+
+    private static long[] bounds(long max) {
+        int n = 0;
+        for (double b = 1; b < max; b = Math.max(b + 1, b * GROWTH)) {
+            n++;
+        }
+        long[] bounds = new long[n + 1];
+        double b = 1;
+        for (int i = 0; i <= n; i++) {
+            bounds[i] = (long) b;
+            b = Math.max(b + 1, b * GROWTH);
+        }
+        return bounds;
+    }
+
+    private int bucket(long ms) {
+        int lo = 0;
+        int hi = bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bounds[mid] < ms) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < windowMs) {
+            return;
+        }
+        synchronized (this) {
+            if (now - windowStart >= windowMs) {
+                // Samples older than two windows are dropped
+                previous = (now - windowStart < 2 * windowMs)
+                        ? current
+                        : new AtomicLongArray(bounds.length + 1);
+                current = new AtomicLongArray(bounds.length + 1);
+                windowStart = now;
+            }
+        }
+    }
+
+    /**
+     * @param ms Latency of one call in milliseconds
+     */
+    public void record(long ms) {
+        rotate();
+        current.incrementAndGet(bucket(Math.max(0, ms)));
+    }
+
+    /**
+     * @return The number of samples in the current and previous windows
+     */
+    public long getCount() {
+        rotate();
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long count = 0;
+        for (int i = 0; i < cur.length(); i++) {
+            count += cur.get(i) + prev.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return The latency in milliseconds, or -1 without samples
+     */
+    public long getPercentile(double percentile) {
+        rotate();
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long[] counts = new long[cur.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = cur.get(i) + prev.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return (i < bounds.length) ? bounds[i] : Long.MAX_VALUE;
+            }
+        }
+        return bounds[bounds.length - 1];
+    }
+
+    public synchronized void clear() {
+        current = new AtomicLongArray(bounds.length + 1);
+        previous = new AtomicLongArray(bounds.length + 1);
+        windowStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + ", p50=" + getPercentile(50) + "ms"
+                + ", p95=" + getPercentile(95) + "ms"
+                + ", p99=" + getPercentile(99) + "ms";
+    }
+}
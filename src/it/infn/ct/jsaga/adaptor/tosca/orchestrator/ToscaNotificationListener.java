@@ -0,0 +1,182 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.log4j.Logger;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Embedded HTTP receiver for the orchestrator deployment callbacks. The
+ * orchestrator (or any local stand-in) POSTs the deployment document to
+ * the callback URL each time the deployment changes state; subscribers, such
+ * as the deployment watchers, are then told immediately.
+ * One listener is started for each notification port.
+ */
+public class ToscaNotificationListener {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaNotificationListener.class);
+
+    public static final String CONTEXT = "/tosca/notify";
+
+    private static final Map<Integer, ToscaNotificationListener> listeners
+            = new HashMap<Integer, ToscaNotificationListener>();
+
+    private final String callbackUrl;
+    private final HttpServer server;
+    private final CopyOnWriteArrayList<Subscriber> subscribers
+            = new CopyOnWriteArrayList<Subscriber>();
+    private long received = 0;
+
+    /**
+     * Receiver of the deployment notifications
+     */
+    public interface Subscriber {
+
+        void deploymentNotified(ToscaDeploymentInfo deployment);
+    }
+
+    ToscaNotificationListener(String host, int port) throws IOException {
+        callbackUrl = "http://" + host + ":" + port + CONTEXT;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(CONTEXT, new NotificationHandler());
+        server.setExecutor(Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tosca-notification-listener");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.start();
+        log.info("Listening for deployment notifications at '" + callbackUrl + "'");
+    }
+
+    /**
+     * Return the listener bound to the given port, starting it on first use
+     *
+     * @param host Host name the orchestrator uses to reach this listener
+     * @param port Listening port
+     * @return The running listener
+     * @throws IOException If the port cannot be bound
+     */
+    public static ToscaNotificationListener getInstance(String host, int port)
+            throws IOException {
+        synchronized (listeners) {
+            ToscaNotificationListener listener = listeners.get(port);
+            if (null == listener) {
+                listener = new ToscaNotificationListener(host, port);
+                listeners.put(port, listener);
+            }
+            return listener;
+        }
+    }
+
+    /**
+     * @return The URL to be given to the orchestrator as callback
+     */
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Dispatch a deployment notification to the subscribers
+     *
+     * @param deployment The notified deployment
+     */
+    public void notifyDeployment(ToscaDeploymentInfo deployment) {
+        synchronized (this) {
+            received++;
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.deploymentNotified(deployment);
+        }
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    private class NotificationHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 204;
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())
+                        && !"PUT".equals(exchange.getRequestMethod())) {
+                    status = 405;
+                    return;
+                }
+                String body = readBody(exchange.getRequestBody());
+                ToscaDeploymentInfo deployment = ToscaDeploymentInfo.parse(body);
+                if (null == deployment.getUuid()) {
+                    status = 400;
+                    return;
+                }
+                log.debug("Notification for deployment '" + deployment.getUuid()
+                        + "' with status '" + deployment.getStatus() + "'");
+                notifyDeployment(deployment);
+            } catch (ParseException ex) {
+                log.warn("Unparsable deployment notification");
+                status = 400;
+            } finally {
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        }
+
+        private String readBody(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        }
+    }
+}
@@ -0,0 +1,627 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP client for the orchestrator deployments API. One instance exists for
+ * each orchestrator end-point and it is shared by all the adaptors; it keeps
+ * a pool of persistent connections and always consumes the response body,
+ * error responses included, so that connections can be reused.
+ * <p>
+ * Calls go through a circuit breaker: once the orchestrator keeps failing
+ * they are refused at once with a ToscaCircuitOpenException. Reads may be
+ * hedged: when a GET is slower than the configured latency percentile a
+ * second one is sent and the first response wins.
+ */
+public class ToscaOrchestratorClient {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaOrchestratorClient.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 60000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final long DEFAULT_HEDGE_MIN_MS = 50;
+    public static final int DEFAULT_RATE_BURST = 10;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    // Samples needed before hedging, so that the percentile is meaningful
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    public static final String GET = "GET";
+    public static final String POST = "POST";
+    public static final String DELETE = "DELETE";
+
+    private static final Map<String, ToscaOrchestratorClient> clients
+            = new HashMap<String, ToscaOrchestratorClient>();
+
+    private final String endpoint;
+    private final PoolingHttpClientConnectionManager connManager;
+    private final CloseableHttpClient httpClient;
+    private volatile RequestConfig requestConfig;
+
+    private final Map<String, CallStats> stats
+            = new HashMap<String, CallStats>();
+    private final Map<String, ToscaLatencyHistogram> latencies
+            = new HashMap<String, ToscaLatencyHistogram>();
+    private final ToscaCircuitBreaker breaker;
+    private volatile double hedgePercentile = 0;
+    private volatile long hedgeMinMs = DEFAULT_HEDGE_MIN_MS;
+    private ExecutorService hedgePool = null;
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Map<String, ToscaRateLimiter> limiters
+            = new HashMap<String, ToscaRateLimiter>();
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /**
+     * Orchestrator response; the body is always fully read
+     */
+    public static class Response {
+
+        private final int status;
+        private final String message;
+        private final String body;
+        private final Map<String, String> headers;
+
+        Response(int status, String message, String body,
+                Map<String, String> headers) {
+            this.status = status;
+            this.message = message;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    /**
+     * Latency counters of a single operation type
+     */
+    public static class CallStats {
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalMs = new AtomicLong();
+        private final AtomicLong maxMs = new AtomicLong();
+
+        void record(long elapsedMs, boolean failed) {
+            calls.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            totalMs.addAndGet(elapsedMs);
+            long max = maxMs.get();
+            while (elapsedMs > max && !maxMs.compareAndSet(max, elapsedMs)) {
+                max = maxMs.get();
+            }
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getMaxMs() {
+            return maxMs.get();
+        }
+
+        public double getAverageMs() {
+            long n = calls.get();
+            return (n > 0) ? (double) totalMs.get() / n : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + getCalls()
+                    + ", errors=" + getErrors()
+                    + ", avg=" + String.format("%.1f", getAverageMs()) + "ms"
+                    + ", max=" + getMaxMs() + "ms";
+        }
+    }
+
+    ToscaOrchestratorClient(String endpoint,
+            int connectTimeout,
+            int readTimeout,
+            int maxConnections) {
+        this.endpoint = endpoint;
+        connManager = new PoolingHttpClientConnectionManager();
+        connManager.setMaxTotal(maxConnections);
+        connManager.setDefaultMaxPerRoute(maxConnections);
+        configure(connectTimeout, readTimeout);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connManager)
+                .build();
+        stats.put(GET, new CallStats());
+        stats.put(POST, new CallStats());
+        stats.put(DELETE, new CallStats());
+        latencies.put(GET, new ToscaLatencyHistogram());
+        latencies.put(POST, new ToscaLatencyHistogram());
+        latencies.put(DELETE, new ToscaLatencyHistogram());
+        limiters.put(GET, new ToscaRateLimiter(GET + " " + endpoint, 0, DEFAULT_RATE_BURST));
+        limiters.put(POST, new ToscaRateLimiter(POST + " " + endpoint, 0, DEFAULT_RATE_BURST));
+        limiters.put(DELETE, new ToscaRateLimiter(DELETE + " " + endpoint, 0, DEFAULT_RATE_BURST));
+        breaker = new ToscaCircuitBreaker(endpoint,
+                ToscaCircuitBreaker.DEFAULT_FAILURES,
+                ToscaCircuitBreaker.DEFAULT_OPEN_MS);
+    }
+
+    /**
+     * Return the client shared by all the adaptors using the given endpoint,
+     * creating it on first use. Timeouts are updated with the given values.
+     *
+     * @param endpoint Orchestrator deployments end-point
+     * @param connectTimeout Connection timeout in milliseconds
+     * @param readTimeout Socket read timeout in milliseconds
+     * @param maxConnections Maximum number of pooled connections
+     * @return The shared client instance
+     */
+    public static ToscaOrchestratorClient getInstance(String endpoint,
+            int connectTimeout,
+            int readTimeout,
+            int maxConnections) {
+        synchronized (clients) {
+            ToscaOrchestratorClient client = clients.get(endpoint);
+            if (null == client) {
+                client = new ToscaOrchestratorClient(endpoint,
+                        connectTimeout,
+                        readTimeout,
+                        maxConnections);
+                clients.put(endpoint, client);
+                log.debug("Created orchestrator client for '" + endpoint + "'"
+                        + " (connect: " + connectTimeout + "ms"
+                        + ", read: " + readTimeout + "ms"
+                        + ", connections: " + maxConnections + ")");
+            } else {
+                client.configure(connectTimeout, readTimeout);
+            }
+            return client;
+        }
+    }
+
+    public final void configure(int connectTimeout, int readTimeout) {
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setStaleConnectionCheckEnabled(true)
+                .build();
+    }
+
+    /**
+     * Setup the circuit breaker and the read hedging
+     *
+     * @param breakerFailures Consecutive failures opening the circuit,
+     * 0 disables the breaker
+     * @param breakerOpenMs Time the circuit stays open
+     * @param hedgePercentile GET latency percentile after which a second
+     * read is sent, 0 disables hedging
+     * @param hedgeMinMs Minimum delay before a second read
+     */
+    public void configureResilience(int breakerFailures,
+            long breakerOpenMs,
+            double hedgePercentile,
+            long hedgeMinMs) {
+        breaker.configure(breakerFailures, breakerOpenMs);
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinMs = hedgeMinMs;
+    }
+
+    /**
+     * Setup the client side rate limits
+     *
+     * @param createRate Deployment creations per second, 0 for no limit
+     * @param readRate Deployment reads per second, 0 for no limit
+     * @param deleteRate Deployment deletes per second, 0 for no limit
+     * @param burst Calls of each type allowed at once after an idle period
+     * @param maxRetries Times a call is repeated when asked to retry later
+     */
+    public void configureRateLimits(double createRate,
+            double readRate,
+            double deleteRate,
+            int burst,
+            int maxRetries) {
+        limiters.get(POST).configure(createRate, burst);
+        limiters.get(GET).configure(readRate, burst);
+        limiters.get(DELETE).configure(deleteRate, burst);
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Retrieve a deployment document
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The orchestrator response
+     * @throws IOException In case of connection errors or timeouts
+     */
+    public Response get(String toscaUUID) throws IOException {
+        long delay = getHedgeDelay();
+        if (delay < 0) {
+            return execute(GET, newGet(toscaUUID));
+        }
+        return hedgedGet(toscaUUID, delay);
+    }
+
+    private HttpGet newGet(String toscaUUID) {
+        HttpGet request = new HttpGet(endpoint + "/" + toscaUUID);
+        request.setHeader("Accept", "application/json");
+        return request;
+    }
+
+    /**
+     * @return Delay before a second read, or -1 if hedging is disabled
+     */
+    private long getHedgeDelay() {
+        if (hedgePercentile <= 0) {
+            return -1;
+        }
+        ToscaLatencyHistogram latency = latencies.get(GET);
+        if (latency.getCount() < HEDGE_MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(hedgeMinMs, latency.getPercentile(hedgePercentile));
+    }
+
+    private synchronized ExecutorService getHedgePool() {
+        if (null == hedgePool) {
+            final AtomicInteger count = new AtomicInteger();
+            hedgePool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tosca-hedged-get-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return hedgePool;
+    }
+
+    /**
+     * Send a GET, then a second one if no response came within the delay;
+     * the first successful response is returned and the other aborted
+     */
+    private Response hedgedGet(String toscaUUID, long delay) throws IOException {
+        CompletionService<Response> reads
+                = new ExecutorCompletionService<Response>(getHedgePool());
+        final HttpGet first = newGet(toscaUUID);
+        HttpGet second = null;
+        Future<Response> firstRead = reads.submit(read(first));
+        Future<Response> secondRead = null;
+        try {
+            Future<Response> done = reads.poll(delay, TimeUnit.MILLISECONDS);
+            if (null == done
+                    && ToscaCircuitBreaker.CLOSED.equals(breaker.getState())) {
+                hedges.incrementAndGet();
+                log.debug("Hedging GET '" + toscaUUID + "' after " + delay + "ms");
+                second = newGet(toscaUUID);
+                secondRead = reads.submit(read(second));
+            }
+            if (null == done) {
+                done = reads.take();
+            }
+            IOException failure;
+            try {
+                Response res = done.get();
+                if (done == secondRead) {
+                    hedgesWon.incrementAndGet();
+                }
+                return res;
+            } catch (ExecutionException ex) {
+                failure = toIOException(ex);
+            }
+            if (null == secondRead) {
+                throw failure;
+            }
+            // The other read may still succeed
+            try {
+                return reads.take().get();
+            } catch (ExecutionException ex) {
+                throw failure;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading '" + toscaUUID + "'");
+        } finally {
+            if (!firstRead.isDone()) {
+                first.abort();
+            }
+            if (null != secondRead && !secondRead.isDone()) {
+                second.abort();
+            }
+        }
+    }
+
+    private Callable<Response> read(final HttpGet request) {
+        return new Callable<Response>() {
+            @Override
+            public Response call() throws IOException {
+                return execute(GET, request);
+            }
+        };
+    }
+
+    private static IOException toIOException(ExecutionException ex) {
+        if (ex.getCause() instanceof IOException) {
+            return (IOException) ex.getCause();
+        }
+        return new IOException(ex.getCause());
+    }
+
+    /**
+     * Retrieve a page of the deployments created by the caller
+     *
+     * @param page Page number, starting from 0
+     * @param size Deployments per page
+     * @return The orchestrator response
+     * @throws IOException In case of connection errors or timeouts
+     */
+    public Response list(int page, int size) throws IOException {
+        HttpGet request = new HttpGet(endpoint + "?createdBy=me&page=" + page
+                + "&size=" + size);
+        request.setHeader("Accept", "application/json");
+        return execute(GET, request);
+    }
+
+    /**
+     * Create a new deployment
+     *
+     * @param json The deployment request document
+     * @return The orchestrator response
+     * @throws IOException In case of connection errors or timeouts
+     */
+    public Response post(String json) throws IOException {
+        HttpPost request = new HttpPost(endpoint);
+        request.setHeader("Accept", "application/json");
+        request.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        return execute(POST, request);
+    }
+
+    /**
+     * Delete a deployment
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The orchestrator response
+     * @throws IOException In case of connection errors or timeouts
+     */
+    public Response delete(String toscaUUID) throws IOException {
+        return execute(DELETE, new HttpDelete(endpoint + "/" + toscaUUID));
+    }
+
+    /**
+     * Send a request through the rate limiter of its operation; answers
+     * asking to retry later (429, or 503 with Retry-After) slow down the
+     * limiter and the request is sent again, up to the configured times
+     */
+    private Response execute(String op, HttpRequestBase request)
+            throws IOException {
+        ToscaRateLimiter limiter = limiters.get(op);
+        for (int attempt = 0;; attempt++) {
+            if (breaker.isOpen()) {
+                throw new ToscaCircuitOpenException(endpoint);
+            }
+            limiter.acquire();
+            Response res = send(op, request);
+            int status = res.getStatus();
+            if (status != 429 && status != 503) {
+                if (status < 400) {
+                    limiter.success();
+                }
+                return res;
+            }
+            long retryAfter = parseRetryAfter(res.getHeader("Retry-After"));
+            limiter.throttle(retryAfter);
+            if (attempt >= maxRetries || (status == 503 && retryAfter < 0)) {
+                return res;
+            }
+            log.debug("Orchestrator " + op + " '" + request.getURI() + "'"
+                    + " answered " + status + "; retry " + (attempt + 1));
+            request.reset();
+        }
+    }
+
+    /**
+     * @param value Retry-After header, in seconds or as an HTTP date
+     * @return The delay in milliseconds, or -1 if missing or invalid
+     */
+    static long parseRetryAfter(String value) {
+        if (null == value || value.trim().length() == 0) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ex) {
+            Date date = DateUtils.parseDate(value.trim());
+            return (null != date)
+                    ? Math.max(0, date.getTime() - System.currentTimeMillis())
+                    : -1;
+        }
+    }
+
+    private Response send(String op, HttpRequestBase request)
+            throws IOException {
+        if (!breaker.allowRequest()) {
+            throw new ToscaCircuitOpenException(endpoint);
+        }
+        request.setConfig(requestConfig);
+        outstanding.incrementAndGet();
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        boolean unavailable = true;
+        CloseableHttpResponse response = null;
+        try {
+            response = httpClient.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            String message = response.getStatusLine().getReasonPhrase();
+            HttpEntity entity = response.getEntity();
+            String body = (null != entity) ? EntityUtils.toString(entity, "UTF-8") : "";
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Header h : response.getAllHeaders()) {
+                headers.put(h.getName().toLowerCase(), h.getValue());
+            }
+            failed = status >= 400;
+            unavailable = status >= 500;
+            return new Response(status, message, body, headers);
+        } finally {
+            if (null != response) {
+                response.close();
+            }
+            outstanding.decrementAndGet();
+            long elapsed = System.currentTimeMillis() - start;
+            if (request.isAborted()) {
+                // Hedged read no longer needed, not an orchestrator failure
+                breaker.recordAborted();
+                log.debug("Orchestrator " + op + " '" + request.getURI() + "' aborted");
+            } else {
+                if (unavailable) {
+                    breaker.recordFailure();
+                } else {
+                    breaker.recordSuccess();
+                }
+                latencies.get(op).record(elapsed);
+                stats.get(op).record(elapsed, failed);
+                log.debug("Orchestrator " + op + " '" + request.getURI() + "'"
+                        + " completed in " + elapsed + "ms"
+                        + (failed ? " (failed)" : ""));
+            }
+        }
+    }
+
+    /**
+     * @return The number of requests in progress
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public CallStats getStats(String op) {
+        return stats.get(op);
+    }
+
+    public ToscaRateLimiter getRateLimiter(String op) {
+        return limiters.get(op);
+    }
+
+    public ToscaLatencyHistogram getLatency(String op) {
+        return latencies.get(op);
+    }
+
+    public ToscaCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return The number of second reads sent
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return The number of second reads answering first
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Close connections idle since more than the given time
+     *
+     * @param idleMs Idle time in milliseconds
+     */
+    public void closeIdleConnections(long idleMs) {
+        connManager.closeExpiredConnections();
+        connManager.closeIdleConnections(idleMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaOrchestratorClient[" + endpoint
+                + ", GET: " + stats.get(GET)
+                + ", POST: " + stats.get(POST)
+                + ", DELETE: " + stats.get(DELETE)
+                + ", circuit: " + breaker
+                + ", hedges: " + getHedges() + "/" + getHedgesWon() + " won"
+                + ", GET limiter: " + limiters.get(GET)
+                + ", POST limiter: " + limiters.get(POST)
+                + ", DELETE limiter: " + limiters.get(DELETE) + "]";
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Set of orchestrator end-points serving the same deployments. New
+ * deployments are spread over the end-points, round-robin or to the one
+ * with the fewest requests in progress, and the end-point that created a
+ * deployment is remembered as its owner. Reads go to the owner first and
+ * fail over to the other end-points when it is unavailable.
+ * <p>
+ * A deployment request is only sent to another end-point when the chosen
+ * one refused the connection or has its circuit open, so that a request
+ * which may have been received is never repeated.
+ */
+public class ToscaOrchestratorGroup {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaOrchestratorGroup.class);
+
+    public static final String BALANCE_ROUND_ROBIN = "round_robin";
+    public static final String BALANCE_LEAST_OUTSTANDING = "least_outstanding";
+
+    private static final Map<String, ToscaOrchestratorGroup> groups
+            = new HashMap<String, ToscaOrchestratorGroup>();
+
+    private final List<ToscaOrchestratorClient> clients;
+    private volatile String balance;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, ToscaOrchestratorClient> owners
+            = new ConcurrentHashMap<String, ToscaOrchestratorClient>();
+    private final AtomicInteger failovers = new AtomicInteger();
+
+    ToscaOrchestratorGroup(List<ToscaOrchestratorClient> clients, String balance) {
+        this.clients = Collections.unmodifiableList(
+                new ArrayList<ToscaOrchestratorClient>(clients));
+        this.balance = balance;
+    }
+
+    /**
+     * Return the group of the given clients, creating it on first use; the
+     * first client is the primary one and names the group
+     *
+     * @param clients Orchestrator clients, at least one
+     * @param balance BALANCE_ROUND_ROBIN or BALANCE_LEAST_OUTSTANDING
+     * @return The shared group instance
+     */
+    public static ToscaOrchestratorGroup getInstance(
+            List<ToscaOrchestratorClient> clients,
+            String balance) {
+        StringBuilder key = new StringBuilder();
+        for (ToscaOrchestratorClient client : clients) {
+            key.append(client.getEndpoint()).append(' ');
+        }
+        synchronized (groups) {
+            ToscaOrchestratorGroup group = groups.get(key.toString());
+            if (null == group) {
+                group = new ToscaOrchestratorGroup(clients, balance);
+                groups.put(key.toString(), group);
+                if (clients.size() > 1) {
+                    log.debug("Created orchestrator group " + key
+                            + "(balance: " + balance + ")");
+                }
+            } else {
+                group.balance = balance;
+            }
+            return group;
+        }
+    }
+
+    /**
+     * @return The end-point of the primary orchestrator
+     */
+    public String getEndpoint() {
+        return getPrimary().getEndpoint();
+    }
+
+    public ToscaOrchestratorClient getPrimary() {
+        return clients.get(0);
+    }
+
+    public List<ToscaOrchestratorClient> getClients() {
+        return clients;
+    }
+
+    /**
+     * @param toscaUUID Deployment UUID
+     * @return The end-point that created the deployment, or the primary
+     * one if unknown
+     */
+    public ToscaOrchestratorClient getOwner(String toscaUUID) {
+        ToscaOrchestratorClient owner = owners.get(toscaUUID);
+        return (null != owner) ? owner : getPrimary();
+    }
+
+    public void setOwner(String toscaUUID, ToscaOrchestratorClient owner) {
+        if (clients.size() > 1 && null != toscaUUID) {
+            owners.put(toscaUUID, owner);
+        }
+    }
+
+    /**
+     * Forget the owner of a deleted deployment
+     *
+     * @param toscaUUID Deployment UUID
+     */
+    public void forget(String toscaUUID) {
+        owners.remove(toscaUUID);
+    }
+
+    /**
+     * @return The end-point for the next deployment
+     */
+    ToscaOrchestratorClient select() {
+        if (clients.size() == 1) {
+            return clients.get(0);
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % clients.size();
+        ToscaOrchestratorClient best = null;
+        for (int i = 0; i < clients.size(); i++) {
+            ToscaOrchestratorClient client = clients.get((start + i) % clients.size());
+            if (client.getCircuitBreaker().isOpen()) {
+                continue;
+            }
+            if (!BALANCE_LEAST_OUTSTANDING.equals(balance)) {
+                return client;
+            }
+            if (null == best || client.getOutstanding() < best.getOutstanding()) {
+                best = client;
+            }
+        }
+        return (null != best) ? best : clients.get(start);
+    }
+
+    /**
+     * Create a new deployment on one of the end-points
+     *
+     * @param json The deployment request document
+     * @return The orchestrator response
+     * @throws IOException If no end-point could take the request
+     */
+    public ToscaOrchestratorClient.Response post(String json) throws IOException {
+        ToscaOrchestratorClient client = select();
+        IOException failure = null;
+        for (int i = 0; i < clients.size(); i++) {
+            try {
+                ToscaOrchestratorClient.Response res = client.post(json);
+                if (res.getStatus() == 201) {
+                    setOwner(parseUuid(res.getBody()), client);
+                }
+                return res;
+            } catch (ConnectException ex) {
+                failure = ex;
+            } catch (ToscaCircuitOpenException ex) {
+                failure = ex;
+            }
+            log.warn("Orchestrator '" + client.getEndpoint() + "' unavailable: " + failure);
+            client = clients.get((clients.indexOf(client) + 1) % clients.size());
+            if (i + 1 < clients.size()) {
+                failovers.incrementAndGet();
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Read a deployment from its owner, or from the other end-points while
+     * the owner is unavailable or answers with a server error
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The orchestrator response
+     * @throws IOException If no end-point could be read
+     */
+    public ToscaOrchestratorClient.Response get(String toscaUUID) throws IOException {
+        ToscaOrchestratorClient owner = getOwner(toscaUUID);
+        if (clients.size() == 1) {
+            return owner.get(toscaUUID);
+        }
+        List<ToscaOrchestratorClient> candidates
+                = new ArrayList<ToscaOrchestratorClient>(clients);
+        candidates.remove(owner);
+        candidates.add(0, owner);
+        IOException failure = null;
+        ToscaOrchestratorClient.Response last = null;
+        for (ToscaOrchestratorClient client : candidates) {
+            if (client != owner) {
+                failovers.incrementAndGet();
+                log.debug("Reading '" + toscaUUID + "' from '" + client.getEndpoint() + "'");
+            }
+            try {
+                last = client.get(toscaUUID);
+                if (last.getStatus() < 500) {
+                    if (last.getStatus() == 200 && !owners.containsKey(toscaUUID)) {
+                        setOwner(toscaUUID, client);
+                    }
+                    return last;
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (null != last) {
+            return last;
+        }
+        throw failure;
+    }
+
+    /**
+     * Delete a deployment on its owner
+     *
+     * @param toscaUUID Deployment UUID
+     * @return The orchestrator response
+     * @throws IOException In case of connection errors or timeouts
+     */
+    public ToscaOrchestratorClient.Response delete(String toscaUUID) throws IOException {
+        return getOwner(toscaUUID).delete(toscaUUID);
+    }
+
+    private static String parseUuid(String body) {
+        try {
+            return ToscaDeploymentInfo.parse(body).getUuid();
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of requests sent to another end-point
+     */
+    public int getFailovers() {
+        return failovers.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ToscaOrchestratorGroup[")
+                .append(balance)
+                .append(", owners=").append(owners.size())
+                .append(", failovers=").append(getFailovers());
+        for (ToscaOrchestratorClient client : clients) {
+            sb.append(", ").append(client.getEndpoint())
+                    .append(" (outstanding=").append(client.getOutstanding())
+                    .append(", circuit=").append(client.getCircuitBreaker().getState())
+                    .append(")");
+        }
+        return sb.append("]").toString();
+    }
+}
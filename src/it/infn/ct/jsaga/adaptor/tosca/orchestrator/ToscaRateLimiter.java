@@ -0,0 +1,220 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Token bucket limiting the rate of one type of orchestrator call. Callers
+ * over the rate are queued, not refused: each one reserves the next free
+ * slot and sleeps until then. When the orchestrator answers 429 or 503 all
+ * calls are paused for the Retry-After time, or an exponential backoff
+ * when missing, and the rate is halved; it then grows back by a tenth of
+ * the configured rate for each successful call. A rate of 0 or less
+ * disables the bucket but not the pauses.
+ */
+public class ToscaRateLimiter {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaRateLimiter.class);
+
+    public static final long MIN_BACKOFF_MS = 1000;
+    public static final long MAX_BACKOFF_MS = 60000;
+
+    private final String name;
+    private double rate;
+    private int burst;
+    private double currentRate;
+    private long nextFree = 0;
+    private long blockedUntil = 0;
+    private long backoffMs = MIN_BACKOFF_MS;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong totalWaitMs = new AtomicLong();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param name Name used in the log
+     * @param rate Calls per second, 0 or less for no limit
+     * @param burst Calls allowed at once after an idle period
+     */
+    public ToscaRateLimiter(String name, double rate, int burst) {
+        this.name = name;
+        configure(rate, burst);
+    }
+
+    public synchronized void configure(double rate, int burst) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.currentRate = rate;
+    }
+
+    /**
+     * Wait for the next slot
+     *
+     * @throws InterruptedIOException If interrupted while queued
+     */
+    public void acquire() throws InterruptedIOException {
+        calls.incrementAndGet();
+        long waited = 0;
+        long wait = reserve();
+        if (wait > 0) {
+            delayed.incrementAndGet();
+            int depth = queued.incrementAndGet();
+            int max = maxQueued.get();
+            while (depth > max && !maxQueued.compareAndSet(max, depth)) {
+                max = maxQueued.get();
+            }
+            try {
+                // A pause may begin while queued
+                while (wait > 0) {
+                    Thread.sleep(wait);
+                    waited += wait;
+                    wait = pausedFor();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name);
+            } finally {
+                queued.decrementAndGet();
+                totalWaitMs.addAndGet(waited);
+                long maxWait = maxWaitMs.get();
+                while (waited > maxWait && !maxWaitMs.compareAndSet(maxWait, waited)) {
+                    maxWait = maxWaitMs.get();
+                }
+            }
+        }
+    }
+
+    private synchronized long reserve() {
+        long now = System.currentTimeMillis();
+        if (currentRate <= 0) {
+            return Math.max(0, blockedUntil - now);
+        }
+        // Up to burst slots may lie in the past; none after a pause
+        long interval = Math.max(1, (long) (1000 / currentRate));
+        long slot = Math.max(Math.max(nextFree, now - (burst - 1) * interval), blockedUntil);
+        nextFree = slot + interval;
+        return Math.max(0, slot - now);
+    }
+
+    private synchronized long pausedFor() {
+        return blockedUntil - System.currentTimeMillis();
+    }
+
+    /**
+     * The orchestrator asked to slow down
+     *
+     * @param retryAfterMs Retry-After value in milliseconds, or a negative
+     * value if missing
+     */
+    public synchronized void throttle(long retryAfterMs) {
+        throttled.incrementAndGet();
+        long pause = (retryAfterMs >= 0) ? Math.min(retryAfterMs, MAX_BACKOFF_MS) : backoffMs;
+        backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + pause);
+        if (rate > 0) {
+            currentRate = Math.max(rate / 16, currentRate / 2);
+        }
+        log.warn("Orchestrator throttled " + name + "; pausing " + pause + "ms"
+                + ((rate > 0) ? ", rate " + String.format("%.2f", currentRate) + "/s" : ""));
+    }
+
+    /**
+     * A call succeeded; the rate recovers towards the configured one
+     */
+    public synchronized void success() {
+        backoffMs = MIN_BACKOFF_MS;
+        if (rate > 0 && currentRate < rate) {
+            currentRate = Math.min(rate, currentRate + rate / 10);
+        }
+    }
+
+    /**
+     * @return The number of callers waiting for a slot
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return The number of calls that had to wait
+     */
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    public long getTotalWaitMs() {
+        return totalWaitMs.get();
+    }
+
+    public long getMaxWaitMs() {
+        return maxWaitMs.get();
+    }
+
+    public double getAverageWaitMs() {
+        long n = calls.get();
+        return (n > 0) ? (double) totalWaitMs.get() / n : 0;
+    }
+
+    /**
+     * @return The number of 429 and 503 answers
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public synchronized double getCurrentRate() {
+        return currentRate;
+    }
+
+    @Override
+    public String toString() {
+        return "queued=" + getQueueDepth() + " (max " + getMaxQueueDepth() + ")"
+                + ", delayed=" + getDelayed() + "/" + getCalls()
+                + ", wait avg=" + String.format("%.1f", getAverageWaitMs()) + "ms"
+                + ", max=" + getMaxWaitMs() + "ms"
+                + ", throttled=" + getThrottled()
+                + ", rate=" + ((getCurrentRate() > 0)
+                        ? String.format("%.2f", getCurrentRate()) + "/s"
+                        : "unlimited");
+    }
+}
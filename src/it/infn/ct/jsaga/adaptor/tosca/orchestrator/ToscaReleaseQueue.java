@@ -0,0 +1,478 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.orchestrator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetric;
+import it.infn.ct.jsaga.adaptor.tosca.metrics.ToscaMetrics;
+import org.apache.log4j.Logger;
+
+/**
+ * Background queue of the deployments to delete. Requests for the same
+ * deployment are coalesced and the due ones are deleted in a single pass
+ * by one worker thread; failed deletes are retried with an exponential
+ * backoff. Pending deletes are saved to a file so that a new process
+ * using the same end-point resumes them: each request is appended to the
+ * file before release() returns, and the worker rewrites the file without
+ * the completed deletes once per pass.
+ */
+public class ToscaReleaseQueue {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaReleaseQueue.class);
+
+    public static final long DEFAULT_DRAIN_MS = 30000;
+    public static final long BATCH_DELAY_MS = 1000;
+    public static final long RETRY_MS = 5000;
+    public static final long MAX_RETRY_MS = 300000;
+    public static final int MAX_ATTEMPTS = 10;
+
+    private static final Map<String, ToscaReleaseQueue> queues
+            = new HashMap<String, ToscaReleaseQueue>();
+
+    private final ToscaOrchestratorClient orchestrator;
+    private final File store;
+    private final Map<String, Pending> pending
+            = new LinkedHashMap<String, Pending>();
+    private final ScheduledExecutorService worker;
+    // Next pass of the worker and whether the store file is out of date,
+    // guarded by the queue lock
+    private ScheduledFuture<?> scheduled = null;
+    private long scheduledAt = Long.MAX_VALUE;
+    private boolean dirty = false;
+    // Serialises the appends and the rewrites of the store file
+    private final Object journal = new Object();
+
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static class Pending {
+
+        int attempts = 0;
+        long nextAttempt;
+
+        Pending(long nextAttempt) {
+            this.nextAttempt = nextAttempt;
+        }
+    }
+
+    ToscaReleaseQueue(ToscaOrchestratorClient orchestrator, File store) {
+        this.orchestrator = orchestrator;
+        this.store = store;
+        worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tosca-release-queue");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        load();
+    }
+
+    /**
+     * Return the release queue of the given orchestrator client, creating
+     * it on first use and resuming the deletes saved in its store file.
+     *
+     * @param orchestrator Orchestrator client
+     * @param store File keeping the pending deletes, or null to use the
+     * default one for the end-point
+     * @return The shared queue instance
+     */
+    public static ToscaReleaseQueue getInstance(ToscaOrchestratorClient orchestrator,
+            String store) {
+        synchronized (queues) {
+            String endpoint = orchestrator.getEndpoint();
+            ToscaReleaseQueue queue = queues.get(endpoint);
+            if (null == queue) {
+                File file = (null != store && store.length() > 0)
+                        ? new File(store)
+                        : defaultStore(endpoint);
+                queue = new ToscaReleaseQueue(orchestrator, file);
+                queues.put(endpoint, queue);
+                log.debug("Created release queue for '" + endpoint + "'"
+                        + " (store: '" + file + "', pending: " + queue.getPending() + ")");
+            }
+            return queue;
+        }
+    }
+
+    private static File defaultStore(String endpoint) {
+        return new File(System.getProperty("user.home"),
+                ".jsaga" + File.separator + "tosca-release-"
+                + Integer.toHexString(endpoint.hashCode()) + ".pending");
+    }
+
+    /**
+     * Queue the deletion of a deployment
+     *
+     * @param toscaUUID Deployment UUID
+     */
+    public void release(String toscaUUID) {
+        synchronized (this) {
+            if (pending.containsKey(toscaUUID)) {
+                return;
+            }
+            pending.put(toscaUUID,
+                    new Pending(System.currentTimeMillis() + BATCH_DELAY_MS));
+            schedule(BATCH_DELAY_MS);
+        }
+        // Outside the queue lock, so that the worker is not held
+        if (!append(toscaUUID)) {
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Make sure the worker runs within the given delay; a single pass is
+     * kept scheduled, the earliest one
+     */
+    private synchronized void schedule(long delayMs) {
+        long at = System.currentTimeMillis() + delayMs;
+        if (scheduledAt <= at) {
+            return;
+        }
+        if (null != scheduled) {
+            scheduled.cancel(false);
+        }
+        scheduledAt = at;
+        scheduled = worker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delete all the due deployments, then reschedule for the next one
+     */
+    private void process() {
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<String>();
+        long next = Long.MAX_VALUE;
+        synchronized (this) {
+            scheduled = null;
+            scheduledAt = Long.MAX_VALUE;
+            for (Map.Entry<String, Pending> e : pending.entrySet()) {
+                if (e.getValue().nextAttempt <= now) {
+                    due.add(e.getKey());
+                } else {
+                    next = Math.min(next, e.getValue().nextAttempt);
+                }
+            }
+        }
+        // Requests whose append failed are saved before deleting
+        persist();
+        if (due.isEmpty()) {
+            if (next != Long.MAX_VALUE) {
+                schedule(Math.max(0, next - now));
+            }
+            return;
+        }
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        for (String toscaUUID : due) {
+            results.put(toscaUUID, delete(toscaUUID));
+        }
+        next = Long.MAX_VALUE;
+        synchronized (this) {
+            now = System.currentTimeMillis();
+            for (Map.Entry<String, Boolean> r : results.entrySet()) {
+                Pending p = pending.get(r.getKey());
+                if (null == p) {
+                    continue;
+                }
+                if (r.getValue()) {
+                    pending.remove(r.getKey());
+                    dirty = true;
+                    deleted.incrementAndGet();
+                } else if (++p.attempts >= MAX_ATTEMPTS) {
+                    pending.remove(r.getKey());
+                    dirty = true;
+                    dropped.incrementAndGet();
+                    log.error("Giving up deleting deployment '" + r.getKey()
+                            + "' after " + p.attempts + " attempts");
+                } else {
+                    retries.incrementAndGet();
+                    p.nextAttempt = now + Math.min(MAX_RETRY_MS,
+                            RETRY_MS << (p.attempts - 1));
+                }
+            }
+            for (Pending p : pending.values()) {
+                next = Math.min(next, p.nextAttempt);
+            }
+        }
+        persist();
+        synchronized (this) {
+            notifyAll();
+        }
+        if (next != Long.MAX_VALUE) {
+            schedule(Math.max(0, next - now));
+        }
+    }
+
+    private boolean delete(String toscaUUID) {
+        ToscaMetric metric = ToscaMetrics.timer(ToscaMetrics.DEPLOYMENT_DELETE);
+        long start = System.currentTimeMillis();
+        try {
+            ToscaOrchestratorClient.Response res = orchestrator.delete(toscaUUID);
+            metric.recordSince(start);
+            if (res.getStatus() == 204 || res.getStatus() == 200
+                    || res.getStatus() == 202) {
+                log.debug("Successfully removed resource: '" + toscaUUID + "'");
+                return true;
+            }
+            if (res.getStatus() == 404) {
+                log.debug("Resource '" + toscaUUID + "' already removed");
+                return true;
+            }
+            log.warn("Unable to remove resource: '" + toscaUUID + "': "
+                    + res.getStatus() + " " + res.getBody());
+        } catch (IOException ex) {
+            log.warn("Unable to remove resource: '" + toscaUUID + "': " + ex);
+        }
+        metric.recordError();
+        return false;
+    }
+
+    /**
+     * Try all the pending deletes now and wait for them
+     *
+     * @param timeoutMs Maximum wait in milliseconds
+     * @return Number of deletes still pending
+     */
+    public int drain(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            for (Pending p : pending.values()) {
+                p.nextAttempt = Math.min(p.nextAttempt, now);
+            }
+        }
+        schedule(0);
+        synchronized (this) {
+            long left = deadline - System.currentTimeMillis();
+            while (!pending.isEmpty() && left > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+            if (!pending.isEmpty()) {
+                log.warn(pending.size() + " deployment deletes still pending;"
+                        + " they are kept in '" + store + "'");
+            }
+            return pending.size();
+        }
+    }
+
+    private void load() {
+        if (!store.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(store));
+            String line;
+            long now = System.currentTimeMillis();
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    pending.put(line, new Pending(now));
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to read pending deletes from '" + store + "': " + ex);
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    log.debug(ex);
+                }
+            }
+        }
+        if (!pending.isEmpty()) {
+            log.info("Resuming " + pending.size() + " pending deployment deletes");
+            schedule(0);
+        }
+    }
+
+    /**
+     * Rewrite the store file if it is out of date; only the worker
+     * rewrites it, outside the queue lock
+     */
+    private void persist() {
+        synchronized (journal) {
+            List<String> uuids;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                uuids = new ArrayList<String>(pending.keySet());
+            }
+            if (!save(uuids)) {
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a request to the store file; a request already saved by a
+     * rewrite may be listed twice, which load() ignores
+     *
+     * @return false if the file could not be written
+     */
+    private boolean append(String toscaUUID) {
+        synchronized (journal) {
+            Writer writer = null;
+            try {
+                File dir = store.getAbsoluteFile().getParentFile();
+                if (null != dir && !dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create '" + dir + "'");
+                }
+                writer = new FileWriter(store, true);
+                writer.write(toscaUUID);
+                writer.write('\n');
+                writer.close();
+                writer = null;
+                return true;
+            } catch (IOException ex) {
+                log.warn("Unable to save pending delete to '" + store + "': " + ex);
+                return false;
+            } finally {
+                if (null != writer) {
+                    try {
+                        writer.close();
+                    } catch (IOException ex) {
+                        log.debug(ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the store file
+     *
+     * @return false if the file could not be written
+     */
+    private boolean save(List<String> uuids) {
+        if (uuids.isEmpty()) {
+            if (store.exists() && !store.delete()) {
+                log.warn("Unable to remove '" + store + "'");
+                return false;
+            }
+            return true;
+        }
+        File tmp = new File(store.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            File dir = store.getAbsoluteFile().getParentFile();
+            if (null != dir && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Unable to create '" + dir + "'");
+            }
+            writer = new FileWriter(tmp);
+            for (String toscaUUID : uuids) {
+                writer.write(toscaUUID);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(store)) {
+                store.delete();
+                if (!tmp.renameTo(store)) {
+                    throw new IOException("Unable to replace '" + store + "'");
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            log.warn("Unable to save pending deletes to '" + store + "': " + ex);
+            return false;
+        } finally {
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    log.debug(ex);
+                }
+            }
+        }
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ToscaReleaseQueue[" + orchestrator.getEndpoint()
+                + ", pending=" + getPending()
+                + ", deleted=" + getDeleted()
+                + ", retries=" + getRetries()
+                + ", dropped=" + getDropped() + "]";
+    }
+}
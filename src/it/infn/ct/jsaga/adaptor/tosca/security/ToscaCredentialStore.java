@@ -0,0 +1,529 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package it.infn.ct.jsaga.adaptor.tosca.security;
+
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaExecutors;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.ogf.saga.error.NoSuccessException;
+
+/**
+ * Local store of the SSH access data of the deployments created by this
+ * user, so that a job id can be resolved to its node without asking the
+ * orchestrator. The store is a properties file readable by its owner only
+ * (mode 600); changes are written shortly after by a background thread,
+ * one rewrite for a burst of submissions or releases. Each entry is encrypted
+ * (AES-CBC, then HMAC-SHA256 over the UUID and the ciphertext) with keys
+ * derived from a key file; the deployment should provide one kept apart
+ * from the store, otherwise a random one is created next to the store.
+ * Stores written in clear text by earlier versions are still read. With
+ * "none" as path the entries are only kept in memory.
+ */
+public class ToscaCredentialStore {
+
+    private static final Logger log
+            = Logger.getLogger(ToscaCredentialStore.class);
+
+    private static final Map<String, ToscaCredentialStore> stores
+            = new HashMap<String, ToscaCredentialStore>();
+
+    /**
+     * Store path keeping the entries in memory only
+     */
+    public static final String DISABLED = "none";
+
+    /**
+     * Delay between a change and the rewrite of the file
+     */
+    public static final long DEFAULT_FLUSH_MS = 200;
+
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final SecretKeySpec cipherKey;
+    private final SecretKeySpec macKey;
+    private final SecureRandom random = new SecureRandom();
+    private final Object saving = new Object();
+    private boolean dirty = false;
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushRequested.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * Access data of a deployment node
+     */
+    public static class Entry {
+
+        private final String host;
+        private final int port;
+        private final String username;
+        private final String password;
+
+        public Entry(String host, int port, String username, String password) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+    }
+
+    /**
+     * In memory store, nothing is read or written
+     */
+    ToscaCredentialStore() {
+        file = null;
+        cipherKey = null;
+        macKey = null;
+        flusher = null;
+    }
+
+    ToscaCredentialStore(File file, File keyFile) throws IOException {
+        this.file = file;
+        byte[] secret = readKey(keyFile);
+        cipherKey = new SecretKeySpec(Arrays.copyOf(derive("cipher", secret), 16), "AES");
+        macKey = new SecretKeySpec(derive("mac", secret), MAC);
+        load();
+        flush();
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                ToscaExecutors.daemonThreads("tosca-credential-store"));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "tosca-credential-store-shutdown"));
+    }
+
+    /**
+     * Return the store kept in the given file, loading it on first use
+     *
+     * @param path Store file, null for ~/.jsaga/tosca-credentials.properties,
+     * or "none" to keep the entries in memory only
+     * @return The shared store instance
+     * @throws NoSuccessException If the key file cannot be read or created
+     */
+    public static ToscaCredentialStore getInstance(String path) throws NoSuccessException {
+        return getInstance(path, null);
+    }
+
+    /**
+     * Return the store kept in the given file, loading it on first use
+     *
+     * @param path Store file, null for ~/.jsaga/tosca-credentials.properties,
+     * or "none" to keep the entries in memory only
+     * @param keyPath File holding the secret the entries are encrypted with,
+     * or null for the store path followed by .key, created if missing
+     * @return The shared store instance
+     * @throws NoSuccessException If the key file cannot be read or created
+     */
+    public static ToscaCredentialStore getInstance(String path, String keyPath)
+            throws NoSuccessException {
+        if (DISABLED.equalsIgnoreCase(path)) {
+            synchronized (stores) {
+                ToscaCredentialStore store = stores.get(DISABLED);
+                if (null == store) {
+                    store = new ToscaCredentialStore();
+                    stores.put(DISABLED, store);
+                }
+                return store;
+            }
+        }
+        File file = (null != path && path.length() > 0)
+                ? new File(path)
+                : new File(System.getProperty("user.home"),
+                        ".jsaga" + File.separator + "tosca-credentials.properties");
+        File keyFile = (null != keyPath && keyPath.length() > 0)
+                ? new File(keyPath)
+                : new File(file.getPath() + ".key");
+        synchronized (stores) {
+            ToscaCredentialStore store = stores.get(file.getAbsolutePath());
+            if (null == store) {
+                try {
+                    store = new ToscaCredentialStore(file, keyFile);
+                } catch (IOException ex) {
+                    throw new NoSuccessException("Unable to read credential store key '"
+                            + keyFile + "': " + ex.getMessage(), ex);
+                }
+                stores.put(file.getAbsolutePath(), store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @param toscaUUID Deployment UUID
+     * @return The access data or null if unknown
+     */
+    public synchronized Entry get(String toscaUUID) {
+        return entries.get(toscaUUID);
+    }
+
+    /**
+     * Look up the access data of a deployment for an adaptor which is not
+     * given the store of the job adaptor, e.g. the data adaptor: the given
+     * store is used if any, then the stores already opened in this JVM, then
+     * the default one
+     *
+     * @param toscaUUID Deployment UUID
+     * @param path Store file, or null if not known
+     * @param keyPath Key file, or null for the default one
+     * @return The access data or null if unknown
+     * @throws NoSuccessException If the key file cannot be read or created
+     */
+    public static Entry lookup(String toscaUUID, String path, String keyPath)
+            throws NoSuccessException {
+        if (null != path && path.length() > 0) {
+            return getInstance(path, keyPath).get(toscaUUID);
+        }
+        List<ToscaCredentialStore> opened;
+        synchronized (stores) {
+            opened = new ArrayList<ToscaCredentialStore>(stores.values());
+        }
+        for (ToscaCredentialStore store : opened) {
+            Entry entry = store.get(toscaUUID);
+            if (null != entry) {
+                return entry;
+            }
+        }
+        return getInstance(null, keyPath).get(toscaUUID);
+    }
+
+    public void put(String toscaUUID, Entry entry) {
+        synchronized (this) {
+            Entry old = entries.put(toscaUUID, entry);
+            if (null != old
+                    && old.host.equals(entry.host)
+                    && old.port == entry.port
+                    && old.username.equals(entry.username)
+                    && old.password.equals(entry.password)) {
+                return;
+            }
+            dirty = true;
+        }
+        changed();
+    }
+
+    public void remove(String toscaUUID) {
+        synchronized (this) {
+            if (null == entries.remove(toscaUUID)) {
+                return;
+            }
+            dirty = true;
+        }
+        changed();
+    }
+
+    private void changed() {
+        if (null != flusher && flushRequested.compareAndSet(false, true)) {
+            flusher.schedule(flushTask, DEFAULT_FLUSH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the pending changes; entries are encrypted and written outside
+     * the lock of the lookups
+     */
+    public void flush() {
+        if (null == file) {
+            return;
+        }
+        synchronized (saving) {
+            Map<String, Entry> snapshot;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                snapshot = new HashMap<String, Entry>(entries);
+            }
+            if (!save(snapshot)) {
+                // Retried with the next change
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+        } catch (IOException ex) {
+            log.warn("Unable to read credential store '" + file + "': " + ex);
+            return;
+        } finally {
+            close(in);
+        }
+        boolean clear = false;
+        for (String key : props.stringPropertyNames()) {
+            if (!key.endsWith(".host")) {
+                if (key.indexOf('.') < 0) {
+                    Entry entry = decrypt(key, props.getProperty(key));
+                    if (null != entry) {
+                        entries.put(key, entry);
+                    }
+                }
+                continue;
+            }
+            String uuid = key.substring(0, key.length() - ".host".length());
+            clear = true;
+            try {
+                entries.put(uuid, new Entry(props.getProperty(key),
+                        Integer.parseInt(props.getProperty(uuid + ".port", "22")),
+                        props.getProperty(uuid + ".user", ""),
+                        props.getProperty(uuid + ".password", "")));
+            } catch (NumberFormatException ex) {
+                log.warn("Invalid port for '" + uuid + "' in '" + file + "'");
+            }
+        }
+        log.debug("Loaded " + entries.size() + " deployments from '" + file + "'");
+        if (clear) {
+            log.info("Encrypting the clear text entries of '" + file + "'");
+            dirty = true;
+        }
+    }
+
+    private boolean save(Map<String, Entry> snapshot) {
+        Properties props = new Properties();
+        try {
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                props.setProperty(e.getKey(), encrypt(e.getKey(), e.getValue()));
+            }
+        } catch (GeneralSecurityException ex) {
+            log.warn("Unable to encrypt credential store '" + file + "': " + ex);
+            return false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (null != dir && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Unable to create '" + dir + "'");
+            }
+            // Restrict permissions before writing any secret
+            tmp.delete();
+            tmp.createNewFile();
+            restrict(tmp);
+            out = new FileOutputStream(tmp);
+            props.store(out, "TOSCA deployments access data");
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to replace '" + file + "'");
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            log.warn("Unable to save credential store '" + file + "': " + ex);
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * @return iv, ciphertext of host, port, user and password, then the
+     * MAC of the UUID, iv and ciphertext, base64 encoded
+     */
+    private String encrypt(String uuid, Entry entry) throws GeneralSecurityException {
+        String plain = entry.host + "\n" + entry.port + "\n"
+                + entry.username + "\n" + entry.password;
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+        byte[] data = cipher.doFinal(utf8(plain));
+        byte[] mac = mac(uuid, iv, data);
+        byte[] out = new byte[iv.length + data.length + mac.length];
+        System.arraycopy(iv, 0, out, 0, iv.length);
+        System.arraycopy(data, 0, out, iv.length, data.length);
+        System.arraycopy(mac, 0, out, iv.length + data.length, mac.length);
+        return Base64.encodeBase64String(out);
+    }
+
+    private Entry decrypt(String uuid, String value) {
+        try {
+            byte[] in = Base64.decodeBase64(value);
+            if (in.length <= IV_LENGTH + MAC_LENGTH) {
+                throw new GeneralSecurityException("entry too short");
+            }
+            byte[] iv = Arrays.copyOfRange(in, 0, IV_LENGTH);
+            byte[] data = Arrays.copyOfRange(in, IV_LENGTH, in.length - MAC_LENGTH);
+            byte[] mac = Arrays.copyOfRange(in, in.length - MAC_LENGTH, in.length);
+            if (!MessageDigest.isEqual(mac, mac(uuid, iv, data))) {
+                throw new GeneralSecurityException("wrong key or altered entry");
+            }
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+            String[] fields = new String(cipher.doFinal(data), "UTF-8").split("\n", 4);
+            return new Entry(fields[0], Integer.parseInt(fields[1]), fields[2], fields[3]);
+        } catch (GeneralSecurityException ex) {
+            log.warn("Unable to decrypt '" + uuid + "' in '" + file + "': " + ex.getMessage());
+        } catch (IOException ex) {
+            log.warn("Unable to decrypt '" + uuid + "' in '" + file + "': " + ex);
+        } catch (RuntimeException ex) {
+            log.warn("Invalid entry '" + uuid + "' in '" + file + "'");
+        }
+        return null;
+    }
+
+    private byte[] mac(String uuid, byte[] iv, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(macKey);
+        mac.update(utf8(uuid));
+        mac.update(iv);
+        return mac.doFinal(data);
+    }
+
+    private static byte[] derive(String purpose, byte[] secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(utf8(purpose));
+            return digest.digest(secret);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Read the secret of the key file, creating a random one if missing
+     */
+    private static byte[] readKey(File keyFile) throws IOException {
+        if (!keyFile.exists()) {
+            File dir = keyFile.getAbsoluteFile().getParentFile();
+            if (null != dir && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Unable to create '" + dir + "'");
+            }
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            keyFile.createNewFile();
+            restrict(keyFile);
+            OutputStream out = new FileOutputStream(keyFile);
+            try {
+                out.write(Base64.encodeBase64(secret));
+            } finally {
+                close(out);
+            }
+            log.info("Created credential store key '" + keyFile + "'");
+        }
+        byte[] secret = Files.readAllBytes(keyFile.toPath());
+        if (secret.length == 0) {
+            throw new IOException("empty key file");
+        }
+        return secret;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void restrict(File f) throws IOException {
+        try {
+            Files.setPosixFilePermissions(f.toPath(), EnumSet.of(
+                    PosixFilePermission.OWNER_READ,
+                    PosixFilePermission.OWNER_WRITE));
+        } catch (UnsupportedOperationException ex) {
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+    }
+
+    private static void close(java.io.Closeable c) {
+        if (null != c) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                log.debug(ex);
+            }
+        }
+    }
+}
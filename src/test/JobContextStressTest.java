@@ -0,0 +1,189 @@
+/*
+ * ====================================================================
+ *
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+
+package test;
+
+import it.infn.ct.jsaga.adaptor.tosca.ToscaAdaptorCommon;
+import it.infn.ct.jsaga.adaptor.tosca.data.ToscaDataAdaptor;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobContext;
+import it.infn.ct.jsaga.adaptor.tosca.job.ToscaJobId;
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaCredentialStore;
+import it.infn.ct.jsaga.adaptor.tosca.security.ToscaSecurityCredential;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.ogf.saga.error.AuthenticationFailedException;
+
+/**
+ * Many threads resolve different job ids through one adaptor instance and
+ * check that every result belongs to the job that was asked for; the data
+ * adaptor resolves the node access data of the staging URLs at the same
+ * time. Node access data comes from a temporary credential store, so no
+ * orchestrator is needed. Exits with status 1 if any result is mixed up.
+ */
+public class JobContextStressTest
+{
+    private static final int JOBS = 64;
+    private static final int THREADS = 32;
+    private static final int ITERATIONS = 20000;
+
+    /**
+     * Exposes the job id resolution of ToscaAdaptorCommon
+     */
+    static class Resolver extends ToscaAdaptorCommon {
+        Resolver(ToscaCredentialStore store) {
+            credentialStore = store;
+        }
+
+        ToscaJobContext context(String nativeJobId) throws Exception {
+            return getJobContext(nativeJobId);
+        }
+
+        String[] info(String nativeJobId) {
+            return getInfoFromNativeJobId(nativeJobId);
+        }
+    }
+
+    /**
+     * Exposes the node access resolution of ToscaDataAdaptor
+     */
+    static class DataResolver extends ToscaDataAdaptor {
+        DataResolver() {
+            setSecurityCredential(new ToscaSecurityCredential());
+        }
+
+        String[] access(String host, Map<String, String> attributes) throws Exception {
+            return getNodeAccess(host, 22, attributes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File file = File.createTempFile("tosca-credentials", ".properties");
+        file.delete();
+        file.deleteOnExit();
+        ToscaCredentialStore store = ToscaCredentialStore.getInstance(file.getPath());
+
+        final String[] jobIds = new String[JOBS];
+        final Map<String, Map<String, String>> stagingAttributes
+                = new HashMap<String, Map<String, String>>();
+        for (int i = 0; i < JOBS; i++) {
+            String uuid = "uuid-" + i;
+            store.put(uuid, new ToscaCredentialStore.Entry(
+                    "10.0.0." + i, 22, "user" + i, "pass" + i));
+            // Even jobs carry the node address, odd ones are v1 ids
+            jobIds[i] = (i % 2 == 0)
+                      ? new ToscaJobId("ssh-" + i, uuid, "10.0.0." + i, 22).toString()
+                      : new ToscaJobId("ssh-" + i, uuid).toString();
+            // Attributes of the staging URLs given by the job adaptor
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("tosca_uuid", uuid);
+            stagingAttributes.put(uuid, attributes);
+        }
+
+        final Resolver resolver = new Resolver(store);
+        final DataResolver dataResolver = new DataResolver();
+        final AtomicInteger checks = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < ITERATIONS; n++) {
+                            int i = (offset * 7 + n) % JOBS;
+                            if (!matches(resolver, jobIds[i], i)
+                                    || !matches(dataResolver,
+                                                stagingAttributes.get("uuid-" + i), i)) {
+                                errors.incrementAndGet();
+                            }
+                            checks.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedMs = (System.nanoTime() - t0) / 1000000;
+
+        // A deployment without access data must not fall back to a null login
+        Map<String, String> unknown = new HashMap<String, String>();
+        unknown.put("tosca_uuid", "uuid-unknown");
+        unknown.put("credential_store", file.getPath());
+        try {
+            dataResolver.access("10.0.0.0", unknown);
+            System.out.println("No error for a deployment without access data");
+            errors.incrementAndGet();
+        } catch (AuthenticationFailedException ex) {
+            // expected
+        }
+
+        System.out.println(THREADS + " threads, " + checks.get() + " resolutions in "
+                           + elapsedMs + "ms, " + errors.get() + " mismatches");
+        System.exit(errors.get() == 0 ? 0 : 1);
+    }
+
+    static boolean matches(Resolver resolver, String nativeJobId, int i)
+            throws Exception
+    {
+        ToscaJobContext job = resolver.context(nativeJobId);
+        String[] info = resolver.info(nativeJobId);
+        return job.getSshJobId().equals("ssh-" + i)
+            && job.getToscaUUID().equals("uuid-" + i)
+            && job.getHost().equals("10.0.0." + i)
+            && job.getPort() == 22
+            && job.getUsername().equals("user" + i)
+            && job.getPassword().equals("pass" + i)
+            && info[1].equals("ssh-" + i)
+            && info[2].equals("uuid-" + i)
+            && info[3].equals("10.0.0." + i)
+            && info[5].equals("user" + i)
+            && info[6].equals("pass" + i);
+    }
+
+    static boolean matches(DataResolver resolver, Map<String, String> attributes, int i)
+            throws Exception
+    {
+        // All the nodes have the same address, as when an address is reused
+        String[] access = resolver.access("10.0.0.0", attributes);
+        return access[0].equals("user" + i)
+            && access[1].equals("pass" + i);
+    }
+}